@@ -0,0 +1,15 @@
+#!/bin/bash
+#
+# Compiles the program and the benchmarks under src/bench/java, then runs the benchmarks
+# Every argument is passed on to bench.BenchmarkRunner, e.g.
+#
+#   ./bench.sh --out=bench-before.csv
+#   ./bench.sh --baseline=bench-before.csv median parse
+#
+# Benchmark rows are generated in memory from a fixed seed, a copy can be written with
+#
+#   java -cp target/bench-classes bench.FecDataGenerator 2000000 42 input/synthetic.txt
+#
+mkdir -p target/bench-classes
+javac -d target/bench-classes $(find src/main/java src/bench/java -name '*.java') || exit 1
+java -Xms2g -Xmx2g -cp target/bench-classes bench.BenchmarkRunner "$@"
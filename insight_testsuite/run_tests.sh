@@ -51,38 +51,49 @@ function setup_testing_input_output {
 
   rm -r ${TEST_OUTPUT_PATH}/input/*
   rm -r ${TEST_OUTPUT_PATH}/output/*
-  cp -r ${GRADER_ROOT}/tests/${test_folder}/input/itcont.txt ${TEST_OUTPUT_PATH}/input/itcont.txt
+  cp -r ${GRADER_ROOT}/tests/${test_folder}/input/* ${TEST_OUTPUT_PATH}/input/
+
+  # scratch folder of the test, e.g. for spilled runs, which must be left empty
+  mkdir -p ${TEST_OUTPUT_PATH}/tmp
+
+  # options passed to run.sh, if the test has any: run.sh runs once per line, in order,
+  # @TMP@ stands for the scratch folder and the output of the last run is compared
+  TEST_RUNS=("")
+  if [ -f ${GRADER_ROOT}/tests/${test_folder}/options ]; then
+    mapfile -t TEST_RUNS < ${GRADER_ROOT}/tests/${test_folder}/options
+  fi
 }
 
 function compare_outputs {
   NUM_OUTPUT_FILES_PASSED=0
-  OUTPUT_FILENAME=medianvals_by_zip.txt
-  PROJECT_ANSWER_PATH1=${GRADER_ROOT}/temp/output/${OUTPUT_FILENAME}
-  TEST_ANSWER_PATH1=${GRADER_ROOT}/tests/${test_folder}/output/${OUTPUT_FILENAME}
-   
-  DIFF_RESULT1=$(diff -bB ${PROJECT_ANSWER_PATH1} ${TEST_ANSWER_PATH1} | wc -l)
-  if [ "${DIFF_RESULT1}" -eq "0" ] && [ -f ${PROJECT_ANSWER_PATH1} ]; then
-    echo -e "[${color_green}PASS${color_norm}]: ${test_folder} ${OUTPUT_FILENAME}"
-    NUM_OUTPUT_FILES_PASSED=$(($NUM_OUTPUT_FILES_PASSED+1))
-  else
-    echo -e "[${color_red}FAIL${color_norm}]: ${test_folder}"
-    diff ${PROJECT_ANSWER_PATH1} ${TEST_ANSWER_PATH1}
-  fi
+  # every file of the test output folder is compared, e.g. views or batch outputs in subfolders
+  EXPECTED_FILES=$(cd ${GRADER_ROOT}/tests/${test_folder}/output && find . -type f | sed 's|^\./||' | sort)
+  NUM_OUTPUT_FILES=$(($(echo ${EXPECTED_FILES} | wc -w)+1))
+  for OUTPUT_FILENAME in ${EXPECTED_FILES}; do
+    PROJECT_ANSWER_PATH=${GRADER_ROOT}/temp/output/${OUTPUT_FILENAME}
+    TEST_ANSWER_PATH=${GRADER_ROOT}/tests/${test_folder}/output/${OUTPUT_FILENAME}
+
+    DIFF_RESULT=$(diff -bB ${PROJECT_ANSWER_PATH} ${TEST_ANSWER_PATH} | wc -l)
+    if [ "${DIFF_RESULT}" -eq "0" ] && [ -f ${PROJECT_ANSWER_PATH} ]; then
+      echo -e "[${color_green}PASS${color_norm}]: ${test_folder} ${OUTPUT_FILENAME}"
+      NUM_OUTPUT_FILES_PASSED=$(($NUM_OUTPUT_FILES_PASSED+1))
+    else
+      echo -e "[${color_red}FAIL${color_norm}]: ${test_folder} ${OUTPUT_FILENAME}"
+      diff ${PROJECT_ANSWER_PATH} ${TEST_ANSWER_PATH}
+    fi
+  done
 
-  OUTPUT_FILENAME=medianvals_by_date.txt
-  PROJECT_ANSWER_PATH2=${GRADER_ROOT}/temp/output/${OUTPUT_FILENAME}
-  TEST_ANSWER_PATH2=${GRADER_ROOT}/tests/${test_folder}/output/${OUTPUT_FILENAME}
-  
-  DIFF_RESULT2=$(diff -bB ${PROJECT_ANSWER_PATH2} ${TEST_ANSWER_PATH2} | wc -l)
-  if [ "${DIFF_RESULT2}" -eq "0" ] && [ -f ${PROJECT_ANSWER_PATH2} ]; then
-    echo -e "[${color_green}PASS${color_norm}]: ${test_folder} ${OUTPUT_FILENAME}"
+  # nothing else may be left in the output folder, e.g. spilled runs
+  EXTRA_FILES=$(cd ${GRADER_ROOT}/temp/output && find . -mindepth 1 ! -type d | sed 's|^\./||' | sort \
+      | comm -23 - <(echo "${EXPECTED_FILES}"))
+  EXTRA_FILES="${EXTRA_FILES}$(ls -A ${GRADER_ROOT}/temp/tmp)"
+  if [ -z "${EXTRA_FILES}" ]; then
     NUM_OUTPUT_FILES_PASSED=$(($NUM_OUTPUT_FILES_PASSED+1))
   else
-    echo -e "[${color_red}FAIL${color_norm}]: ${test_folder}"
-    diff ${PROJECT_ANSWER_PATH2} ${TEST_ANSWER_PATH2}
+    echo -e "[${color_red}FAIL${color_norm}]: ${test_folder} left ${EXTRA_FILES}"
   fi
 
-  if [ "${NUM_OUTPUT_FILES_PASSED}" -eq "2" ]; then
+  if [ "${NUM_OUTPUT_FILES_PASSED}" -eq "${NUM_OUTPUT_FILES}" ]; then
     PASS_CNT=$(($PASS_CNT+1))
   fi
 
@@ -99,7 +110,9 @@ function run_all_tests {
     setup_testing_input_output
 
     cd ${GRADER_ROOT}/temp
-    bash run.sh 2>&1
+    for test_options in "${TEST_RUNS[@]}"; do
+      bash run.sh ${test_options//@TMP@/./tmp} 2>&1
+    done
     cd ../
 
     compare_outputs
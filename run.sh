@@ -5,4 +5,14 @@
 #python ./src/find_political_donors.py ./input/itcont.txt ./output/medianvals_by_zip.txt ./output/medianvals_by_date.txt
 mkdir -p target/classes
 javac -d target/classes -sourcepath src/main/java src/main/java/**/*.java src/main/java/*.java
-java -cp target/classes Main ./input/itcont.txt ./output/medianvals_by_zip.txt ./output/medianvals_by_date.txt
+# a batch of inputs is analyzed to an output folder per input, e.g. bash run.sh --batch=./input ./output
+if [[ "$1" == --batch=* ]]; then
+  java -cp target/classes Main "$@"
+  exit
+fi
+# the input may also be compressed, e.g. ./input/itcont.txt.gz or ./input/itcont.zip, options are passed on to Main
+INPUT_FILE=./input/itcont.txt
+if [ ! -e ${INPUT_FILE} ]; then
+  INPUT_FILE=$(ls ./input/itcont.* 2>/dev/null | head -n 1)
+fi
+java -cp target/classes Main ${INPUT_FILE} ./output/medianvals_by_zip.txt ./output/medianvals_by_date.txt "$@"
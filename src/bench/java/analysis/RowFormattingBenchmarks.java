@@ -0,0 +1,149 @@
+package analysis;
+
+import bench.Benchmark;
+import bench.BenchmarkData;
+import bench.Blackhole;
+import datastore.ContributionsRunningData;
+import datastore.ContributionsStore;
+import payloads.ContributionParser;
+import payloads.ContributionRecord;
+import util.AsciiRowWriter;
+
+import java.io.BufferedWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Benchmarks formatting the running output rows, one operation per row
+ *
+ * The rows are the running results of the input, computed up front.
+ *  - format.concat: PoliticalContributionAnalysis.formatRow alone
+ *  - format.println: formatRow printed through a buffered PrintWriter, as the output used to be written
+ *  - format.writer: the rows written with AsciiRowWriter, as written by PoliticalContributionAnalysis
+ *    and ContributionPipeline
+ *
+ * Lives in the analysis package to reach the package-private formatRow.
+ */
+public class RowFormattingBenchmarks
+{
+    private final List<String> recipientIds = new ArrayList<>();
+    private final List<String> zips = new ArrayList<>();
+    private final List<long[]> results = new ArrayList<>();
+
+    private RowFormattingBenchmarks(BenchmarkData data) {
+        ContributionsStore contributionsStore = new ContributionsStore();
+        ContributionParser parser = new ContributionParser(contributionsStore.getRecipientDictionary());
+        ContributionRecord record = new ContributionRecord();
+        ByteBuffer bytes = data.getBytes();
+        for (int row = 0; row < data.size(); row++) {
+            if (parser.parse(bytes, data.getLineStart(row), data.getLineEnd(row), record)) {
+                ContributionsRunningData.ContributionsByZip contributionsByZip =
+                        contributionsStore.addContribution(record).getCurrentContributionsByZip();
+                if (contributionsByZip != null) {
+                    recipientIds.add(record.getRecipientId());
+                    zips.add(record.getContributorZip());
+                    results.add(new long[] { contributionsByZip.getRunningMedian(),
+                            contributionsByZip.getRunningTotalTxCount(), contributionsByZip.getRunningTotalTxAmt() });
+                }
+            }
+        }
+    }
+
+    public static List<Benchmark> create(BenchmarkData data) {
+        RowFormattingBenchmarks rows = new RowFormattingBenchmarks(data);
+        return Arrays.asList(rows.new Concat(), rows.new Println(), rows.new RowWriter());
+    }
+
+    private class Concat implements Benchmark
+    {
+        @Override
+        public String name() {
+            return "format.concat";
+        }
+
+        @Override
+        public long run(Blackhole blackhole) {
+            for (int i = 0; i < results.size(); i++) {
+                long[] result = results.get(i);
+                blackhole.consume(PoliticalContributionAnalysis.formatRow(recipientIds.get(i), zips.get(i),
+                        result[0], (int) result[1], result[2]));
+            }
+            return results.size();
+        }
+    }
+
+    private class Println implements Benchmark
+    {
+        private final PrintWriter out = new PrintWriter(new BufferedWriter(new Writer() {
+            @Override
+            public void write(char[] buffer, int offset, int length) {
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        }));
+
+        @Override
+        public String name() {
+            return "format.println";
+        }
+
+        @Override
+        public long run(Blackhole blackhole) {
+            for (int i = 0; i < results.size(); i++) {
+                long[] result = results.get(i);
+                out.println(PoliticalContributionAnalysis.formatRow(recipientIds.get(i), zips.get(i),
+                        result[0], (int) result[1], result[2]));
+            }
+            out.flush();
+            return results.size();
+        }
+    }
+
+    private class RowWriter implements Benchmark
+    {
+        private final AsciiRowWriter writer = new AsciiRowWriter(new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer buffer) {
+                int length = buffer.remaining();
+                buffer.position(buffer.limit());
+                return length;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        }, AsciiRowWriter.DEFAULT_BUFFER_SIZE);
+
+        @Override
+        public String name() {
+            return "format.writer";
+        }
+
+        @Override
+        public long run(Blackhole blackhole) {
+            for (int i = 0; i < results.size(); i++) {
+                long[] result = results.get(i);
+                writer.append(recipientIds.get(i)).append('|').append(zips.get(i)).append('|')
+                        .append(result[0]).append('|').append(result[1]).append('|').append(result[2]).endRow();
+            }
+            writer.flush();
+            return results.size();
+        }
+    }
+}
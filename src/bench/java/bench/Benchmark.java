@@ -0,0 +1,23 @@
+package bench;
+
+/**
+ * A single benchmark run by BenchmarkRunner
+ *
+ * The runner calls run repeatedly for a fixed amount of time per iteration, after a number of
+ * warm-up iterations, and reports the average time per operation.
+ */
+public interface Benchmark
+{
+    /**
+     * @return unique, dot separated name, e.g. median.running.small.heap
+     */
+    String name();
+
+    /**
+     * Runs the measured code once
+     *
+     * @param blackhole - sink for every result, so that the JIT can not drop the measured code
+     * @return number of operations performed, e.g. rows parsed or values added
+     */
+    long run(Blackhole blackhole);
+}
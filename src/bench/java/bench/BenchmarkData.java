@@ -0,0 +1,80 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * The input rows shared by every benchmark, both as Strings and as one buffer of raw bytes
+ */
+public class BenchmarkData
+{
+    private final List<String> lines;
+    private final ByteBuffer bytes;
+    private final int[] lineStarts;
+    private final int[] lineEnds;
+
+    private BenchmarkData(List<String> lines) {
+        this.lines = lines;
+        lineStarts = new int[lines.size()];
+        lineEnds = new int[lines.size()];
+        byte[][] encoded = new byte[lines.size()][];
+        int total = 0;
+        for (int i = 0; i < lines.size(); i++) {
+            encoded[i] = lines.get(i).getBytes(StandardCharsets.UTF_8);
+            total += encoded[i].length + 1;
+        }
+        bytes = ByteBuffer.allocate(total);
+        for (int i = 0; i < encoded.length; i++) {
+            lineStarts[i] = bytes.position();
+            bytes.put(encoded[i]);
+            lineEnds[i] = bytes.position();
+            bytes.put((byte) '\n');
+        }
+        bytes.flip();
+    }
+
+    /**
+     * @param rows - number of rows to generate
+     * @param seed - seed of the generated rows
+     * @return synthetic rows from FecDataGenerator
+     */
+    public static BenchmarkData generate(int rows, long seed) {
+        return new BenchmarkData(new FecDataGenerator(seed).rows(rows));
+    }
+
+    /**
+     * @param input - itcont.txt style file
+     * @return the rows of the file
+     * @throws IOException if the file can not be read
+     */
+    public static BenchmarkData read(Path input) throws IOException {
+        return new BenchmarkData(Files.readAllLines(input, StandardCharsets.UTF_8));
+    }
+
+    public int size() {
+        return lines.size();
+    }
+
+    public List<String> getLines() {
+        return lines;
+    }
+
+    /**
+     * @return every row as UTF-8 bytes, each followed by a newline
+     */
+    public ByteBuffer getBytes() {
+        return bytes;
+    }
+
+    public int getLineStart(int row) {
+        return lineStarts[row];
+    }
+
+    public int getLineEnd(int row) {
+        return lineEnds[row];
+    }
+}
@@ -0,0 +1,227 @@
+package bench;
+
+import analysis.RowFormattingBenchmarks;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs the benchmarks and reports the average time per operation
+ *
+ * Each benchmark runs a number of warm-up iterations, then measured iterations of a fixed duration.
+ * An iteration calls the benchmark repeatedly till the duration is over, and its score is the
+ * elapsed time divided by the operations performed. The mean and standard deviation of the
+ * iteration scores are reported.
+ *
+ * Results can be written to a CSV file and compared against a previous run to catch regressions.
+ *
+ * Usage: java bench.BenchmarkRunner [options] [name-filter...]
+ *  - --rows=N           number of synthetic rows, default 500000
+ *  - --seed=N           seed of the synthetic rows, default 42
+ *  - --input=FILE       benchmark the rows of an itcont.txt file instead of synthetic rows
+ *  - --warmup=N         warm-up iterations, default 5
+ *  - --iterations=N     measured iterations, default 10
+ *  - --time=MS          duration of an iteration in milliseconds, default 1000
+ *  - --out=FILE         writes the results as CSV
+ *  - --baseline=FILE    compares against the CSV of a previous run
+ *  - --threshold=PCT    slowdown reported as regression, default 10
+ *  Benchmarks whose name contains one of the filters are run, all of them without filter.
+ */
+public class BenchmarkRunner
+{
+    private int rows = 500000;
+    private long seed = 42;
+    private String input;
+    private int warmupIterations = 5;
+    private int iterations = 10;
+    private long iterationNanos = 1000_000_000L;
+    private String out;
+    private String baseline;
+    private double threshold = 10;
+    private final List<String> filters = new ArrayList<>();
+
+    public static void main(String[] args) throws IOException {
+        BenchmarkRunner runner = new BenchmarkRunner();
+        try {
+            for (String arg : args) {
+                runner.parseArgument(arg);
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println("Usage: java bench.BenchmarkRunner [--rows=N] [--seed=N] [--input=FILE] [--warmup=N]" +
+                    " [--iterations=N] [--time=MS] [--out=FILE] [--baseline=FILE] [--threshold=PCT] [filter...]");
+            return;
+        }
+        if (runner.run()) {
+            System.exit(1);
+        }
+    }
+
+    private void parseArgument(String arg) {
+        if (!arg.startsWith("--")) {
+            filters.add(arg);
+            return;
+        }
+        int separator = arg.indexOf('=');
+        if (separator < 0) {
+            throw new IllegalArgumentException("Invalid option " + arg);
+        }
+        String value = arg.substring(separator + 1);
+        try {
+            switch (arg.substring(0, separator)) {
+                case "--rows":
+                    rows = Integer.parseInt(value);
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(value);
+                    break;
+                case "--input":
+                    input = value;
+                    break;
+                case "--warmup":
+                    warmupIterations = Integer.parseInt(value);
+                    break;
+                case "--iterations":
+                    iterations = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "--time":
+                    iterationNanos = Long.parseLong(value) * 1000_000L;
+                    break;
+                case "--out":
+                    out = value;
+                    break;
+                case "--baseline":
+                    baseline = value;
+                    break;
+                case "--threshold":
+                    threshold = Double.parseDouble(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        } catch (NumberFormatException nfe) {
+            throw new IllegalArgumentException("Invalid value " + arg);
+        }
+    }
+
+    /**
+     * @return true if a regression against the baseline was found
+     */
+    private boolean run() throws IOException {
+        BenchmarkData data = input != null ? BenchmarkData.read(Paths.get(input)) : BenchmarkData.generate(rows, seed);
+        Map<String, Double> baselineScores = baseline != null ? readScores(baseline) : new HashMap<>();
+
+        List<Benchmark> benchmarks = new ArrayList<>();
+        benchmarks.addAll(ParsingBenchmarks.create(data));
+        benchmarks.addAll(MedianStoreBenchmarks.create(data));
+        benchmarks.addAll(ContributionsStoreBenchmarks.create(data));
+        benchmarks.addAll(RowFormattingBenchmarks.create(data));
+
+        System.out.println("rows: " + data.size() + (input != null ? " from " + input : " synthetic, seed " + seed)
+                + ", warm-up: " + warmupIterations + ", iterations: " + iterations
+                + " x " + iterationNanos / 1000_000 + " ms");
+        System.out.println(String.format("%-32s %12s %10s %14s %10s", "benchmark", "ns/op", "+-", "ops/s",
+                baseline != null ? "vs base" : ""));
+
+        Blackhole blackhole = new Blackhole();
+        boolean regression = false;
+        List<String> csv = new ArrayList<>();
+        csv.add("benchmark,ns_per_op,stddev");
+        for (Benchmark benchmark : benchmarks) {
+            if (!selected(benchmark.name())) {
+                continue;
+            }
+            for (int i = 0; i < warmupIterations; i++) {
+                iterate(benchmark, blackhole);
+            }
+            double[] scores = new double[iterations];
+            for (int i = 0; i < iterations; i++) {
+                scores[i] = iterate(benchmark, blackhole);
+            }
+            double mean = mean(scores);
+            double stddev = stddev(scores, mean);
+            csv.add(benchmark.name() + "," + mean + "," + stddev);
+
+            String comparison = "";
+            Double baselineScore = baselineScores.get(benchmark.name());
+            if (baselineScore != null) {
+                double change = (mean - baselineScore) / baselineScore * 100;
+                comparison = String.format("%+.1f%%", change);
+                if (change > threshold) {
+                    comparison += " REGRESSION";
+                    regression = true;
+                }
+            }
+            System.out.println(String.format("%-32s %12.2f %10.2f %14.0f %10s", benchmark.name(), mean, stddev,
+                    1e9 / mean, comparison));
+        }
+        if (out != null) {
+            try (PrintWriter csvOut = new PrintWriter(new BufferedWriter(
+                    Files.newBufferedWriter(Paths.get(out), StandardCharsets.UTF_8)))) {
+                csv.forEach(csvOut::println);
+            }
+        }
+        return regression;
+    }
+
+    private boolean selected(String name) {
+        if (filters.isEmpty()) {
+            return true;
+        }
+        for (String filter : filters) {
+            if (name.contains(filter)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return nanoseconds per operation of one iteration
+     */
+    private double iterate(Benchmark benchmark, Blackhole blackhole) {
+        long operations = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            operations += benchmark.run(blackhole);
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < iterationNanos);
+        blackhole.publish();
+        return (double) elapsed / Math.max(1, operations);
+    }
+
+    private static Map<String, Double> readScores(String csvFile) throws IOException {
+        Map<String, Double> scores = new HashMap<>();
+        List<String> lines = Files.readAllLines(Paths.get(csvFile), StandardCharsets.UTF_8);
+        for (String line : lines.subList(Math.min(1, lines.size()), lines.size())) {
+            String[] columns = line.split(",");
+            scores.put(columns[0], Double.parseDouble(columns[1]));
+        }
+        return scores;
+    }
+
+    private static double mean(double[] scores) {
+        double sum = 0;
+        for (double score : scores) {
+            sum += score;
+        }
+        return sum / scores.length;
+    }
+
+    private static double stddev(double[] scores, double mean) {
+        double sum = 0;
+        for (double score : scores) {
+            sum += (score - mean) * (score - mean);
+        }
+        return scores.length > 1 ? Math.sqrt(sum / (scores.length - 1)) : 0;
+    }
+}
@@ -0,0 +1,35 @@
+package bench;
+
+/**
+ * Consumes benchmark results so that the JIT can not eliminate the code computing them
+ *
+ * Values are folded into a field that is published once per iteration,
+ * objects are compared against a volatile marker that never matches.
+ */
+public final class Blackhole
+{
+    private volatile Object marker = new Object();
+    private volatile long published;
+    private long sink;
+
+    public void consume(long value) {
+        sink = 31 * sink + value;
+    }
+
+    public void consume(double value) {
+        consume(Double.doubleToRawLongBits(value));
+    }
+
+    public void consume(Object value) {
+        if (value == marker) {
+            sink++;
+        }
+    }
+
+    /**
+     * Publishes the consumed values, called by the runner after each iteration
+     */
+    void publish() {
+        published = sink;
+    }
+}
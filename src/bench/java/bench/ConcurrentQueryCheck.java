@@ -0,0 +1,207 @@
+package bench;
+
+import analysis.ContributionService;
+import analysis.PoliticalContributionAnalysis;
+import datastore.ContributionsStore;
+import datastore.GroupStorage;
+import metrics.IngestMetrics;
+import util.AsciiRowWriter;
+import util.MedianStoreType;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks that a ContributionService answers queries asked from many threads at once the same as one at a time
+ *
+ * The rows are ingested by a reference service, on the heap with medians in heaps, and by a service
+ * of every other storage and median store by date. Once ingested, the ZIP and DATE query of every group
+ * is asked of the reference one at a time, and of the other services from several threads at once,
+ * each thread in its own order. Every answer that differs from the reference is reported.
+ *
+ * Usage: java bench.ConcurrentQueryCheck [rows [seed [threads]]]
+ * Exits with status 1 if any answer differs.
+ */
+public class ConcurrentQueryCheck
+{
+    private static final String LAST_RECIPIENT = "C99999999";
+    private static final String LAST_ROW = LAST_RECIPIENT + "|N|M3|P||15|IND|LAST, ROW|CITY|STATE|12345|||"
+            + "01012017|1||||||";
+    private static final String LAST_QUERY = "ZIP " + LAST_RECIPIENT + " 12345";
+    private static final int ROUNDS = 3;
+
+    private ConcurrentQueryCheck() {
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 42;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        List<String> lines = BenchmarkData.generate(rows, seed).getLines();
+        List<String> queries = queriesOf(lines);
+
+        Service reference = Service.start(GroupStorage.HEAP, MedianStoreType.HEAP, lines);
+        List<String> expected = new ArrayList<>(queries.size());
+        for (String query : queries) {
+            expected.add(reference.contributionService.query(query));
+        }
+        reference.stop();
+
+        int mismatches = 0;
+        for (GroupStorage groupStorage : GroupStorage.values()) {
+            for (MedianStoreType dateMedianStoreType : new MedianStoreType[] {
+                    MedianStoreType.SELECTION, MedianStoreType.HEAP, MedianStoreType.HISTOGRAM }) {
+                Service service = Service.start(groupStorage, dateMedianStoreType, lines);
+                int differing = queryConcurrently(service.contributionService, queries, expected, threads, seed);
+                service.stop();
+                System.out.println(String.format("storage=%s date-median=%s: %d queries on %d threads, %d differ",
+                        groupStorage, dateMedianStoreType, (long) queries.size() * ROUNDS * threads, threads,
+                        differing));
+                mismatches += differing;
+            }
+        }
+        if (mismatches > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return the ZIP and DATE query of every recipient and zipcode or date of the rows, valid or not
+     */
+    private static List<String> queriesOf(List<String> lines) {
+        Set<String> queries = new LinkedHashSet<>();
+        for (String line : lines) {
+            String[] fields = line.split("\\|", -1);
+            if (fields.length > 13) {
+                String zip = fields[10].length() >= 5 ? fields[10].substring(0, 5) : "00000";
+                queries.add("ZIP " + fields[0] + " " + zip);
+                queries.add("DATE " + fields[0] + " " + (fields[13].length() == 8 ? fields[13] : "01012017"));
+            }
+        }
+        return new ArrayList<>(queries);
+    }
+
+    /**
+     * @return number of answers that differ from the expected ones
+     */
+    private static int queryConcurrently(ContributionService contributionService, List<String> queries,
+                                         List<String> expected, int threads, long seed) throws InterruptedException {
+        AtomicInteger differing = new AtomicInteger();
+        List<Thread> queryThreads = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            List<Integer> order = new ArrayList<>(queries.size());
+            for (int i = 0; i < queries.size(); i++) {
+                order.add(i);
+            }
+            Collections.shuffle(order, new Random(seed + t));
+            Thread thread = new Thread(() -> {
+                for (int round = 0; round < ROUNDS; round++) {
+                    for (int i : order) {
+                        String answer = contributionService.query(queries.get(i));
+                        if (!answer.equals(expected.get(i)) && differing.getAndIncrement() < 10) {
+                            System.out.println(queries.get(i) + ": " + answer + " instead of " + expected.get(i));
+                        }
+                    }
+                }
+            }, "query-" + t);
+            queryThreads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : queryThreads) {
+            thread.join();
+        }
+        return differing.get();
+    }
+
+    /**
+     * A ContributionService that ingested the rows and keeps answering queries till stopped
+     */
+    private static class Service
+    {
+        private final ContributionService contributionService;
+        private final Thread storeThread;
+        private final AsciiRowWriter outZip;
+        private final AsciiRowWriter outDate;
+        private final Path outZipFile;
+        private final Path outDateFile;
+
+        private Service(ContributionService contributionService, Thread storeThread, AsciiRowWriter outZip,
+                        AsciiRowWriter outDate, Path outZipFile, Path outDateFile) {
+            this.contributionService = contributionService;
+            this.storeThread = storeThread;
+            this.outZip = outZip;
+            this.outDate = outDate;
+            this.outZipFile = outZipFile;
+            this.outDateFile = outDateFile;
+        }
+
+        /**
+         * Sends the rows to a new service over a local port and waits till it processed all of them
+         */
+        static Service start(GroupStorage groupStorage, MedianStoreType dateMedianStoreType, List<String> lines)
+                throws IOException, InterruptedException {
+            Path outZipFile = Files.createTempFile("medianvals_by_zip", ".txt");
+            Path outDateFile = Files.createTempFile("medianvals_by_date", ".txt");
+            AsciiRowWriter outZip = AsciiRowWriter.open(outZipFile, AsciiRowWriter.DEFAULT_BUFFER_SIZE);
+            AsciiRowWriter outDate = AsciiRowWriter.open(outDateFile, AsciiRowWriter.DEFAULT_BUFFER_SIZE);
+            ContributionsStore contributionsStore =
+                    new ContributionsStore(true, MedianStoreType.HEAP, dateMedianStoreType, groupStorage);
+            IngestMetrics metrics = new IngestMetrics(contributionsStore);
+            PoliticalContributionAnalysis politicalContributionAnalysis = new PoliticalContributionAnalysis(
+                    outZip, outDate, contributionsStore, new PoliticalContributionAnalysis.Options().metrics(metrics));
+            ContributionService contributionService =
+                    new ContributionService(politicalContributionAnalysis, contributionsStore, outZip, metrics, null);
+
+            int port;
+            try (ServerSocket freePort = new ServerSocket(0, 0, InetAddress.getLoopbackAddress())) {
+                port = freePort.getLocalPort();
+            }
+            contributionService.startIngesting(ContributionService.TCP_PREFIX + port);
+            Thread storeThread = new Thread(() -> {
+                try {
+                    contributionService.run();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "store");
+            storeThread.start();
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+                 Writer records = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.US_ASCII)) {
+                for (String line : lines) {
+                    records.write(line);
+                    records.write('\n');
+                }
+                records.write(LAST_ROW);
+                records.write('\n');
+            }
+            // batches are processed in order, so every row is in once the last one is
+            while (contributionService.query(LAST_QUERY).equals("NONE")) {
+                Thread.sleep(10);
+            }
+            return new Service(contributionService, storeThread, outZip, outDate, outZipFile, outDateFile);
+        }
+
+        void stop() throws IOException, InterruptedException {
+            contributionService.query("SHUTDOWN");
+            storeThread.join();
+            outZip.close();
+            outDate.close();
+            Files.delete(outZipFile);
+            Files.delete(outDateFile);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package bench;
+
+import datastore.ContributionsRunningData;
+import datastore.ContributionsStore;
+import datastore.GroupStorage;
+import payloads.Contribution;
+import payloads.ContributionParser;
+import payloads.ContributionRecord;
+import util.MedianStoreType;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Benchmarks ContributionsStore.addContribution end to end on a fresh store, one operation per row
+ *
+ *  - store.contribution: adds the Contribution payloads, parsed up front
+ *  - store.bytes: parses the raw rows with a ContributionParser sharing the store's dictionary and adds them
+ *  - store.bytes.running: same as store.bytes, with the aggregate data by date left to --date-threads
+ *  - store.bytes.offheap: same as store.bytes, with the groups kept off the heap and medians by date in heaps
+ */
+public class ContributionsStoreBenchmarks
+{
+    private ContributionsStoreBenchmarks() {
+    }
+
+    public static List<Benchmark> create(BenchmarkData data) {
+        return Arrays.asList(new AddContributions(data), new ParseAndAdd(data, true, GroupStorage.HEAP),
+                new ParseAndAdd(data, false, GroupStorage.HEAP), new ParseAndAdd(data, true, GroupStorage.OFF_HEAP));
+    }
+
+    private static void consume(ContributionsRunningData contributionsRunningData, Blackhole blackhole) {
+        ContributionsRunningData.ContributionsByZip contributionsByZip =
+                contributionsRunningData.getCurrentContributionsByZip();
+        if (contributionsByZip != null) {
+            blackhole.consume(contributionsByZip.getRunningMedian());
+            blackhole.consume(contributionsByZip.getRunningTotalTxAmt());
+        }
+    }
+
+    private static class AddContributions implements Benchmark
+    {
+        private final List<Contribution> contributions = new ArrayList<>();
+
+        AddContributions(BenchmarkData data) {
+            for (String line : data.getLines()) {
+                try {
+                    contributions.add(new Contribution(line));
+                } catch (RuntimeException e) {
+                    // log bad contribution row
+                }
+            }
+        }
+
+        @Override
+        public String name() {
+            return "store.contribution";
+        }
+
+        @Override
+        public long run(Blackhole blackhole) {
+            ContributionsStore contributionsStore = new ContributionsStore();
+            for (Contribution contribution : contributions) {
+                consume(contributionsStore.addContribution(contribution), blackhole);
+            }
+            blackhole.consume(contributionsStore);
+            return contributions.size();
+        }
+    }
+
+    private static class ParseAndAdd implements Benchmark
+    {
+        private final BenchmarkData data;
+        private final boolean computeAggregateData;
+        private final GroupStorage groupStorage;
+        private final ContributionRecord record = new ContributionRecord();
+
+        ParseAndAdd(BenchmarkData data, boolean computeAggregateData, GroupStorage groupStorage) {
+            this.data = data;
+            this.computeAggregateData = computeAggregateData;
+            this.groupStorage = groupStorage;
+        }
+
+        @Override
+        public String name() {
+            if (groupStorage == GroupStorage.OFF_HEAP) {
+                return "store.bytes.offheap";
+            }
+            return computeAggregateData ? "store.bytes" : "store.bytes.running";
+        }
+
+        @Override
+        public long run(Blackhole blackhole) {
+            ContributionsStore contributionsStore = new ContributionsStore(computeAggregateData, MedianStoreType.HEAP,
+                    groupStorage == GroupStorage.OFF_HEAP ? MedianStoreType.HEAP : MedianStoreType.SELECTION,
+                    groupStorage);
+            ContributionParser parser = new ContributionParser(contributionsStore.getRecipientDictionary());
+            ByteBuffer bytes = data.getBytes();
+            for (int row = 0; row < data.size(); row++) {
+                if (parser.parse(bytes, data.getLineStart(row), data.getLineEnd(row), record)) {
+                    consume(contributionsStore.addContribution(record), blackhole);
+                }
+            }
+            blackhole.consume(contributionsStore);
+            return data.size();
+        }
+    }
+}
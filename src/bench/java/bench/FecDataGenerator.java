@@ -0,0 +1,156 @@
+package bench;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates synthetic, reproducible FEC individual contribution rows (itcont.txt format)
+ *
+ * The same seed always yields the same rows, so benchmark runs can be repeated offline.
+ * The distributions are modelled on the real files:
+ *  - a few recipients receive most contributions, most recipients only a few
+ *  - zipcodes are mostly 9 digits, some 5 digits, some empty or malformed
+ *  - amounts cluster on round values, with a tail of dollars and cents and some refunds
+ *  - about one row in eight carries an other-id, and a few rows are truncated or malformed
+ *
+ * Usage: java bench.FecDataGenerator rows seed output-file
+ */
+public class FecDataGenerator
+{
+    private static final int RECIPIENTS = 2000;
+    private static final int ZIPCODES = 5000;
+    private static final int[] ROUND_AMOUNTS = { 5, 10, 15, 20, 25, 35, 50, 75, 100, 150, 200, 250, 500, 1000, 2700 };
+    private static final String[] NAMES = { "PEREZ, JOHN A", "DEEHAN, WILLIAM N", "ABBOTT, JOSEPH", "SABOURIN, JAMES",
+            "JONES, MARY", "NGUYEN, LINH", "SMITH, ROBERT", "GARCIA, MARIA" };
+    private static final String[] CITIES = { "LOS ANGELES|CA", "ALPHARETTA|GA", "WOONSOCKET|RI", "LOOKOUT MOUNTAIN|GA",
+            "NEW YORK|NY", "AUSTIN|TX", "SEATTLE|WA", "CHICAGO|IL" };
+    private static final String[] EMPLOYERS = { "RETIRED|RETIRED", "UNUM|SVP, SALES, CL", "CVS HEALTH|PHARMACIST",
+            "SELF-EMPLOYED|ATTORNEY", "NOT EMPLOYED|NOT EMPLOYED", "STATE UNIVERSITY|PROFESSOR" };
+    private static final String[] MALFORMED_ZIPS = { "", "", "1234", "ABCDE", "00000", "0210" };
+    private static final String[] MALFORMED_DATES = { "", "01322017", "13012017", "0101201", "XX122017" };
+    private static final String[] MALFORMED_AMOUNTS = { "", "ABC", "12.5.1", "-", "1E3" };
+
+    private final Random random;
+    private final String[] recipients = new String[RECIPIENTS];
+    private final String[] zipcodes = new String[ZIPCODES];
+    private final StringBuilder row = new StringBuilder(256);
+    private long rowNumber;
+
+    /**
+     * @param seed - seed of the generated rows
+     */
+    public FecDataGenerator(long seed) {
+        random = new Random(seed);
+        for (int i = 0; i < RECIPIENTS; i++) {
+            recipients[i] = String.format("C%08d", random.nextInt(100000000));
+        }
+        for (int i = 0; i < ZIPCODES; i++) {
+            zipcodes[i] = String.format("%05d", 1 + random.nextInt(99999));
+        }
+    }
+
+    /**
+     * @return the next row, without line terminator
+     */
+    public String nextRow() {
+        rowNumber++;
+        row.setLength(0);
+        row.append(recipients[skewed(RECIPIENTS)]).append("|N|M3|P|")
+                .append(201700000000000000L + rowNumber).append("|15|IND|")
+                .append(NAMES[random.nextInt(NAMES.length)]).append('|')
+                .append(CITIES[random.nextInt(CITIES.length)]).append('|')
+                .append(zipcode()).append('|')
+                .append(EMPLOYERS[random.nextInt(EMPLOYERS.length)]).append('|')
+                .append(date()).append('|')
+                .append(amount()).append('|')
+                .append(random.nextInt(8) == 0 ? "C00" + (100000 + random.nextInt(900000)) : "").append('|')
+                .append("SA11AI.").append(rowNumber).append("|1141239|||")
+                .append(4000000000000000000L + rowNumber);
+        if (random.nextInt(500) == 0) {
+            row.setLength(random.nextInt(row.length()));
+        }
+        return row.toString();
+    }
+
+    /**
+     * @param rows - number of rows to generate
+     * @return generated rows, without line terminators
+     */
+    public List<String> rows(int rows) {
+        List<String> generated = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++) {
+            generated.add(nextRow());
+        }
+        return generated;
+    }
+
+    /**
+     * @param rows - number of rows to generate
+     * @param out - writer receiving the rows, one per line
+     * @throws IOException if writing fails
+     */
+    public void write(long rows, Writer out) throws IOException {
+        for (long i = 0; i < rows; i++) {
+            out.write(nextRow());
+            out.write('\n');
+        }
+    }
+
+    /**
+     * Picks an index in [0, bound), low indexes far more often than high ones
+     */
+    private int skewed(int bound) {
+        double uniform = random.nextDouble();
+        return (int) (bound * uniform * uniform * uniform);
+    }
+
+    private String zipcode() {
+        int kind = random.nextInt(100);
+        String zipcode = zipcodes[skewed(ZIPCODES)];
+        if (kind < 70) {
+            return zipcode + String.format("%04d", random.nextInt(10000));
+        } else if (kind < 96) {
+            return zipcode;
+        }
+        return MALFORMED_ZIPS[random.nextInt(MALFORMED_ZIPS.length)];
+    }
+
+    private String date() {
+        if (random.nextInt(100) < 3) {
+            return MALFORMED_DATES[random.nextInt(MALFORMED_DATES.length)];
+        }
+        return String.format("%02d%02d%04d", 1 + random.nextInt(12), 1 + random.nextInt(28),
+                2017 + random.nextInt(2));
+    }
+
+    private String amount() {
+        int kind = random.nextInt(100);
+        if (kind < 55) {
+            return Integer.toString(ROUND_AMOUNTS[skewed(ROUND_AMOUNTS.length)]);
+        } else if (kind < 80) {
+            return Integer.toString(1 + random.nextInt(3000));
+        } else if (kind < 96) {
+            return String.format("%d.%02d", random.nextInt(3000), random.nextInt(100));
+        } else if (kind < 98) {
+            return "-" + ROUND_AMOUNTS[random.nextInt(ROUND_AMOUNTS.length)];
+        }
+        return MALFORMED_AMOUNTS[random.nextInt(MALFORMED_AMOUNTS.length)];
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.out.println("Usage: java bench.FecDataGenerator <rows> <seed> <output-file>");
+            return;
+        }
+        try (BufferedWriter out = Files.newBufferedWriter(Paths.get(args[2]), StandardCharsets.UTF_8)) {
+            new FecDataGenerator(Long.parseLong(args[1])).write(Long.parseLong(args[0]), out);
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package bench;
+
+import payloads.ContributionParser;
+import payloads.ContributionRecord;
+import util.MedianHeapStore;
+import util.MedianStore;
+import util.MedianStoreType;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Benchmarks adding amounts to median stores and computing their medians, one operation per amount
+ *
+ * The amounts, in cents, are the valid amounts of the input rows. They are split into groups whose
+ * sizes follow one of three distributions:
+ *  - small: 1 to 8 amounts, like most recipient/zipcode groups
+ *  - skewed: power-law sizes, a few large groups among many small ones, like recipient/date groups
+ *  - large: a single group holding every amount
+ *
+ * Two access patterns are measured:
+ *  - running: the median is computed after every add, as for medianvals_by_zip.txt
+ *  - final: the median is computed once the group is complete, as for medianvals_by_date.txt
+ *
+ * The boxed MedianHeapStore is the original store, kept as reference for the primitive stores.
+ * The selection store is not measured in the running pattern, as it is O(n) per median.
+ */
+public class MedianStoreBenchmarks
+{
+    private static final int AMOUNTS = 200000;
+    private static final int MAX_SKEWED_GROUP = 20000;
+
+    private MedianStoreBenchmarks() {
+    }
+
+    public static List<Benchmark> create(BenchmarkData data) {
+        long[] amounts = amounts(data);
+        Random random = new Random(amounts.length);
+        List<Benchmark> benchmarks = new ArrayList<>();
+        for (String distribution : Arrays.asList("small", "skewed", "large")) {
+            int[] groupSizes = groupSizes(distribution, random);
+            for (boolean running : new boolean[] { true, false }) {
+                benchmarks.add(new BoxedHeap(distribution, groupSizes, amounts, running));
+                for (MedianStoreType type : MedianStoreType.values()) {
+                    if (!running || type != MedianStoreType.SELECTION) {
+                        benchmarks.add(new PrimitiveStore(distribution, groupSizes, amounts, running, type));
+                    }
+                }
+            }
+        }
+        return benchmarks;
+    }
+
+    private static long[] amounts(BenchmarkData data) {
+        ContributionParser parser = new ContributionParser();
+        ContributionRecord record = new ContributionRecord();
+        ByteBuffer bytes = data.getBytes();
+        long[] amounts = new long[AMOUNTS];
+        int size = 0;
+        for (int row = 0; row < data.size() && size < AMOUNTS; row++) {
+            if (parser.parse(bytes, data.getLineStart(row), data.getLineEnd(row), record)) {
+                amounts[size++] = record.getTxAmountCents();
+            }
+        }
+        // fewer rows than amounts, repeat them
+        for (int i = size; i < AMOUNTS && size > 0; i++) {
+            amounts[i] = amounts[i - size];
+        }
+        return amounts;
+    }
+
+    private static int[] groupSizes(String distribution, Random random) {
+        List<Integer> sizes = new ArrayList<>();
+        int remaining = AMOUNTS;
+        while (remaining > 0) {
+            int size;
+            if (distribution.equals("small")) {
+                size = 1 + random.nextInt(8);
+            } else if (distribution.equals("skewed")) {
+                size = (int) Math.min(MAX_SKEWED_GROUP, Math.pow(1 - random.nextDouble(), -1 / 1.1));
+            } else {
+                size = AMOUNTS;
+            }
+            size = Math.min(size, remaining);
+            sizes.add(size);
+            remaining -= size;
+        }
+        int[] groupSizes = new int[sizes.size()];
+        for (int i = 0; i < groupSizes.length; i++) {
+            groupSizes[i] = sizes.get(i);
+        }
+        return groupSizes;
+    }
+
+    private static class PrimitiveStore implements Benchmark
+    {
+        private final String name;
+        private final int[] groupSizes;
+        private final long[] amounts;
+        private final boolean running;
+        private final MedianStoreType type;
+
+        PrimitiveStore(String distribution, int[] groupSizes, long[] amounts, boolean running,
+                       MedianStoreType type) {
+            this.name = "median." + (running ? "running." : "final.") + distribution + "." +
+                    type.name().toLowerCase();
+            this.groupSizes = groupSizes;
+            this.amounts = amounts;
+            this.running = running;
+            this.type = type;
+        }
+
+        @Override
+        public String name() {
+            return name;
+        }
+
+        @Override
+        public long run(Blackhole blackhole) {
+            int next = 0;
+            for (int groupSize : groupSizes) {
+                MedianStore store = type.create();
+                for (int i = 0; i < groupSize; i++) {
+                    store.add(amounts[next++]);
+                    if (running) {
+                        blackhole.consume(store.getDoubledMedian());
+                    }
+                }
+                if (!running) {
+                    blackhole.consume(store.getDoubledMedian());
+                }
+            }
+            return next;
+        }
+    }
+
+    private static class BoxedHeap implements Benchmark
+    {
+        private final String name;
+        private final int[] groupSizes;
+        private final long[] amounts;
+        private final boolean running;
+
+        BoxedHeap(String distribution, int[] groupSizes, long[] amounts, boolean running) {
+            this.name = "median." + (running ? "running." : "final.") + distribution + ".boxed";
+            this.groupSizes = groupSizes;
+            this.amounts = amounts;
+            this.running = running;
+        }
+
+        @Override
+        public String name() {
+            return name;
+        }
+
+        @Override
+        public long run(Blackhole blackhole) {
+            int next = 0;
+            for (int groupSize : groupSizes) {
+                MedianHeapStore store = new MedianHeapStore();
+                for (int i = 0; i < groupSize; i++) {
+                    store.add((double) amounts[next++]);
+                    if (running) {
+                        blackhole.consume(store.getMedian());
+                    }
+                }
+                if (!running) {
+                    blackhole.consume(store.getMedian());
+                }
+            }
+            return next;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package bench;
+
+import payloads.Contribution;
+import payloads.ContributionParser;
+import payloads.ContributionRecord;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Benchmarks parsing the rows into contributions, one operation per row
+ *
+ *  - parse.contribution: the String based Contribution payload, as used by --reader=lines
+ *  - parse.bytes: the byte-level ContributionParser, as used by --reader=bytes and --reader=mmap
+ */
+public class ParsingBenchmarks
+{
+    private ParsingBenchmarks() {
+    }
+
+    public static List<Benchmark> create(BenchmarkData data) {
+        return Arrays.asList(new ContributionConstruction(data), new ByteParsing(data));
+    }
+
+    private static class ContributionConstruction implements Benchmark
+    {
+        private final List<String> lines;
+
+        ContributionConstruction(BenchmarkData data) {
+            lines = data.getLines();
+        }
+
+        @Override
+        public String name() {
+            return "parse.contribution";
+        }
+
+        @Override
+        public long run(Blackhole blackhole) {
+            for (String line : lines) {
+                try {
+                    Contribution contribution = new Contribution(line);
+                    blackhole.consume(contribution.getRecipientId());
+                    blackhole.consume(contribution.getContributorZip());
+                    blackhole.consume(contribution.getTxDatePacked());
+                    blackhole.consume(contribution.getTxAmountCents());
+                } catch (RuntimeException e) {
+                    // malformed rows are skipped the same way PoliticalContributionAnalysis does
+                    blackhole.consume(e);
+                }
+            }
+            return lines.size();
+        }
+    }
+
+    private static class ByteParsing implements Benchmark
+    {
+        private final BenchmarkData data;
+        private final ContributionParser parser = new ContributionParser();
+        private final ContributionRecord record = new ContributionRecord();
+
+        ByteParsing(BenchmarkData data) {
+            this.data = data;
+        }
+
+        @Override
+        public String name() {
+            return "parse.bytes";
+        }
+
+        @Override
+        public long run(Blackhole blackhole) {
+            ByteBuffer bytes = data.getBytes();
+            for (int row = 0; row < data.size(); row++) {
+                if (parser.parse(bytes, data.getLineStart(row), data.getLineEnd(row), record)) {
+                    blackhole.consume(record.getRecipientIndex());
+                    blackhole.consume(record.getContributorZipCode());
+                    blackhole.consume(record.getTxDate());
+                    blackhole.consume(record.getTxAmountCents());
+                }
+            }
+            return data.size();
+        }
+    }
+}
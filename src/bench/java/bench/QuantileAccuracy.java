@@ -0,0 +1,284 @@
+package bench;
+
+import payloads.ContributionParser;
+import payloads.ContributionRecord;
+import util.GroupKey;
+import util.KllSketch;
+import util.LongIntHashMap;
+import util.QuantileStore;
+import util.SelectionMedianStore;
+import util.TopKTotals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures the accuracy and memory of the KllSketch and TopKTotals against the exact stores,
+ * on the valid contributions of the input rows grouped by recipient
+ *
+ *  - quantiles: for every sketch size, the rank error of p50, p90 and p99 of every group, that is
+ *    how far the sketch's value is from the asked rank as a fraction of the group's size,
+ *    and the bytes held by the sketches against the 8 bytes per amount of the exact SelectionMedianStore
+ *  - top donors: for every top count and number of counters per donor reported, with a donor identified
+ *    by name and zipcode, the share of each group's true top donors that TopKTotals reports,
+ *    and the largest error of a reported total
+ *
+ * Usage: java bench.QuantileAccuracy [rows [seed]] or java bench.QuantileAccuracy --input=FILE
+ */
+public class QuantileAccuracy
+{
+    // 0 for the exact SelectionMedianStore
+    private static final int[] SKETCH_SIZES = { 0, 50, 100, 200, 400 };
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99 };
+    private static final int[] TOP_COUNTS = { 3, 10 };
+    private static final int[] COUNTERS_PER_DONOR = { 4, 16 };
+    // groups smaller than this are exact in every sketch and left out of the errors
+    private static final int MIN_GROUP = 1000;
+
+    private final List<long[]> amountsByGroup = new ArrayList<>();
+    private final List<int[]> donorsByGroup = new ArrayList<>();
+
+    private QuantileAccuracy() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        BenchmarkData data;
+        if (args.length > 0 && args[0].startsWith("--input=")) {
+            data = BenchmarkData.read(Paths.get(args[0].substring("--input=".length())));
+        } else {
+            int rows = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+            long seed = args.length > 1 ? Long.parseLong(args[1]) : 42;
+            data = BenchmarkData.generate(rows, seed);
+        }
+        QuantileAccuracy accuracy = new QuantileAccuracy();
+        accuracy.group(data);
+        accuracy.reportQuantiles();
+        accuracy.reportTopDonors();
+    }
+
+    /**
+     * Splits the amounts and donors of the valid rows by recipient, donors get an id per name and zipcode
+     */
+    private void group(BenchmarkData data) {
+        ContributionParser parser = new ContributionParser();
+        ContributionRecord record = new ContributionRecord();
+        ByteBuffer bytes = data.getBytes();
+        LongIntHashMap donorIds = new LongIntHashMap();
+        List<long[]> amounts = new ArrayList<>();
+        List<int[]> donors = new ArrayList<>();
+        List<Integer> sizes = new ArrayList<>();
+        for (int row = 0; row < data.size(); row++) {
+            if (!parser.parse(bytes, data.getLineStart(row), data.getLineEnd(row), record)) {
+                continue;
+            }
+            int group = record.getRecipientIndex();
+            while (amounts.size() <= group) {
+                amounts.add(new long[16]);
+                donors.add(new int[16]);
+                sizes.add(0);
+            }
+            int size = sizes.get(group);
+            if (size == amounts.get(group).length) {
+                amounts.set(group, Arrays.copyOf(amounts.get(group), size * 2));
+                donors.set(group, Arrays.copyOf(donors.get(group), size * 2));
+            }
+            amounts.get(group)[size] = record.getTxAmountCents();
+            donors.get(group)[size] = donorId(donorIds, data.getLines().get(row), record.getContributorZipCode());
+            sizes.set(group, size + 1);
+        }
+        for (int group = 0; group < amounts.size(); group++) {
+            amountsByGroup.add(Arrays.copyOf(amounts.get(group), sizes.get(group)));
+            donorsByGroup.add(Arrays.copyOf(donors.get(group), sizes.get(group)));
+        }
+    }
+
+    private static int donorId(LongIntHashMap donorIds, String line, int zip) {
+        int nameStart = 0;
+        for (int column = 0; column < 7; column++) {
+            nameStart = line.indexOf('|', nameStart) + 1;
+        }
+        int nameEnd = line.indexOf('|', nameStart);
+        long key = GroupKey.of(line.substring(nameStart, nameEnd).hashCode() & Integer.MAX_VALUE, Math.max(zip, 0));
+        int id = donorIds.get(key);
+        if (id == LongIntHashMap.NOT_FOUND) {
+            id = donorIds.size();
+            donorIds.put(key, id);
+        }
+        return id;
+    }
+
+    private void reportQuantiles() {
+        long amounts = 0;
+        int groups = 0;
+        int measured = 0;
+        for (long[] group : amountsByGroup) {
+            amounts += group.length;
+            groups += group.length > 0 ? 1 : 0;
+            measured += group.length >= MIN_GROUP ? 1 : 0;
+        }
+        System.out.printf("%d amounts in %d groups, %d groups of at least %d amounts measured%n",
+                amounts, groups, measured, MIN_GROUP);
+        System.out.printf("%-10s %12s %12s", "store", "bytes", "max-group");
+        for (double quantile : QUANTILES) {
+            System.out.printf(" %9s %9s", "p" + Math.round(quantile * 100) + "-mean", "p" + Math.round(quantile * 100) + "-max");
+        }
+        System.out.println();
+        for (int sketchSize : SKETCH_SIZES) {
+            long bytes = 0;
+            long largestBytes = 0;
+            double[] errorSums = new double[QUANTILES.length];
+            double[] maxErrors = new double[QUANTILES.length];
+            for (long[] group : amountsByGroup) {
+                if (group.length == 0) {
+                    continue;
+                }
+                QuantileStore store = sketchSize == 0 ? new SelectionMedianStore() : new KllSketch(sketchSize);
+                for (long amount : group) {
+                    store.add(amount);
+                }
+                // the exact store keeps 8 bytes per amount, not counting the slack of its growing array
+                long storeBytes = sketchSize == 0 ? 16 + 8L * group.length : ((KllSketch) store).retainedBytes();
+                bytes += storeBytes;
+                largestBytes = Math.max(largestBytes, storeBytes);
+                if (group.length < MIN_GROUP) {
+                    continue;
+                }
+                long[] sorted = group.clone();
+                Arrays.sort(sorted);
+                for (int i = 0; i < QUANTILES.length; i++) {
+                    double error = rankError(sorted, QUANTILES[i], store);
+                    errorSums[i] += error;
+                    maxErrors[i] = Math.max(maxErrors[i], error);
+                }
+            }
+            System.out.printf("%-10s %12d %12d", sketchSize == 0 ? "exact" : "kll-" + sketchSize, bytes, largestBytes);
+            for (int i = 0; i < QUANTILES.length; i++) {
+                System.out.printf(" %8.3f%% %8.3f%%", 100 * errorSums[i] / Math.max(measured, 1), 100 * maxErrors[i]);
+            }
+            System.out.println();
+        }
+    }
+
+    /**
+     * @return distance of the asked rank to the ranks the store's value holds in the sorted amounts,
+     *         as a fraction of their number, 0 if the value holds the asked rank
+     */
+    private static double rankError(long[] sorted, double quantile, QuantileStore store) {
+        long rank = QuantileStore.rankOf(quantile, sorted.length);
+        long value = store.getQuantile(quantile);
+        int firstRank = lowerBound(sorted, value) + 1;
+        int lastRank = lowerBound(sorted, value + 1);
+        long distance = rank < firstRank ? firstRank - rank : rank > lastRank ? rank - lastRank : 0;
+        return (double) distance / sorted.length;
+    }
+
+    private static int lowerBound(long[] sorted, long value) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (sorted[middle] < value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private void reportTopDonors() {
+        System.out.printf("%n%-10s %12s %12s %10s %10s %10s%n", "top", "exact-bytes", "bytes", "recall",
+                "kept>N/c", "max-error");
+        for (int topCount : TOP_COUNTS) {
+            for (int countersPerDonor : COUNTERS_PER_DONOR) {
+                reportTopDonors(topCount, countersPerDonor);
+            }
+        }
+    }
+
+    /**
+     * recall is the share of the true top donors reported, kept>N/c the share of the donors whose total is above
+     * the group's total divided by the counters that hold a counter, which Space-Saving guarantees,
+     * and max-error the largest over-estimate of a reported total, as a share of the group's total
+     */
+    private void reportTopDonors(int topCount, int countersPerDonor) {
+        long exactBytes = 0;
+        long bytes = 0;
+        long found = 0;
+        long expected = 0;
+        long heavyFound = 0;
+        long heavyExpected = 0;
+        double maxError = 0;
+        int[] topIds = new int[topCount];
+        long[] topTotals = new long[topCount];
+        for (int g = 0; g < amountsByGroup.size(); g++) {
+            long[] amounts = amountsByGroup.get(g);
+            int[] donors = donorsByGroup.get(g);
+            TopKTotals top = new TopKTotals(topCount * countersPerDonor);
+            LongIntHashMap exactIds = new LongIntHashMap();
+            int[] exactDonors = new int[amounts.length];
+            long[] exactTotals = new long[amounts.length];
+            long groupTotal = 0;
+            for (int i = 0; i < amounts.length; i++) {
+                top.add(donors[i], amounts[i]);
+                if (amounts[i] > 0) {
+                    int id = exactIds.get(donors[i]);
+                    if (id == LongIntHashMap.NOT_FOUND) {
+                        id = exactIds.size();
+                        exactIds.put(donors[i], id);
+                        exactDonors[id] = donors[i];
+                    }
+                    exactTotals[id] += amounts[i];
+                    groupTotal += amounts[i];
+                }
+            }
+            if (groupTotal == 0) {
+                continue;
+            }
+            // a primitive map of donor to total costs at least 16 bytes per donor
+            exactBytes += 16L * exactIds.size();
+            bytes += top.retainedBytes();
+            TopKTotals exact = new TopKTotals(exactIds.size());
+            for (int id = 0; id < exactIds.size(); id++) {
+                exact.add(exactDonors[id], exactTotals[id]);
+            }
+            int[] trueIds = new int[topCount];
+            long[] trueTotals = new long[topCount];
+            int trueCount = exact.top(trueIds, trueTotals);
+            int reported = top.top(topIds, topTotals);
+            LongIntHashMap reportedIds = new LongIntHashMap();
+            for (int i = 0; i < reported; i++) {
+                reportedIds.put(topIds[i], i);
+                long trueTotal = exactTotals[exactIds.get(topIds[i])];
+                maxError = Math.max(maxError, (double) (topTotals[i] - trueTotal) / groupTotal);
+            }
+            for (int i = 0; i < trueCount; i++) {
+                // a donor tied with the last true top donor counts as found
+                boolean isFound = reportedIds.get(trueIds[i]) != LongIntHashMap.NOT_FOUND
+                        || reported > 0 && exactTotals[exactIds.get(topIds[reported - 1])] == trueTotals[i];
+                found += isFound ? 1 : 0;
+                expected++;
+            }
+            int counters = topCount * countersPerDonor;
+            int[] keptIds = new int[counters];
+            int kept = top.top(keptIds, new long[counters]);
+            LongIntHashMap keptSet = new LongIntHashMap();
+            for (int i = 0; i < kept; i++) {
+                keptSet.put(keptIds[i], i);
+            }
+            for (int id = 0; id < exactIds.size(); id++) {
+                if (exactTotals[id] > groupTotal / counters) {
+                    heavyFound += keptSet.get(exactDonors[id]) != LongIntHashMap.NOT_FOUND ? 1 : 0;
+                    heavyExpected++;
+                }
+            }
+        }
+        System.out.printf("%-10s %12d %12d %9.2f%% %10s %9.3f%%%n", "top" + topCount + "x" + countersPerDonor,
+                exactBytes, bytes, 100.0 * found / expected,
+                heavyExpected == 0 ? "-" : String.format("%.2f%%", 100.0 * heavyFound / heavyExpected), 100 * maxError);
+    }
+}
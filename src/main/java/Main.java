@@ -1,11 +1,38 @@
+import analysis.AnalysisOptions;
+import analysis.ContributionPipeline;
+import analysis.ContributionService;
 import analysis.PoliticalContributionAnalysis;
+import analysis.QueryServer;
+import datastore.ContributionsCheckpoint;
+import datastore.ContributionsStore;
+import datastore.ContributionsViews;
+import datastore.ParallelAggregateBuilder;
+import ingest.CompressedFileReader;
+import ingest.ContributionsCache;
+import ingest.InputCompression;
+import ingest.MappedFileReader;
+import ingest.StreamLineReader;
+import metrics.IngestMetrics;
+import payloads.RejectReason;
+import util.AsciiRowWriter;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Stream;
 
 /**
@@ -27,32 +54,455 @@ public class Main
     private static final String MEDIANS_BY_ZIP = "medianvals_by_zip.txt";
     private static final String MEDIANS_BY_DATE = "medianvals_by_date.txt";
 
+    private static final String BATCH_OPTION = "--batch=";
+
     public static void main(String[] args) {
-        if (args.length != 3) {
-          System.out.println("USAGE: Main <input-file> <output-zip-file> <output-date-file>");
+        if (args.length > 0 && args[0].startsWith(BATCH_OPTION)) {
+            runBatch(args);
+            return;
+        }
+        AnalysisOptions options = null;
+        try {
+            options = args.length >= 3 ? AnalysisOptions.parse(Arrays.copyOfRange(args, 3, args.length)) : null;
+        } catch (IllegalArgumentException iae) {
+            System.out.println(iae.getMessage());
+        }
+        if (options == null) {
+          printUsage();
           System.exit(0);
         }
-        final String INPUT_PATH = args[0];
-        final String OUTPUT_ZIP_FILE_PATH = args[1];
-        final String OUTPUT_DATE_FILE_PATH = args[2];
+        analyze(args[0], args[1], args[2], options);
+    }
+
+    private static void printUsage() {
+        System.out.println("USAGE: Main <input-file> <output-zip-file> <output-date-file> " + AnalysisOptions.USAGE);
+        System.out.println("       Main " + BATCH_OPTION + "<input-dir>|<manifest-file> <output-dir> "
+                + AnalysisOptions.USAGE + " " + AnalysisOptions.BATCH_USAGE);
+    }
 
-        try (FileWriter fwZip = new FileWriter(OUTPUT_ZIP_FILE_PATH);
-             BufferedWriter bwZip = new BufferedWriter(fwZip); PrintWriter outZip = new PrintWriter(bwZip);
-             FileWriter fwDate = new FileWriter(OUTPUT_DATE_FILE_PATH);
-             BufferedWriter bwDate = new BufferedWriter(fwDate); PrintWriter outDate = new PrintWriter(bwDate)) {
+    /**
+     * Analyzes an input to its output files, the whole run of a single input or one input of a batch
+     *
+     * @return metrics of the run, or null if the input could not be read
+     */
+    private static IngestMetrics analyze(String inputPath, String zipFilePath, String dateFilePath,
+                                         AnalysisOptions options) {
+        try (AsciiRowWriter outZip = AsciiRowWriter.open(Paths.get(zipFilePath),
+                                                         options.getOutputBufferSize());
+             AsciiRowWriter outDate = AsciiRowWriter.open(Paths.get(dateFilePath),
+                                                          options.getOutputBufferSize())) {
 
-            PoliticalContributionAnalysis politicalContributionAnalysis =
-                    new PoliticalContributionAnalysis(outZip, outDate);
+            if (options.getDateThreads() > 0 && isCompressed(inputPath)) {
+                System.out.println("--date-threads maps the input file, it can not read compressed input");
+                return null;
+            }
+            ContributionsStore contributionsStore = newStore(options);
+            if (options.getDateSpillBytes() > 0) {
+                contributionsStore.spillAggregateData(options.getDateSpillBytes(), options.getSpillDirectory());
+            }
+            if (options.getResumeCheckpoint() != null) {
+                try {
+                    ContributionsCheckpoint.load(contributionsStore, options.getResumeCheckpoint());
+                } catch (IOException ioe) {
+                    System.out.println("Failed to load checkpoint " + options.getResumeCheckpoint()
+                            + ": " + ioe.getMessage());
+                    return null;
+                }
+            }
+            IngestMetrics metrics = new IngestMetrics(contributionsStore);
+            if (!options.isBatch()) {
+                // the inputs of a batch run at the same time, each would replace the MBean of the others
+                metrics.registerMBean();
+            }
+            if (options.getMetricsIntervalSeconds() > 0) {
+                metrics.startReporting(options.getMetricsIntervalSeconds(), System.out);
+            }
+            ContributionsViews contributionsViews = options.getViews().isEmpty() ? null
+                    : ContributionsViews.open(options.getViews(), contributionsStore.getRecipientDictionary(),
+                                              options.getOutputBufferSize());
+            Path cacheFile = options.getCacheFile(inputPath);
+            boolean replayCache = cacheFile != null && ContributionsCache.isCurrent(cacheFile, Paths.get(inputPath));
+            ContributionsCache.Writer cacheWriter = null;
+            if (cacheFile != null && !replayCache) {
+                try {
+                    cacheWriter = new ContributionsCache.Writer(cacheFile, Paths.get(inputPath));
+                } catch (NoSuchFileException nsfe) {
+                    // a missing input is reported once it is read
+                } catch (IOException ioe) {
+                    System.out.println("Failed to create cache " + cacheFile + ": " + ioe.getMessage());
+                }
+            }
+            PoliticalContributionAnalysis politicalContributionAnalysis = new PoliticalContributionAnalysis(
+                    outZip, outDate, contributionsStore, new PoliticalContributionAnalysis.Options()
+                            .metrics(metrics).views(contributionsViews).cache(cacheWriter));
 
-            try (Stream<String> stream = Files.lines(Paths.get(INPUT_PATH))) {
-                stream.forEach(politicalContributionAnalysis::processEachContribution);
+            boolean inputRead = true;
+            try {
+                ParallelAggregateBuilder aggregateBuilder = options.getDateThreads() > 0
+                        ? ParallelAggregateBuilder.start(Paths.get(inputPath), options.getDateThreads(),
+                                options.getReadChunkSize(ParallelAggregateBuilder.DEFAULT_CHUNK_SIZE),
+                                options.getDateMedianStoreType(), contributionsStore)
+                        : null;
+                if (options.getServePort() > 0) {
+                    serve(inputPath, options, politicalContributionAnalysis, contributionsStore, outZip, metrics);
+                } else if (options.getParseThreads() > 0) {
+                    new ContributionPipeline(contributionsStore, outZip, options.getParseThreads(),
+                                             options.getZipShards(),
+                                             options.getReadChunkSize(ContributionPipeline.DEFAULT_CHUNK_SIZE), metrics)
+                            .process(Paths.get(inputPath));
+                } else if (replayCache) {
+                    inputRead = replayCache(cacheFile, politicalContributionAnalysis, contributionsStore, metrics);
+                } else {
+                    readInput(inputPath, options, politicalContributionAnalysis);
+                    if (cacheWriter != null) {
+                        finishCache(cacheWriter, cacheFile);
+                    }
+                }
+                if (aggregateBuilder != null) {
+                    aggregateBuilder.mergeInto(contributionsStore);
+                }
             } catch (IOException ioe) {
-                System.out.println("Failed to open input file " + INPUT_PATH);
+                System.out.println("Failed to open input file " + inputPath);
+                inputRead = false;
+            } finally {
+                if (cacheWriter != null) {
+                    closeCache(cacheWriter, cacheFile);
+                }
             }
-            politicalContributionAnalysis.processAllContributions();
+            metrics.stopReporting();
+            if (options.isMetricsSummary() && !options.isBatch()) {
+                System.out.println(metrics.getSummary());
+            }
+            if (options.getSaveCheckpoint() != null) {
+                try {
+                    ContributionsCheckpoint.save(contributionsStore, options.getSaveCheckpoint());
+                } catch (IOException ioe) {
+                    System.out.println("Failed to save checkpoint " + options.getSaveCheckpoint());
+                }
+            }
+            try {
+                politicalContributionAnalysis.processAllContributions();
+            } catch (IOException ioe) {
+                System.out.println("Failed to merge the spilled contributions by date: " + ioe.getMessage());
+            }
+            if (outZip.checkError() || outDate.checkError()
+                    || contributionsViews != null && contributionsViews.checkError()) {
+                System.out.println("Failed to write output files.. ");
+            }
+            if (contributionsViews != null) {
+                contributionsViews.close();
+            }
+            return inputRead ? metrics : null;
 
         } catch (IOException ioe) {
             System.out.println("Failed to locate output files.. ");
+            return null;
+        }
+    }
+
+    private static ContributionsStore newStore(AnalysisOptions options) {
+        return new ContributionsStore(options.getDateThreads() == 0, options.getZipMedianStoreType(),
+                options.getDateMedianStoreType(), options.getGroupStorage());
+    }
+
+    /**
+     * Analyzes every input of a directory or manifest file, each to the medianvals files of its own directory
+     * under the output directory, named after the input without its extensions. Inputs are analyzed at the same
+     * time on a fixed number of threads of the one JVM, sharing the code compiled while warming up.
+     */
+    private static void runBatch(String[] args) {
+        AnalysisOptions options = null;
+        try {
+            options = args.length >= 2 ? AnalysisOptions.parseBatch(Arrays.copyOfRange(args, 2, args.length)) : null;
+        } catch (IllegalArgumentException iae) {
+            System.out.println(iae.getMessage());
+        }
+        if (options == null) {
+            printUsage();
+            System.exit(0);
+        }
+        Path source = Paths.get(args[0].substring(BATCH_OPTION.length()));
+        Path outputDirectory = Paths.get(args[1]);
+        List<Path> inputs;
+        List<Path> outputDirectories = new ArrayList<>();
+        try {
+            inputs = listBatchInputs(source);
+            Set<String> names = new HashSet<>();
+            for (Path input : inputs) {
+                String name = batchOutputName(input);
+                if (!names.add(name)) {
+                    System.out.println("Batch inputs " + input + " and another one would both write to " + name);
+                    return;
+                }
+                outputDirectories.add(Files.createDirectories(outputDirectory.resolve(name)));
+            }
+        } catch (IOException ioe) {
+            System.out.println("Failed to prepare batch " + source + ": " + ioe.getMessage());
+            return;
+        }
+        if (inputs.isEmpty()) {
+            System.out.println("No batch inputs in " + source);
+            return;
+        }
+
+        long warmUpStarted = System.nanoTime();
+        warmUp(inputs.get(0), options);
+        long started = System.nanoTime();
+        int threads = Math.min(options.getBatchThreads(), inputs.size());
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<BatchResult>> results = new ArrayList<>();
+        for (int i = 0; i < inputs.size(); i++) {
+            Path input = inputs.get(i);
+            Path output = outputDirectories.get(i);
+            AnalysisOptions inputOptions = options;
+            results.add(executor.submit(() -> {
+                long inputStarted = System.nanoTime();
+                IngestMetrics metrics = analyze(input.toString(), output.resolve(MEDIANS_BY_ZIP).toString(),
+                        output.resolve(MEDIANS_BY_DATE).toString(), inputOptions);
+                return new BatchResult(input, metrics, System.nanoTime() - inputStarted);
+            }));
+        }
+        executor.shutdown();
+
+        long rows = 0;
+        long accepted = 0;
+        long bytes = 0;
+        long inputNanos = 0;
+        int failed = 0;
+        for (Future<BatchResult> future : results) {
+            BatchResult result;
+            try {
+                result = future.get();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                executor.shutdownNow();
+                return;
+            } catch (ExecutionException ee) {
+                System.out.println("Failed to analyze batch input: " + ee.getCause());
+                failed++;
+                continue;
+            }
+            if (result.metrics == null) {
+                failed++;
+                continue;
+            }
+            rows += result.metrics.getRowsRead();
+            accepted += result.metrics.getRowsAccepted();
+            bytes += result.input.toFile().length();
+            inputNanos += result.nanos;
+            System.out.printf("%s: %d rows in %.2f s%n", result.input, result.metrics.getRowsRead(),
+                    result.nanos / 1e9);
+            if (options.isMetricsSummary()) {
+                System.out.println(result.metrics.getSummary());
+            }
+        }
+        double seconds = (System.nanoTime() - started) / 1e9;
+        System.out.printf("batch: %d inputs (%d failed), %d rows (%d accepted), %d MB in %.2f s on %d threads:"
+                        + " %.0f rows/s, %.1f MB/s, %.2f s of analysis per input on average, after %.2f s of warm-up%n",
+                inputs.size(), failed, rows, accepted, bytes >> 20, seconds, threads, rows / seconds,
+                (bytes >> 20) / seconds, inputNanos / 1e9 / Math.max(inputs.size() - failed, 1),
+                (started - warmUpStarted) / 1e9);
+    }
+
+    /**
+     * @param source - directory of inputs, or manifest file listing an input per line,
+     *                 relative to its own directory, blank lines and lines starting with # ignored
+     * @return the inputs, those of a directory sorted by name without the caches of --cache=auto
+     */
+    private static List<Path> listBatchInputs(Path source) throws IOException {
+        List<Path> inputs = new ArrayList<>();
+        if (Files.isDirectory(source)) {
+            try (Stream<Path> files = Files.list(source)) {
+                files.filter(Files::isRegularFile)
+                        .filter(file -> !file.toString().endsWith(".cache") && !file.toString().endsWith(".tmp"))
+                        .sorted()
+                        .forEach(inputs::add);
+            }
+            return inputs;
+        }
+        Path manifestDirectory = source.toAbsolutePath().getParent();
+        for (String line : Files.readAllLines(source)) {
+            String input = line.trim();
+            if (!input.isEmpty() && !input.startsWith("#")) {
+                inputs.add(manifestDirectory.resolve(input).normalize());
+            }
+        }
+        return inputs;
+    }
+
+    /**
+     * @return file name of the input without its compression extension and its own extension
+     */
+    private static String batchOutputName(Path input) {
+        String name = input.getFileName().toString();
+        for (String extension : new String[] { ".gz", ".zip" }) {
+            if (name.endsWith(extension)) {
+                name = name.substring(0, name.length() - extension.length());
+            }
+        }
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    /**
+     * Analyzes the first rows of an input once, with the same options and readers as the batch, discarding the results,
+     * so that the code parsing and storing rows is compiled before the batch starts rather than while every thread
+     * runs it cold at the same time
+     */
+    private static void warmUp(Path input, AnalysisOptions options) {
+        if (options.getBatchWarmupBytes() == 0) {
+            return;
+        }
+        Path directory = null;
+        try {
+            directory = Files.createTempDirectory("batch-warmup");
+            Path rows = directory.resolve("rows.txt");
+            try (InputStream inputStream = InputCompression.openDecompressed(input)) {
+                byte[] bytes = inputStream.readNBytes((int) Math.min(options.getBatchWarmupBytes(), Integer.MAX_VALUE));
+                int length = bytes.length;
+                while (length > 0 && bytes[length - 1] != '\n' && bytes[length - 1] != '\r') {
+                    length--;
+                }
+                Files.write(rows, Arrays.copyOf(bytes, length));
+            }
+            analyze(rows.toString(), directory.resolve(MEDIANS_BY_ZIP).toString(),
+                    directory.resolve(MEDIANS_BY_DATE).toString(), options);
+        } catch (IOException ioe) {
+            // the batch runs cold, a failing input is reported once it is analyzed
+        } finally {
+            if (directory != null) {
+                deleteRecursively(directory);
+            }
+        }
+    }
+
+    private static void deleteRecursively(Path directory) {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        } catch (IOException ioe) {
+            System.out.println("Failed to delete " + directory);
+        }
+    }
+
+    private static class BatchResult
+    {
+        private final Path input;
+        private final IngestMetrics metrics;
+        private final long nanos;
+
+        private BatchResult(Path input, IngestMetrics metrics, long nanos) {
+            this.input = input;
+            this.metrics = metrics;
+            this.nanos = nanos;
+        }
+    }
+
+    /**
+     * Ingests the input and answers queries on the query port till the input ends or a SHUTDOWN query
+     */
+    private static void serve(String input, AnalysisOptions options,
+                              PoliticalContributionAnalysis politicalContributionAnalysis,
+                              ContributionsStore contributionsStore, AsciiRowWriter outZip,
+                              IngestMetrics metrics) {
+        ContributionService contributionService = new ContributionService(politicalContributionAnalysis,
+                contributionsStore, outZip, metrics, options.getReportDirectory());
+        QueryServer queryServer;
+        try {
+            queryServer = QueryServer.start(contributionService, options.getServePort());
+        } catch (IOException ioe) {
+            System.out.println("Failed to start service: " + ioe.getMessage());
+            return;
+        }
+        try {
+            contributionService.startIngesting(input);
+            contributionService.run();
+        } catch (IOException ioe) {
+            System.out.println("Failed to start service: " + ioe.getMessage());
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                queryServer.close();
+            } catch (IOException ioe) {
+                // stops accepting queries either way
+            }
+        }
+    }
+
+    /**
+     * Feeds the rows of a current cache to the analysis instead of parsing the input
+     *
+     * @return false if the cache could not be read
+     */
+    private static boolean replayCache(Path cacheFile, PoliticalContributionAnalysis politicalContributionAnalysis,
+                                    ContributionsStore contributionsStore, IngestMetrics metrics) {
+        long[] rejected = new long[RejectReason.values().length];
+        try {
+            ContributionsCache.replay(cacheFile, contributionsStore.getRecipientDictionary(), rejected,
+                    politicalContributionAnalysis::processCachedContribution);
+        } catch (IOException ioe) {
+            System.out.println("Failed to read cache " + cacheFile + ": " + ioe.getMessage());
+            return false;
+        }
+        for (RejectReason reason : RejectReason.values()) {
+            metrics.rejected(reason, rejected[reason.ordinal()]);
+        }
+        return true;
+    }
+
+    private static void finishCache(ContributionsCache.Writer cacheWriter, Path cacheFile) {
+        try {
+            cacheWriter.finish();
+        } catch (IOException ioe) {
+            System.out.println("Failed to write cache " + cacheFile + ": " + ioe.getMessage());
+        }
+    }
+
+    private static void closeCache(ContributionsCache.Writer cacheWriter, Path cacheFile) {
+        try {
+            cacheWriter.close();
+        } catch (IOException ioe) {
+            System.out.println("Failed to delete incomplete cache " + cacheFile + ": " + ioe.getMessage());
+        }
+    }
+
+    private static boolean isCompressed(String inputPath) {
+        try {
+            return InputCompression.detect(Paths.get(inputPath)) != InputCompression.NONE;
+        } catch (IOException ioe) {
+            // reported once the input is read
+            return false;
+        }
+    }
+
+    /**
+     * Streams every input row to the analysis using the reader selected in the options,
+     * or decompressing a gzip or zip compressed input
+     */
+    private static void readInput(String inputPath, AnalysisOptions options,
+                                  PoliticalContributionAnalysis politicalContributionAnalysis) throws IOException {
+        InputCompression compression = InputCompression.detect(Paths.get(inputPath));
+        if (compression != InputCompression.NONE) {
+            // decompressed on its own thread, whatever the reader, and parsed at byte level
+            new CompressedFileReader(Paths.get(inputPath), compression)
+                    .readLines(politicalContributionAnalysis::processEachContribution);
+            return;
+        }
+        switch (options.getInputReader()) {
+            case MMAP:
+                new MappedFileReader(Paths.get(inputPath), options.getReaderThreads(),
+                                     options.getReadChunkSize(MappedFileReader.DEFAULT_CHUNK_SIZE))
+                        .readLines(politicalContributionAnalysis::processEachContribution);
+                break;
+            case BYTES:
+                try (FileInputStream inputStream = new FileInputStream(inputPath)) {
+                    new StreamLineReader(inputStream).readLines(politicalContributionAnalysis::processEachContribution);
+                }
+                break;
+            default:
+                try (Stream<String> stream = Files.lines(Paths.get(inputPath))) {
+                    stream.forEach(politicalContributionAnalysis::processEachContribution);
+                }
         }
     }
 }
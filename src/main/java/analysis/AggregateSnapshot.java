@@ -0,0 +1,72 @@
+package analysis;
+
+import datastore.ContributionsAggregateData;
+import util.AsciiRowWriter;
+
+import java.util.Arrays;
+
+/**
+ * A copy of the aggregate results by recipient and date, taken a few groups at a time during the ingestion
+ *
+ * Rows are copied as the values they are written with, so a chunk of groups is quick to copy while the store
+ * can not change, and the copy is formatted and written afterwards without holding up the store.
+ * Each group is copied as it is at the time of its chunk.
+ */
+class AggregateSnapshot
+{
+    // contributions whose medians are computed per chunk, bounding the time the store is held
+    private static final int CHUNK_CONTRIBUTIONS = 1 << 16;
+
+    private String[] recipientIds = new String[64];
+    private int[] dates = new int[64];
+    private long[] medians = new long[64];
+    private int[] counts = new int[64];
+    private long[] totals = new long[64];
+    private int size;
+
+    /**
+     * Copies the groups from the given index on, till about CHUNK_CONTRIBUTIONS contributions are copied,
+     * no contribution may be added meanwhile
+     *
+     * @param aggregateData - data the groups are read from
+     * @param groups - ids of the groups to copy, in output order
+     * @param from - index of the first group to copy
+     * @return index of the first group not copied, groups.length once all are
+     */
+    int addChunk(ContributionsAggregateData aggregateData, int[] groups, int from) {
+        int next = from;
+        for (long contributions = 0; next < groups.length && contributions < CHUNK_CONTRIBUTIONS; next++) {
+            ContributionsAggregateData.ContributionsByDate contributionsByDate = aggregateData.read(groups[next]);
+            add(contributionsByDate);
+            contributions += contributionsByDate.getTotalTxCount();
+        }
+        return next;
+    }
+
+    private void add(ContributionsAggregateData.ContributionsByDate contributionsByDate) {
+        if (size == dates.length) {
+            int capacity = size * 2;
+            recipientIds = Arrays.copyOf(recipientIds, capacity);
+            dates = Arrays.copyOf(dates, capacity);
+            medians = Arrays.copyOf(medians, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+            totals = Arrays.copyOf(totals, capacity);
+        }
+        recipientIds[size] = contributionsByDate.getRecipientId();
+        dates[size] = contributionsByDate.getContributionDate();
+        medians[size] = contributionsByDate.getMedian();
+        counts[size] = contributionsByDate.getTotalTxCount();
+        totals[size] = contributionsByDate.getTotalTxAmt();
+        size++;
+    }
+
+    /**
+     * @param outputFile - file to write the rows to, in the format of the aggregate output
+     */
+    void writeTo(AsciiRowWriter outputFile) {
+        for (int i = 0; i < size; i++) {
+            PoliticalContributionAnalysis.outputAggregateRow(outputFile, recipientIds[i], dates[i], medians[i],
+                    counts[i], totals[i]);
+        }
+    }
+}
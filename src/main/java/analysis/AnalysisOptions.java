@@ -0,0 +1,450 @@
+package analysis;
+
+import datastore.AggregationView;
+import datastore.GroupStorage;
+import ingest.ContributionsCache;
+import util.AsciiRowWriter;
+import util.MedianStoreType;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Optional command line settings of a contribution analysis run
+ *
+ * Options are given after the input and output files as --name=value
+ *  --reader=lines  reads the input as Strings and parses with Contribution (default)
+ *  --reader=bytes  reads the input as raw bytes and parses with ContributionParser
+ *  --reader=mmap   memory-maps the input in chunks and parses with ContributionParser
+ *  --reader-threads=N  threads splitting mapped chunks into lines (defaults to available processors)
+ *  --read-chunk=MB|KBK  size of the chunks the input is mapped in, or KB kilobytes with a K suffix,
+ *                      e.g. to split a small input into many chunks
+ *                      (defaults to 64 MB, 16 MB with --date-threads and 4 MB with --parse-threads)
+ *  --date-threads=N    aggregates contributions by date on N threads in parallel (defaults to 0, in line)
+ *  --parse-threads=N   runs the staged pipeline with N parser threads (defaults to 0, no pipeline)
+ *  --zip-shards=N      updates the running data of the pipeline on N shards by recipient (defaults to 0, one thread),
+ *                      runs the pipeline with N parser threads unless --parse-threads is given
+ *  --zip-median=heap|histogram   median store of the running data by zipcode (defaults to heap)
+ *  --date-median=heap|histogram|selection  median store of the aggregate data by date
+ *                      (defaults to selection, heap with --serve or --storage=offheap)
+ *  --storage=heap|offheap  keeps the groups on the Java heap (default) or in direct buffers outside of it,
+ *                      off the heap medians are always kept in two heaps
+ *  --metrics=off|final|SECONDS  prints a metrics summary at the end, and every SECONDS while running (defaults to off)
+ *  --resume=FILE       loads the store saved by a previous run before processing the input
+ *  --checkpoint=FILE   saves the store at the end of the run
+ *  --output-buffer=BYTES  bytes buffered per output file before writing (defaults to 1 MiB)
+ *  --serve=PORT        runs as a service answering queries on the local PORT, see ContributionService,
+ *                      the input is then a file, - for stdin or tcp:PORT for connections to a local port
+ *  --report-dir=DIR    directory the REPORT query of --serve writes its files to (defaults to none, refusing REPORT)
+ *  --view=KEYS:running|final[,sketch[K]]:METRICS:FILE  writes an additional AggregationView computed in the same pass,
+ *                      may be given several times, needs --reader=bytes or --reader=mmap
+ *  --date-spill=MB|KBK  spills contributions by date to sorted runs on disk once they hold about MB megabytes,
+ *                      or KB kilobytes with a K suffix, e.g. to test many runs, see SpillingAggregateData
+ *  --spill-dir=DIR     directory the runs are spilled to (defaults to the system temporary directory)
+ *  --cache=auto|FILE   reads the parsed rows from a ContributionsCache instead of the input while it is current,
+ *                      otherwise writes one while reading the input, auto for the input file name with .cache
+ *
+ * In batch mode, see parseBatch, every option applies to each input, and also
+ *  --batch-threads=N   inputs analyzed at the same time (defaults to available processors)
+ *  --batch-warmup=MB|off  analyzes the first MB megabytes of the first input once before the batch,
+ *                      discarding the results, so that no input runs on cold code (defaults to 8)
+ *  --reader-threads then defaults to 1, the inputs being read in parallel already
+ */
+public class AnalysisOptions
+{
+    public static final String USAGE = "[--reader=lines|bytes|mmap] [--reader-threads=N] [--read-chunk=MB|KBK]"
+            + " [--date-threads=N] [--parse-threads=N] [--zip-shards=N] [--zip-median=heap|histogram]"
+            + " [--date-median=heap|histogram|selection] [--storage=heap|offheap] [--metrics=off|final|SECONDS]"
+            + " [--resume=FILE] [--checkpoint=FILE] [--output-buffer=BYTES] [--serve=PORT] [--report-dir=DIR]"
+            + " [--view=KEYS:running|final[,sketch[K]]:METRICS:FILE]... [--date-spill=MB|KBK] [--spill-dir=DIR]"
+            + " [--cache=auto|FILE]";
+    public static final String BATCH_USAGE = "[--batch-threads=N] [--batch-warmup=MB|off]";
+
+    public static final int DEFAULT_BATCH_WARMUP_MB = 8;
+
+    /**
+     * How the input file is read and parsed
+     */
+    public enum InputReader
+    {
+        LINES, BYTES, MMAP
+    }
+
+    private InputReader inputReader = InputReader.LINES;
+    private int readerThreads = Runtime.getRuntime().availableProcessors();
+    private long readChunkBytes;
+    private int dateThreads;
+    private int parseThreads;
+    private int zipShards;
+    private MedianStoreType zipMedianStoreType = MedianStoreType.HEAP;
+    private MedianStoreType dateMedianStoreType;
+    private GroupStorage groupStorage = GroupStorage.HEAP;
+    private boolean metricsSummary;
+    private int metricsIntervalSeconds;
+    private Path resumeCheckpoint;
+    private Path saveCheckpoint;
+    private int outputBufferSize = AsciiRowWriter.DEFAULT_BUFFER_SIZE;
+    private int servePort;
+    private Path reportDirectory;
+    private List<AggregationView> views = new ArrayList<>();
+    private long dateSpillBytes;
+    private Path spillDirectory = Paths.get(System.getProperty("java.io.tmpdir"));
+    private Path cacheFile;
+    private boolean cacheBesideInput;
+    private boolean batch;
+    private int batchThreads = Runtime.getRuntime().availableProcessors();
+    private long batchWarmupBytes = DEFAULT_BATCH_WARMUP_MB * (1L << 20);
+
+    /**
+     * @param args - options in --name=value form
+     * @return parsed options, defaults for everything not specified
+     * @throws IllegalArgumentException if an option is unknown or has an invalid value
+     */
+    public static AnalysisOptions parse(String[] args) {
+        return parse(args, false);
+    }
+
+    /**
+     * Parses the options of a batch run, analyzing several inputs each to its own output files
+     *
+     * @param args - options in --name=value form
+     * @return parsed options, defaults for everything not specified
+     * @throws IllegalArgumentException if an option is unknown, has an invalid value or does not apply to a batch
+     */
+    public static AnalysisOptions parseBatch(String[] args) {
+        return parse(args, true);
+    }
+
+    private static AnalysisOptions parse(String[] args, boolean batch) {
+        AnalysisOptions options = new AnalysisOptions();
+        options.batch = batch;
+        boolean readerThreadsGiven = false;
+        boolean batchOptionsGiven = false;
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                throw new IllegalArgumentException("Malformed option " + arg);
+            }
+            String name = arg.substring(2, separator);
+            String value = arg.substring(separator + 1);
+            switch (name) {
+                case "reader":
+                    options.inputReader = InputReader.valueOf(value.toUpperCase());
+                    break;
+                case "reader-threads":
+                    options.readerThreads = parsePositiveInt(arg, value);
+                    readerThreadsGiven = true;
+                    break;
+                case "date-threads":
+                    options.dateThreads = parsePositiveInt(arg, value);
+                    break;
+                case "parse-threads":
+                    options.parseThreads = parsePositiveInt(arg, value);
+                    break;
+                case "zip-shards":
+                    options.zipShards = parsePositiveInt(arg, value);
+                    break;
+                case "zip-median":
+                    options.zipMedianStoreType = MedianStoreType.valueOf(value.toUpperCase());
+                    if (options.zipMedianStoreType == MedianStoreType.SELECTION) {
+                        throw new IllegalArgumentException("Running medians can not use " + arg);
+                    }
+                    break;
+                case "date-median":
+                    options.dateMedianStoreType = MedianStoreType.valueOf(value.toUpperCase());
+                    break;
+                case "storage":
+                    options.groupStorage = parseGroupStorage(arg, value);
+                    break;
+                case "metrics":
+                    options.metricsSummary = !value.equals("off");
+                    if (!value.equals("off") && !value.equals("final")) {
+                        options.metricsIntervalSeconds = parsePositiveInt(arg, value);
+                    }
+                    break;
+                case "resume":
+                    options.resumeCheckpoint = parsePath(arg, value);
+                    break;
+                case "checkpoint":
+                    options.saveCheckpoint = parsePath(arg, value);
+                    break;
+                case "output-buffer":
+                    options.outputBufferSize = parsePositiveInt(arg, value);
+                    break;
+                case "serve":
+                    options.servePort = parsePositiveInt(arg, value);
+                    break;
+                case "report-dir":
+                    options.reportDirectory = parsePath(arg, value);
+                    break;
+                case "view":
+                    options.views.add(AggregationView.parse(value));
+                    break;
+                case "read-chunk":
+                    options.readChunkBytes = parseBytes(arg, value);
+                    if (options.readChunkBytes > 1 << 30) {
+                        throw new IllegalArgumentException("Expected at most 1024 MB in " + arg);
+                    }
+                    break;
+                case "date-spill":
+                    options.dateSpillBytes = parseBytes(arg, value);
+                    break;
+                case "spill-dir":
+                    options.spillDirectory = parsePath(arg, value);
+                    break;
+                case "cache":
+                    options.cacheBesideInput = value.equals("auto");
+                    options.cacheFile = options.cacheBesideInput ? null : parsePath(arg, value);
+                    break;
+                case "batch-threads":
+                    options.batchThreads = parsePositiveInt(arg, value);
+                    batchOptionsGiven = true;
+                    break;
+                case "batch-warmup":
+                    options.batchWarmupBytes = value.equals("off") ? 0 : parsePositiveInt(arg, value) * (1L << 20);
+                    batchOptionsGiven = true;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+        if (batchOptionsGiven && !batch) {
+            throw new IllegalArgumentException("--batch-threads and --batch-warmup only apply with --batch");
+        }
+        if (batch && (options.servePort > 0 || options.resumeCheckpoint != null || options.saveCheckpoint != null
+                || !options.views.isEmpty() || options.cacheFile != null || options.metricsIntervalSeconds > 0)) {
+            throw new IllegalArgumentException("--batch analyzes every input on its own, without --serve, --resume,"
+                    + " --checkpoint, --view, --cache=FILE or periodic --metrics");
+        }
+        if (batch && !readerThreadsGiven) {
+            options.readerThreads = 1;
+        }
+        if (options.zipShards > 0 && options.parseThreads == 0) {
+            options.parseThreads = options.zipShards;
+        }
+        if (options.servePort > 0 && (options.dateThreads > 0 || options.parseThreads > 0)) {
+            throw new IllegalArgumentException(
+                    "--serve reads its input in line, without --date-threads, --parse-threads or --zip-shards");
+        }
+        if (options.reportDirectory != null && options.servePort == 0) {
+            throw new IllegalArgumentException("--report-dir only applies with --serve");
+        }
+        if (!options.views.isEmpty() && (options.inputReader == InputReader.LINES || options.parseThreads > 0
+                || options.servePort > 0)) {
+            throw new IllegalArgumentException("--view parses rows in line with --reader=bytes or --reader=mmap,"
+                    + " without --parse-threads, --zip-shards or --serve");
+        }
+        if (options.dateSpillBytes > 0 && (options.dateThreads > 0 || options.zipShards > 0 || options.servePort > 0
+                || options.resumeCheckpoint != null || options.saveCheckpoint != null)) {
+            throw new IllegalArgumentException("--date-spill keeps the contributions by date on disk,"
+                    + " without --date-threads, --zip-shards, --serve, --resume or --checkpoint");
+        }
+        if ((options.cacheFile != null || options.cacheBesideInput) && (options.dateThreads > 0
+                || options.parseThreads > 0 || options.servePort > 0 || !options.views.isEmpty())) {
+            throw new IllegalArgumentException("--cache reads or writes the parsed rows in line,"
+                    + " without --date-threads, --parse-threads, --zip-shards, --serve or --view");
+        }
+        if (options.groupStorage == GroupStorage.OFF_HEAP
+                && (options.zipMedianStoreType != MedianStoreType.HEAP
+                    || options.dateMedianStoreType != null && options.dateMedianStoreType != MedianStoreType.HEAP)) {
+            throw new IllegalArgumentException("--storage=offheap keeps medians in heaps, without other median stores");
+        }
+        if (options.dateMedianStoreType == null) {
+            // selection copies all amounts of a date for every median, too slow to answer queries
+            options.dateMedianStoreType = options.servePort > 0 || options.groupStorage == GroupStorage.OFF_HEAP
+                    ? MedianStoreType.HEAP : MedianStoreType.SELECTION;
+        }
+        return options;
+    }
+
+    private static GroupStorage parseGroupStorage(String arg, String value) {
+        switch (value) {
+            case "heap":
+                return GroupStorage.HEAP;
+            case "offheap":
+                return GroupStorage.OFF_HEAP;
+            default:
+                throw new IllegalArgumentException("Expected heap or offheap in " + arg);
+        }
+    }
+
+    private static int parsePositiveInt(String arg, String value) {
+        try {
+            int number = Integer.parseInt(value);
+            if (number > 0) {
+                return number;
+            }
+        } catch (NumberFormatException nfe) {
+            // reported below
+        }
+        throw new IllegalArgumentException("Expected a positive number in " + arg);
+    }
+
+    /**
+     * @return MB megabytes, or KB kilobytes with a K suffix, in bytes
+     */
+    private static long parseBytes(String arg, String value) {
+        return value.endsWith("K") ? parsePositiveInt(arg, value.substring(0, value.length() - 1)) * (1L << 10)
+                : parsePositiveInt(arg, value) * (1L << 20);
+    }
+
+    private static Path parsePath(String arg, String value) {
+        if (value.isEmpty()) {
+            throw new IllegalArgumentException("Expected a file in " + arg);
+        }
+        return Paths.get(value);
+    }
+
+    public InputReader getInputReader() {
+        return inputReader;
+    }
+
+    public int getReaderThreads() {
+        return readerThreads;
+    }
+
+    /**
+     * @param defaultSize - chunk size of the reader when none is given
+     * @return size in bytes of the chunks the input is mapped in
+     */
+    public int getReadChunkSize(int defaultSize) {
+        return readChunkBytes > 0 ? (int) readChunkBytes : defaultSize;
+    }
+
+    /**
+     * @return number of threads aggregating by date in parallel, 0 to aggregate in line
+     */
+    public int getDateThreads() {
+        return dateThreads;
+    }
+
+    /**
+     * @return number of threads parsing the memory-mapped input in the staged pipeline, 0 to not use the pipeline
+     */
+    public int getParseThreads() {
+        return parseThreads;
+    }
+
+    /**
+     * @return number of shards the pipeline updates the running data on, 0 to update it on a single thread
+     */
+    public int getZipShards() {
+        return zipShards;
+    }
+
+    public MedianStoreType getZipMedianStoreType() {
+        return zipMedianStoreType;
+    }
+
+    public MedianStoreType getDateMedianStoreType() {
+        return dateMedianStoreType;
+    }
+
+    /**
+     * @return where the store keeps its groups
+     */
+    public GroupStorage getGroupStorage() {
+        return groupStorage;
+    }
+
+    /**
+     * @return true if a metrics summary is printed at the end of the run
+     */
+    public boolean isMetricsSummary() {
+        return metricsSummary;
+    }
+
+    /**
+     * @return seconds between two metrics summaries while running, 0 for none
+     */
+    public int getMetricsIntervalSeconds() {
+        return metricsIntervalSeconds;
+    }
+
+    /**
+     * @return checkpoint to load before processing the input, or null to start from an empty store
+     */
+    public Path getResumeCheckpoint() {
+        return resumeCheckpoint;
+    }
+
+    /**
+     * @return checkpoint to save at the end of the run, or null to not save the store
+     */
+    public Path getSaveCheckpoint() {
+        return saveCheckpoint;
+    }
+
+    /**
+     * @return bytes buffered per output file before writing
+     */
+    public int getOutputBufferSize() {
+        return outputBufferSize;
+    }
+
+    /**
+     * @return local port answering queries while ingesting, 0 to run once over the input file
+     */
+    public int getServePort() {
+        return servePort;
+    }
+
+    /**
+     * @return directory the REPORT query writes its files to, null if REPORT is refused
+     */
+    public Path getReportDirectory() {
+        return reportDirectory;
+    }
+
+    /**
+     * @return additional views computed in the same pass, empty for none
+     */
+    public List<AggregationView> getViews() {
+        return views;
+    }
+
+    /**
+     * @return bytes of buffered contributions by date that trigger a spill to disk, 0 to keep them in memory
+     */
+    public long getDateSpillBytes() {
+        return dateSpillBytes;
+    }
+
+    /**
+     * @return directory contributions by date are spilled to
+     */
+    public Path getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    /**
+     * @param inputPath - input file of the run
+     * @return cache of the parsed rows of the input, or null to always parse the input
+     */
+    public Path getCacheFile(String inputPath) {
+        return cacheBesideInput ? ContributionsCache.sidecarOf(Paths.get(inputPath)) : cacheFile;
+    }
+
+    /**
+     * @return true if the options were parsed for a batch of inputs
+     */
+    public boolean isBatch() {
+        return batch;
+    }
+
+    /**
+     * @return number of inputs of a batch analyzed at the same time
+     */
+    public int getBatchThreads() {
+        return batchThreads;
+    }
+
+    /**
+     * @return bytes of the first input analyzed once before a batch, 0 for no warm-up
+     */
+    public long getBatchWarmupBytes() {
+        return batchWarmupBytes;
+    }
+}
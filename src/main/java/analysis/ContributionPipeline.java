@@ -0,0 +1,525 @@
+package analysis;
+
+import datastore.ContributionsRunningData;
+import datastore.ContributionsStore;
+import ingest.CompressedFileReader;
+import ingest.InputCompression;
+import ingest.MappedFileReader;
+import metrics.IngestMetrics;
+import payloads.ContributionParser;
+import payloads.ContributionRecord;
+import util.AsciiRowWriter;
+import util.PackedDate;
+import util.StringDictionary;
+import util.ZipCode;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Computes the running contributions by zipcode in three decoupled stages
+ *
+ *  - parse: line-aligned chunks of the memory-mapped input are parsed into batches on a pool of threads,
+ *    a gzip or zip compressed input is decompressed into chunks on another thread, see CompressedFileReader
+ *  - update: a single thread adds the parsed batches to the ContributionsStore strictly in input order
+ *  - write: a dedicated thread writes the running results with an AsciiRowWriter
+ *
+ * Running output stays in input order, since only the update stage touches the store
+ * and it hands result batches to the writer in the order it produced them.
+ *
+ * With shards the update stage runs on several threads instead: the store is split into shards by recipient,
+ * and every shard thread goes through each parsed batch in order, adding the rows of its own recipients to
+ * its shard without locking. Each shard collects its results with their row number in the batch, the last
+ * shard to finish a batch hands it to the writer, which re-sequences the results by row number.
+ * Each stage records its time per row, averaged over a batch, in the IngestMetrics.
+ */
+public class ContributionPipeline
+{
+    public static final int DEFAULT_CHUNK_SIZE = 4 << 20;
+    private static final int RUNNING_BATCHES = 8;
+
+    private final ContributionsStore contributionsStore;
+    private final StringDictionary recipientDictionary;
+    private final AsciiRowWriter runningContributionsOutput;
+    private final int parserThreads;
+    private final int shards;
+    private final int chunkSize;
+    private final IngestMetrics metrics;
+
+    private final ThreadLocal<ContributionParser> parsers;
+    private final ThreadLocal<ContributionRecord> records = ThreadLocal.withInitial(ContributionRecord::new);
+    private final ConcurrentLinkedQueue<ParsedBatch> freeParsedBatches = new ConcurrentLinkedQueue<>();
+    private final BlockingQueue<RunningBatch> freeRunningBatches = new ArrayBlockingQueue<>(RUNNING_BATCHES);
+    private final BlockingQueue<RunningBatch> runningBatchesToWrite = new ArrayBlockingQueue<>(RUNNING_BATCHES);
+    private volatile RuntimeException updateFailure;
+
+    /**
+     * @param contributionsStore - store that computes running and aggregate data
+     * @param runningContributionsOutput - stream to output running results
+     * @param parserThreads - number of threads parsing the input
+     * @param metrics - metrics counting and timing every processed row
+     */
+    public ContributionPipeline(ContributionsStore contributionsStore, AsciiRowWriter runningContributionsOutput,
+                                int parserThreads, IngestMetrics metrics) {
+        this(contributionsStore, runningContributionsOutput, parserThreads, 0, metrics);
+    }
+
+    /**
+     * @param contributionsStore - store that computes running and aggregate data
+     * @param runningContributionsOutput - stream to output running results
+     * @param parserThreads - number of threads parsing the input
+     * @param shards - number of threads updating shards of the store, 0 to update the store on a single thread
+     * @param metrics - metrics counting and timing every processed row
+     */
+    public ContributionPipeline(ContributionsStore contributionsStore, AsciiRowWriter runningContributionsOutput,
+                                int parserThreads, int shards, IngestMetrics metrics) {
+        this(contributionsStore, runningContributionsOutput, parserThreads, shards, DEFAULT_CHUNK_SIZE, metrics);
+    }
+
+    /**
+     * @param contributionsStore - store that computes running and aggregate data
+     * @param runningContributionsOutput - stream to output running results
+     * @param parserThreads - number of threads parsing the input
+     * @param shards - number of threads updating shards of the store, 0 to update the store on a single thread
+     * @param chunkSize - approximate size in bytes of the chunks handed to the parser threads
+     * @param metrics - metrics counting and timing every processed row
+     */
+    public ContributionPipeline(ContributionsStore contributionsStore, AsciiRowWriter runningContributionsOutput,
+                                int parserThreads, int shards, int chunkSize, IngestMetrics metrics) {
+        this.contributionsStore = contributionsStore;
+        this.metrics = metrics;
+        this.runningContributionsOutput = runningContributionsOutput;
+        this.parserThreads = Math.max(1, parserThreads);
+        this.shards = shards;
+        this.chunkSize = chunkSize;
+        this.recipientDictionary = contributionsStore.getRecipientDictionary();
+        this.parsers = ThreadLocal.withInitial(() -> new ContributionParser(recipientDictionary));
+        for (int i = 0; i < RUNNING_BATCHES; i++) {
+            freeRunningBatches.add(new RunningBatch());
+        }
+    }
+
+    /**
+     * Processes every contribution record of the input and writes the running results
+     *
+     * @param input - input file, plain text or gzip or zip compressed
+     * @throws IOException if reading the input or writing the output fails
+     */
+    public void process(Path input) throws IOException {
+        InputCompression compression = InputCompression.detect(input);
+        if (compression != InputCompression.NONE) {
+            try (CompressedFileReader reader = new CompressedFileReader(input, compression, chunkSize,
+                                                                        parserThreads * 2)) {
+                process(input, reader::nextBatch);
+            }
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+            List<MappedByteBuffer> chunks = MappedFileReader.mapChunks(channel, chunkSize);
+            int[] next = new int[1];
+            process(input, () -> {
+                if (next[0] == chunks.size()) {
+                    return null;
+                }
+                // unmapped once parsed, instead of holding on to the whole file
+                return chunks.set(next[0]++, null);
+            });
+        }
+    }
+
+    /**
+     * Parses the chunks on the parser pool, updates the store in chunk order and writes the running results
+     */
+    private void process(Path input, ChunkSource chunks) throws IOException {
+        ExecutorService parserPool = Executors.newFixedThreadPool(parserThreads, runnable -> {
+            Thread thread = new Thread(runnable, "contribution-parser");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Thread writer = new Thread(this::writeRunningBatches, "running-writer");
+        writer.setDaemon(true);
+        writer.start();
+        ShardUpdater[] shardUpdaters = startShardUpdaters();
+        try {
+            ArrayDeque<Future<ParsedBatch>> pending = new ArrayDeque<>();
+            ByteBuffer chunk = chunks.next();
+            while (chunk != null || !pending.isEmpty()) {
+                while (chunk != null && pending.size() < parserThreads * 2) {
+                    ByteBuffer parsedChunk = chunk;
+                    pending.add(parserPool.submit(() -> parse(parsedChunk)));
+                    chunk = chunks.next();
+                }
+                ParsedBatch parsedBatch = pending.poll().get();
+                if (shardUpdaters != null) {
+                    dispatch(parsedBatch, shardUpdaters);
+                } else {
+                    update(parsedBatch);
+                    freeParsedBatches.offer(parsedBatch);
+                }
+            }
+            if (shardUpdaters != null) {
+                stopShardUpdaters(shardUpdaters);
+            }
+            runningBatchesToWrite.put(RunningBatch.END);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while processing " + input, e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to parse " + input, e.getCause());
+        } finally {
+            parserPool.shutdownNow();
+            writer.interrupt();
+            if (shardUpdaters != null) {
+                for (ShardUpdater shardUpdater : shardUpdaters) {
+                    shardUpdater.interrupt();
+                }
+            }
+        }
+        if (updateFailure != null) {
+            throw updateFailure;
+        }
+        if (runningContributionsOutput.checkError()) {
+            throw new IOException("Failed to write the running results of " + input);
+        }
+    }
+
+    /**
+     * Line-aligned chunks of the input in file order
+     */
+    private interface ChunkSource
+    {
+        /**
+         * @return the next chunk, or null after the last one
+         */
+        ByteBuffer next() throws IOException;
+    }
+
+    /**
+     * Parse stage, runs on the parser pool
+     */
+    private ParsedBatch parse(ByteBuffer chunk) {
+        ContributionParser parser = parsers.get();
+        ContributionRecord record = records.get();
+        ParsedBatch parsedBatch = freeParsedBatches.poll();
+        if (parsedBatch == null) {
+            parsedBatch = new ParsedBatch();
+        }
+        parsedBatch.clear();
+        ParsedBatch batch = parsedBatch;
+        long started = System.nanoTime();
+        MappedFileReader.forEachLine(chunk, (buffer, start, end) -> {
+            batch.rows++;
+            if (parser.parse(buffer, start, end, record)) {
+                batch.add(record);
+                metrics.accepted(record.getContributorZipCode() != ContributionRecord.INVALID_ZIP,
+                        record.getTxDate() != PackedDate.INVALID);
+            } else {
+                metrics.rejected(parser.getRejectReason());
+            }
+        });
+        if (batch.rows > 0) {
+            metrics.getParseTimer().record((System.nanoTime() - started) / batch.rows);
+        }
+        return batch;
+    }
+
+    /**
+     * Update stage, runs on the calling thread in input order
+     */
+    private void update(ParsedBatch parsedBatch) throws InterruptedException {
+        RunningBatch runningBatch = freeRunningBatches.take();
+        runningBatch.clear();
+        long started = System.nanoTime();
+        for (int i = 0; i < parsedBatch.size; i++) {
+            ContributionsRunningData contributionsRunningData = contributionsStore.addContribution(
+                    parsedBatch.recipients[i], parsedBatch.zips[i], parsedBatch.dates[i], parsedBatch.amounts[i]);
+            ContributionsRunningData.ContributionsByZip contributionsByZip =
+                    contributionsRunningData.getCurrentContributionsByZip();
+            if (contributionsByZip != null) {
+                runningBatch.add(i, parsedBatch.recipients[i], parsedBatch.zips[i], contributionsByZip);
+            }
+        }
+        if (parsedBatch.size > 0) {
+            metrics.getUpdateTimer().record((System.nanoTime() - started) / parsedBatch.size);
+        }
+        runningBatchesToWrite.put(runningBatch);
+    }
+
+    /**
+     * Splits the store and starts a thread per shard, when updating on shards
+     *
+     * @return the shard threads, or null to update the store on the calling thread
+     */
+    private ShardUpdater[] startShardUpdaters() {
+        if (shards <= 0) {
+            return null;
+        }
+        ContributionsStore[] shardStores = contributionsStore.shard(shards);
+        ShardUpdater[] shardUpdaters = new ShardUpdater[shards];
+        for (int i = 0; i < shards; i++) {
+            shardUpdaters[i] = new ShardUpdater(i, shardStores[i]);
+            shardUpdaters[i].start();
+        }
+        return shardUpdaters;
+    }
+
+    /**
+     * Waits for the shard threads to finish every batch, then merges the shards back into the store
+     */
+    private void stopShardUpdaters(ShardUpdater[] shardUpdaters) throws InterruptedException {
+        ContributionsStore[] shardStores = new ContributionsStore[shardUpdaters.length];
+        for (int i = 0; i < shardUpdaters.length; i++) {
+            shardUpdaters[i].batches.put(RunningBatch.END);
+        }
+        for (int i = 0; i < shardUpdaters.length; i++) {
+            shardUpdaters[i].join();
+            shardStores[i] = shardUpdaters[i].shardStore;
+        }
+        contributionsStore.mergeShards(shardStores);
+    }
+
+    /**
+     * Update stage on shards, hands a parsed batch to every shard thread in input order
+     */
+    private void dispatch(ParsedBatch parsedBatch, ShardUpdater[] shardUpdaters) throws InterruptedException {
+        RunningBatch runningBatch = freeRunningBatches.take();
+        if (runningBatch.shardBatches == null) {
+            runningBatch.shardBatches = new RunningBatch[shardUpdaters.length];
+            for (int i = 0; i < shardUpdaters.length; i++) {
+                runningBatch.shardBatches[i] = new RunningBatch();
+            }
+        }
+        runningBatch.parsedBatch = parsedBatch;
+        runningBatch.pendingShards.set(shardUpdaters.length);
+        for (ShardUpdater shardUpdater : shardUpdaters) {
+            shardUpdater.batches.put(runningBatch);
+        }
+    }
+
+    /**
+     * Update stage of one shard, adds the rows of the shard's recipients and stores their results in place
+     */
+    private class ShardUpdater extends Thread
+    {
+        private final int shard;
+        private final ContributionsStore shardStore;
+        private final BlockingQueue<RunningBatch> batches = new ArrayBlockingQueue<>(RUNNING_BATCHES + 1);
+
+        ShardUpdater(int shard, ContributionsStore shardStore) {
+            super("running-shard-" + shard);
+            setDaemon(true);
+            this.shard = shard;
+            this.shardStore = shardStore;
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (RunningBatch runningBatch = batches.take(); runningBatch != RunningBatch.END;
+                     runningBatch = batches.take()) {
+                    RunningBatch shardBatch = runningBatch.shardBatches[shard];
+                    shardBatch.clear();
+                    if (updateFailure == null) {
+                        try {
+                            update(runningBatch.parsedBatch, shardBatch);
+                        } catch (RuntimeException re) {
+                            updateFailure = re;
+                        }
+                    }
+                    if (runningBatch.pendingShards.decrementAndGet() == 0) {
+                        runningBatchesToWrite.put(runningBatch);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void update(ParsedBatch parsedBatch, RunningBatch shardBatch) {
+            long started = System.nanoTime();
+            int rows = 0;
+            for (int i = 0; i < parsedBatch.size; i++) {
+                if (ContributionsStore.shardOf(parsedBatch.recipients[i], shards) != shard) {
+                    continue;
+                }
+                ContributionsRunningData contributionsRunningData = shardStore.addContribution(
+                        parsedBatch.recipients[i], parsedBatch.zips[i], parsedBatch.dates[i], parsedBatch.amounts[i]);
+                ContributionsRunningData.ContributionsByZip contributionsByZip =
+                        contributionsRunningData.getCurrentContributionsByZip();
+                if (contributionsByZip != null) {
+                    shardBatch.add(i, parsedBatch.recipients[i], parsedBatch.zips[i], contributionsByZip);
+                }
+                rows++;
+            }
+            if (rows > 0) {
+                metrics.getUpdateTimer().record((System.nanoTime() - started) / rows);
+            }
+        }
+    }
+
+    /**
+     * Write stage, runs on the writer thread till the END batch
+     */
+    private void writeRunningBatches() {
+        try {
+            for (RunningBatch runningBatch = runningBatchesToWrite.take(); runningBatch != RunningBatch.END;
+                 runningBatch = runningBatchesToWrite.take()) {
+                long started = System.nanoTime();
+                if (runningBatch.shardBatches != null) {
+                    writeShardBatches(runningBatch);
+                } else {
+                    for (int i = 0; i < runningBatch.size; i++) {
+                        writeRow(runningBatch, i);
+                    }
+                }
+                int rows = runningBatch.rows();
+                if (rows > 0) {
+                    metrics.getWriteTimer().record((System.nanoTime() - started) / rows);
+                }
+                if (runningBatch.parsedBatch != null) {
+                    freeParsedBatches.offer(runningBatch.parsedBatch);
+                    runningBatch.parsedBatch = null;
+                }
+                freeRunningBatches.put(runningBatch);
+            }
+            runningContributionsOutput.flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Merges the results of the shards back into input order: the recipient of each parsed row tells
+     * which shard holds its result, and the shard's next result belongs to the row if it has the row number
+     */
+    private void writeShardBatches(RunningBatch runningBatch) {
+        RunningBatch[] shardBatches = runningBatch.shardBatches;
+        int[] next = new int[shardBatches.length];
+        ParsedBatch parsedBatch = runningBatch.parsedBatch;
+        for (int row = 0; row < parsedBatch.size; row++) {
+            int shard = ContributionsStore.shardOf(parsedBatch.recipients[row], shardBatches.length);
+            RunningBatch shardBatch = shardBatches[shard];
+            if (next[shard] < shardBatch.size && shardBatch.rows[next[shard]] == row) {
+                writeRow(shardBatch, next[shard]++);
+            }
+        }
+    }
+
+    private void writeRow(RunningBatch runningBatch, int i) {
+        runningContributionsOutput.append(recipientDictionary.nameOf(runningBatch.recipients[i])).append('|');
+        ZipCode.append(runningContributionsOutput, runningBatch.zips[i]).append('|')
+                .append(runningBatch.medians[i]).append('|')
+                .append(runningBatch.counts[i]).append('|')
+                .append(runningBatch.totals[i]).endRow();
+    }
+
+    /**
+     * Parsed contribution records of one chunk, stored column-wise
+     */
+    private static class ParsedBatch
+    {
+        private int[] recipients = new int[1024];
+        private int[] zips = new int[1024];
+        private int[] dates = new int[1024];
+        private long[] amounts = new long[1024];
+        private int size;
+        // input rows of the chunk, including the skipped ones
+        private int rows;
+
+        void clear() {
+            size = 0;
+            rows = 0;
+        }
+
+        void add(ContributionRecord record) {
+            if (size == recipients.length) {
+                int capacity = size * 2;
+                recipients = Arrays.copyOf(recipients, capacity);
+                zips = Arrays.copyOf(zips, capacity);
+                dates = Arrays.copyOf(dates, capacity);
+                amounts = Arrays.copyOf(amounts, capacity);
+            }
+            recipients[size] = record.getRecipientIndex();
+            zips[size] = record.getContributorZipCode();
+            dates[size] = record.getTxDate();
+            amounts[size] = record.getTxAmountCents();
+            size++;
+        }
+    }
+
+    /**
+     * Running results of one chunk, in input order, with the row number of each result
+     *
+     * When updating on shards, the batch handed to the writer holds the parsed rows and a batch of results per shard.
+     */
+    private static class RunningBatch
+    {
+        static final RunningBatch END = new RunningBatch();
+
+        private int[] rows = new int[1024];
+        private int[] recipients = new int[1024];
+        private int[] zips = new int[1024];
+        private long[] medians = new long[1024];
+        private int[] counts = new int[1024];
+        private long[] totals = new long[1024];
+        private int size;
+
+        private ParsedBatch parsedBatch;
+        private RunningBatch[] shardBatches;
+        // shards still updating the parsed rows
+        private final AtomicInteger pendingShards = new AtomicInteger();
+
+        void clear() {
+            size = 0;
+        }
+
+        void add(int row, int recipient, int zip, ContributionsRunningData.ContributionsByZip contributionsByZip) {
+            if (size == recipients.length) {
+                int capacity = size * 2;
+                rows = Arrays.copyOf(rows, capacity);
+                recipients = Arrays.copyOf(recipients, capacity);
+                zips = Arrays.copyOf(zips, capacity);
+                medians = Arrays.copyOf(medians, capacity);
+                counts = Arrays.copyOf(counts, capacity);
+                totals = Arrays.copyOf(totals, capacity);
+            }
+            rows[size] = row;
+            recipients[size] = recipient;
+            zips[size] = zip;
+            medians[size] = contributionsByZip.getRunningMedian();
+            counts[size] = contributionsByZip.getRunningTotalTxCount();
+            totals[size] = contributionsByZip.getRunningTotalTxAmt();
+            size++;
+        }
+
+        /**
+         * @return number of results, of all shards when updating on shards
+         */
+        int rows() {
+            if (shardBatches == null) {
+                return size;
+            }
+            int results = 0;
+            for (RunningBatch shardBatch : shardBatches) {
+                results += shardBatch.size;
+            }
+            return results;
+        }
+    }
+}
@@ -0,0 +1,324 @@
+package analysis;
+
+import datastore.ContributionsAggregateData;
+import datastore.ContributionsRunningData;
+import datastore.ContributionsStore;
+import ingest.InputCompression;
+import ingest.MappedFileReader;
+import ingest.StreamLineReader;
+import metrics.IngestMetrics;
+import util.AsciiRowWriter;
+import util.PackedDate;
+import util.ZipCode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+/**
+ * Long-running service that ingests contribution records continuously and answers point queries
+ *
+ * Contribution records are read from stdin, from connections to a local TCP port, or from a file,
+ * plain or gzip or zip compressed,
+ * on a reader thread that hands over complete lines in batches. A single store thread adds the batches
+ * to the ContributionsStore in arrival order and writes the running results by zipcode as they are computed.
+ *
+ * Queries are answered on the threads asking them, never on the store thread. The store is guarded by a fair
+ * read-write lock: the store thread holds the write lock for one batch at a time, point queries take the read lock
+ * in between, in the order they arrive. A query thus waits at most for the batch being processed, and ingestion
+ * at most for the point lookups in progress, however many clients query at once. REPORT lists the groups under
+ * the read lock, then copies their rows a chunk at a time, taking the read lock again for each chunk, so batches
+ * are processed in between. It formats and writes the rows afterwards, so ingestion never waits for the file.
+ * Every group of the report is thus as of the time its chunk was copied, and groups created after the list are
+ * left out. Reports are only written to files of the report directory set at startup.
+ * The reader is only held back once too many batches are pending, never by queries.
+ *
+ * Queries, one per line, see QueryServer:
+ *  - ZIP recipient zipcode      running median, count and total of the recipient and 5 digit zipcode
+ *  - DATE recipient MMDDYYYY    median, count and total of the recipient on that date
+ *  - REPORT file                the aggregate results by date so far, written to a file of the report directory
+ *  - STATS                      the metrics summary
+ *  - SHUTDOWN                   stops ingesting, once the records read so far are processed
+ */
+public class ContributionService
+{
+    public static final String STDIN = "-";
+    public static final String TCP_PREFIX = "tcp:";
+
+    private static final int BATCH_BUFFER_SIZE = 64 << 10;
+    private static final int PENDING_BATCHES = 64;
+    private static final Object END = new Object();
+    private static final String STOPPED = "ERROR service stopped";
+
+    private final PoliticalContributionAnalysis politicalContributionAnalysis;
+    private final ContributionsStore contributionsStore;
+    private final AsciiRowWriter runningContributionsOutputFile;
+    private final IngestMetrics metrics;
+    private final Path reportDirectory;
+
+    private final LinkedBlockingDeque<Object> events = new LinkedBlockingDeque<>();
+    private final Semaphore batchPermits = new Semaphore(PENDING_BATCHES);
+    // fair, so that a waiting batch goes ahead of queries arriving after it
+    private final ReentrantReadWriteLock storeLock = new ReentrantReadWriteLock(true);
+    private volatile ServerSocket ingestSocket;
+    private volatile boolean stopping;
+    // set once ingestion ended, the store then belongs to the caller of run again
+    private boolean stopped;
+
+    /**
+     * @param politicalContributionAnalysis - analysis processing every record
+     * @param contributionsStore - store of the analysis, queried directly
+     * @param runningContributionsOutputFile - running output of the analysis, flushed whenever ingestion catches up
+     * @param metrics - metrics of the analysis, reported by STATS
+     * @param reportDirectory - directory REPORT writes its files to, null to refuse REPORT
+     */
+    public ContributionService(PoliticalContributionAnalysis politicalContributionAnalysis,
+                               ContributionsStore contributionsStore, AsciiRowWriter runningContributionsOutputFile,
+                               IngestMetrics metrics, Path reportDirectory) {
+        this.politicalContributionAnalysis = politicalContributionAnalysis;
+        this.contributionsStore = contributionsStore;
+        this.runningContributionsOutputFile = runningContributionsOutputFile;
+        this.metrics = metrics;
+        this.reportDirectory = reportDirectory != null ? reportDirectory.toAbsolutePath().normalize() : null;
+    }
+
+    /**
+     * Starts reading records on a background thread
+     *
+     * @param input - STDIN, TCP_PREFIX followed by a local port accepting one connection after the other, or a file
+     * @throws IOException if the TCP port can not be bound
+     */
+    public void startIngesting(String input) throws IOException {
+        Runnable reader;
+        if (input.startsWith(TCP_PREFIX)) {
+            ingestSocket = new ServerSocket(Integer.parseInt(input.substring(TCP_PREFIX.length())), 0,
+                    InetAddress.getLoopbackAddress());
+            reader = this::ingestConnections;
+        } else if (input.equals(STDIN)) {
+            reader = () -> ingestStream(System.in);
+        } else {
+            reader = () -> {
+                try (InputStream inputStream = InputCompression.openDecompressed(Paths.get(input))) {
+                    ingestStream(inputStream);
+                } catch (IOException ioe) {
+                    System.out.println("Failed to open input file " + input);
+                }
+            };
+        }
+        Thread thread = new Thread(() -> {
+            reader.run();
+            events.addLast(END);
+        }, "contribution-reader");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Processes records on the calling thread till the input ends or SHUTDOWN is queried,
+     * queries are answered in the meantime on their own threads
+     *
+     * @throws InterruptedException if interrupted while waiting for records
+     */
+    public void run() throws InterruptedException {
+        Lock writeLock = storeLock.writeLock();
+        try {
+            for (Object event = events.takeFirst(); event != END; event = events.takeFirst()) {
+                writeLock.lock();
+                try {
+                    MappedFileReader.forEachLine((ByteBuffer) event,
+                            politicalContributionAnalysis::processEachContribution);
+                } finally {
+                    writeLock.unlock();
+                }
+                batchPermits.release();
+                if (events.isEmpty()) {
+                    runningContributionsOutputFile.flush();
+                }
+            }
+            runningContributionsOutputFile.flush();
+        } finally {
+            writeLock.lock();
+            stopped = true;
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Answers a query on the calling thread, e.g. of a QueryServer connection
+     *
+     * @param text - a single query line
+     * @return the answer
+     */
+    public String query(String text) {
+        String[] words = text.trim().split("\\s+");
+        switch (words[0].toUpperCase()) {
+            case "ZIP":
+                return words.length == 3 ? answerByZip(words[1], words[2]) : "ERROR expected ZIP recipient zipcode";
+            case "DATE":
+                return words.length == 3 ? answerByDate(words[1], words[2]) : "ERROR expected DATE recipient MMDDYYYY";
+            case "REPORT":
+                return words.length == 2 ? report(words[1]) : "ERROR expected REPORT file";
+            case "STATS":
+                return answerFromStore(() -> metrics.getSummary().replace(System.lineSeparator(), "; "));
+            case "SHUTDOWN":
+                shutdown();
+                return "OK";
+            default:
+                return "ERROR unknown query " + words[0];
+        }
+    }
+
+    /**
+     * Runs a read of the store under the read lock
+     *
+     * @return the result of the read, or null if ingestion already ended
+     */
+    private <T> T readStore(Supplier<T> read) {
+        Lock readLock = storeLock.readLock();
+        readLock.lock();
+        try {
+            return stopped ? null : read.get();
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    private String answerFromStore(Supplier<String> read) {
+        String answer = readStore(read);
+        return answer != null ? answer : STOPPED;
+    }
+
+    private String answerByZip(String recipientId, String zip) {
+        int contributorZip = ZipCode.parse(zip);
+        if (contributorZip == ZipCode.INVALID) {
+            return "ERROR expected a 5 digit zipcode";
+        }
+        return answerFromStore(() -> {
+            ContributionsRunningData.ContributionsByZip contributionsByZip =
+                    contributionsStore.findContributionsByZip(recipientId, contributorZip);
+            if (contributionsByZip == null) {
+                return "NONE";
+            }
+            return PoliticalContributionAnalysis.formatRow(recipientId, zip, contributionsByZip.getRunningMedian(),
+                    contributionsByZip.getRunningTotalTxCount(), contributionsByZip.getRunningTotalTxAmt());
+        });
+    }
+
+    private String answerByDate(String recipientId, String date) {
+        int txDate = date.length() == 8 && isDigits(date) ? PackedDate.pack(Integer.parseInt(date.substring(4)),
+                Integer.parseInt(date.substring(0, 2)), Integer.parseInt(date.substring(2, 4))) : PackedDate.INVALID;
+        if (txDate == PackedDate.INVALID) {
+            return "ERROR expected a MMDDYYYY date";
+        }
+        return answerFromStore(() -> {
+            ContributionsAggregateData.ContributionsByDate contributionsByDate =
+                    contributionsStore.findContributionsByDate(recipientId, txDate);
+            if (contributionsByDate == null) {
+                return "NONE";
+            }
+            return PoliticalContributionAnalysis.formatRow(recipientId, date, contributionsByDate.getMedian(),
+                    contributionsByDate.getTotalTxCount(), contributionsByDate.getTotalTxAmt());
+        });
+    }
+
+    private String report(String file) {
+        if (reportDirectory == null) {
+            return "ERROR REPORT needs --report-dir";
+        }
+        Path reportFile;
+        try {
+            reportFile = reportDirectory.resolve(file).normalize();
+        } catch (InvalidPathException ipe) {
+            reportFile = null;
+        }
+        if (reportFile == null || !reportDirectory.equals(reportFile.getParent())) {
+            return "ERROR expected a file name in the report directory";
+        }
+        ContributionsAggregateData aggregateData = contributionsStore.getContributionsAggregateData();
+        int[] groups = readStore(aggregateData::getGroupsSortedByRecipientAndDate);
+        if (groups == null) {
+            return STOPPED;
+        }
+        AggregateSnapshot snapshot = new AggregateSnapshot();
+        for (int next = 0; next < groups.length; ) {
+            int from = next;
+            Integer copied = readStore(() -> snapshot.addChunk(aggregateData, groups, from));
+            if (copied == null) {
+                return STOPPED;
+            }
+            next = copied;
+        }
+        try (AsciiRowWriter reportOutputFile = AsciiRowWriter.open(reportFile, AsciiRowWriter.DEFAULT_BUFFER_SIZE)) {
+            snapshot.writeTo(reportOutputFile);
+            if (reportOutputFile.checkError()) {
+                return "ERROR failed to write " + file;
+            }
+        } catch (IOException ioe) {
+            return "ERROR failed to open " + file;
+        }
+        return "OK";
+    }
+
+    private static boolean isDigits(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) < '0' || text.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stops accepting records, the records read so far are still processed
+     */
+    private void shutdown() {
+        stopping = true;
+        ServerSocket socket = ingestSocket;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ioe) {
+                // already closed
+            }
+        } else {
+            // a blocked read of stdin can not be interrupted, stop right after the pending batches
+            events.addLast(END);
+        }
+    }
+
+    private void ingestConnections() {
+        while (!stopping) {
+            try (Socket connection = ingestSocket.accept()) {
+                ingestStream(connection.getInputStream());
+            } catch (IOException ioe) {
+                if (!stopping) {
+                    System.out.println("Failed to read contributions from " + ingestSocket.getLocalSocketAddress());
+                }
+            }
+        }
+    }
+
+    private void ingestStream(InputStream inputStream) {
+        try {
+            new StreamLineReader(inputStream, BATCH_BUFFER_SIZE).readLineBatches(batch -> {
+                batchPermits.acquireUninterruptibly();
+                events.addLast(batch);
+            });
+        } catch (IOException ioe) {
+            if (!stopping) {
+                System.out.println("Failed to read contributions: " + ioe.getMessage());
+            }
+        }
+    }
+}
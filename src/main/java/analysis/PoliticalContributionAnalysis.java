@@ -3,10 +3,20 @@ package analysis;
 import datastore.ContributionsAggregateData;
 import datastore.ContributionsRunningData;
 import datastore.ContributionsStore;
+import datastore.ContributionsViews;
+import datastore.SpillingAggregateData;
+import ingest.ContributionsCache;
+import metrics.IngestMetrics;
 import payloads.Contribution;
+import payloads.ContributionParser;
+import payloads.ContributionRecord;
+import payloads.RejectReason;
+import util.AsciiRowWriter;
+import util.PackedDate;
+import util.ZipCode;
 
-import java.io.PrintWriter;
-import java.util.*;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Analyzes a stream of donations to compute the following:
@@ -24,10 +34,18 @@ import java.util.*;
  */
 public class PoliticalContributionAnalysis
 {
-    private PrintWriter runningContributionsOutputFile;
-    private PrintWriter aggregateContributionsOutputFile;
+    private AsciiRowWriter runningContributionsOutputFile;
+    private AsciiRowWriter aggregateContributionsOutputFile;
 
     private ContributionsStore contributionsStore;
+    private ContributionsViews contributionsViews;
+
+    private ContributionParser contributionParser;
+    private ContributionRecord contributionRecord;
+
+    private IngestMetrics metrics;
+
+    private ContributionsCache.Writer contributionsCache;
 
     /**
      * Constructor that accepts files to output running and aggregate computation results
@@ -35,9 +53,45 @@ public class PoliticalContributionAnalysis
      * @param runningContributionsOutputFile file to output running results
      * @param aggregateContributionsOutputFile file to output aggreagte results
      */
-    public PoliticalContributionAnalysis(PrintWriter runningContributionsOutputFile,
-                                         PrintWriter aggregateContributionsOutputFile) {
-        this.contributionsStore = new ContributionsStore();
+    public PoliticalContributionAnalysis(AsciiRowWriter runningContributionsOutputFile,
+                                         AsciiRowWriter aggregateContributionsOutputFile) {
+        this(runningContributionsOutputFile, aggregateContributionsOutputFile, new ContributionsStore());
+    }
+
+    /**
+     * Constructor that accepts files to output results and the store to compute them with
+     *
+     * @param runningContributionsOutputFile file to output running results
+     * @param aggregateContributionsOutputFile file to output aggreagte results
+     * @param contributionsStore store that computes running and aggregate data
+     */
+    public PoliticalContributionAnalysis(AsciiRowWriter runningContributionsOutputFile,
+                                         AsciiRowWriter aggregateContributionsOutputFile,
+                                         ContributionsStore contributionsStore) {
+        this(runningContributionsOutputFile, aggregateContributionsOutputFile, contributionsStore, new Options());
+    }
+
+    /**
+     * Constructor that accepts files to output results, the store to compute them with
+     * and the optional collaborators of the analysis
+     *
+     * @param runningContributionsOutputFile file to output running results
+     * @param aggregateContributionsOutputFile file to output aggreagte results
+     * @param contributionsStore store that computes running and aggregate data
+     * @param options metrics, additional views and cache of the analysis
+     */
+    public PoliticalContributionAnalysis(AsciiRowWriter runningContributionsOutputFile,
+                                         AsciiRowWriter aggregateContributionsOutputFile,
+                                         ContributionsStore contributionsStore, Options options) {
+        this.contributionsCache = options.contributionsCache;
+        this.contributionsStore = contributionsStore;
+        this.contributionsViews = options.contributionsViews;
+        this.metrics = options.metrics != null ? options.metrics : new IngestMetrics(contributionsStore);
+        this.contributionParser = contributionsViews == null
+                ? new ContributionParser(contributionsStore.getRecipientDictionary())
+                : new ContributionParser(contributionsStore.getRecipientDictionary(),
+                                         contributionsViews.getTextDictionaries());
+        this.contributionRecord = new ContributionRecord();
         this.runningContributionsOutputFile = runningContributionsOutputFile;
         this.aggregateContributionsOutputFile = aggregateContributionsOutputFile;
     }
@@ -51,48 +105,217 @@ public class PoliticalContributionAnalysis
      */
     public void processEachContribution(String contributionRecord) {
         Contribution contribution;
+        boolean sampled = metrics.sampleRow();
         try {
+            long start = sampled ? System.nanoTime() : 0;
             contribution = new Contribution(contributionRecord);
+            if (contribution.getRecipientId() == null) {
+                rejected(RejectReason.OTHER_ID);
+                return;
+            }
+            long parsed = sampled ? System.nanoTime() : 0;
             ContributionsRunningData contributionsRunningData = contributionsStore.addContribution(contribution);
-            outputRunningContributionsToFile(contribution, contributionsRunningData);
+            long updated = sampled ? System.nanoTime() : 0;
+            outputRunningContributionsToFile(contribution.getRecipientId(), contribution.getContributorZip(),
+                    contributionsRunningData);
+            if (contributionsCache != null) {
+                String contributorZip = contribution.getContributorZip();
+                contributionsCache.add(contribution.getRecipientId(),
+                        contributorZip != null ? ZipCode.parse(contributorZip) : ContributionRecord.INVALID_ZIP,
+                        contribution.getTxDatePacked(), contribution.getTxAmountCents(),
+                        cacheFlags(contributorZip != null, contribution.getTxDatePacked() != PackedDate.INVALID));
+            }
+            metrics.accepted(contribution.getContributorZip() != null,
+                    contribution.getTxDatePacked() != PackedDate.INVALID);
+            if (sampled) {
+                recordStageTimes(start, parsed, updated);
+            }
         } catch (RuntimeException e) {
             // log exception
             // e.printStackTrace();
+            rejected(RejectReason.MALFORMED);
+        }
+    }
+
+    /**
+     * Processes each contribution record given as raw bytes
+     * - parses in place with the byte-level parser, skipping invalid rows
+     * - stores and computes running data
+     * - stores and computes aggregate data
+     * - adds to the additional views, if any
+     * @param buffer buffer holding the contribution record
+     * @param start index of the first byte of the record
+     * @param end index after the last byte of the record
+     */
+    public void processEachContribution(ByteBuffer buffer, int start, int end) {
+        boolean sampled = metrics.sampleRow();
+        long started = sampled ? System.nanoTime() : 0;
+        if (!contributionParser.parse(buffer, start, end, contributionRecord)) {
+            rejected(contributionParser.getRejectReason());
+            return;
+        }
+        long parsed = sampled ? System.nanoTime() : 0;
+        ContributionsRunningData contributionsRunningData = contributionsStore.addContribution(contributionRecord);
+        if (contributionsViews != null) {
+            contributionsViews.addContribution(contributionRecord);
+        }
+        long updated = sampled ? System.nanoTime() : 0;
+        outputRunningContributionsToFile(contributionRecord.getRecipientId(),
+                contributionRecord.getContributorZip(), contributionsRunningData);
+        boolean validZip = contributionRecord.getContributorZipCode() != ContributionRecord.INVALID_ZIP;
+        boolean validDate = contributionRecord.getTxDate() != PackedDate.INVALID;
+        if (contributionsCache != null) {
+            contributionsCache.add(contributionRecord.getRecipientId(), contributionRecord.getContributorZipCode(),
+                    contributionRecord.getTxDate(), contributionRecord.getTxAmountCents(),
+                    cacheFlags(validZip, validDate));
+        }
+        metrics.accepted(validZip, validDate);
+        if (sampled) {
+            recordStageTimes(started, parsed, updated);
+        }
+    }
+
+    /**
+     * Processes a contribution read back from a ContributionsCache, already parsed and validated
+     * - stores and computes running data
+     * - stores and computes aggregate data
+     * @param recipient int id of the recipient in the store's recipient dictionary
+     * @param contributorZip zipcode as int, see ZipCode, or ContributionRecord.INVALID_ZIP if it was malformed
+     * @param txDate date packed as yyyymmdd, or PackedDate.INVALID if it was malformed
+     * @param txAmountCents contribution amount in cents
+     * @param flags ContributionsCache.VALID_ZIP and VALID_DATE bits of the row
+     */
+    public void processCachedContribution(int recipient, int contributorZip, int txDate, long txAmountCents,
+                                          int flags) {
+        boolean sampled = metrics.sampleRow();
+        long started = sampled ? System.nanoTime() : 0;
+        ContributionsRunningData contributionsRunningData =
+                contributionsStore.addContribution(recipient, contributorZip, txDate, txAmountCents);
+        long updated = sampled ? System.nanoTime() : 0;
+        ContributionsRunningData.ContributionsByZip contributionsByZip =
+                contributionsRunningData.getCurrentContributionsByZip();
+        if (contributionsByZip != null) {
+            runningContributionsOutputFile.append(contributionsStore.getRecipientDictionary().nameOf(recipient))
+                    .append('|');
+            ZipCode.append(runningContributionsOutputFile, contributorZip).append('|')
+                    .append(contributionsByZip.getRunningMedian()).append('|')
+                    .append(contributionsByZip.getRunningTotalTxCount()).append('|')
+                    .append(contributionsByZip.getRunningTotalTxAmt()).endRow();
+        }
+        metrics.accepted((flags & ContributionsCache.VALID_ZIP) != 0, (flags & ContributionsCache.VALID_DATE) != 0);
+        if (sampled) {
+            recordStageTimes(started, started, updated);
         }
     }
 
+    private void rejected(RejectReason reason) {
+        metrics.rejected(reason);
+        if (contributionsCache != null) {
+            contributionsCache.rejected(reason);
+        }
+    }
+
+    private static int cacheFlags(boolean validZip, boolean validDate) {
+        return (validZip ? ContributionsCache.VALID_ZIP : 0) | (validDate ? ContributionsCache.VALID_DATE : 0);
+    }
+
+    private void recordStageTimes(long started, long parsed, long updated) {
+        metrics.getParseTimer().record(parsed - started);
+        metrics.getUpdateTimer().record(updated - parsed);
+        metrics.getWriteTimer().record(System.nanoTime() - updated);
+    }
+
     /**
      * Processes aggregate data at the end, after every record is computed
+     *
+     * @throws IOException if the aggregate data was spilled to disk and could not be merged back
      */
-    public void processAllContributions() {
-        ContributionsAggregateData contributionsAggregateData = contributionsStore.getContributionsAggregateData();
-        Set<String> recipientList = contributionsAggregateData.getAllRecipientsSortedAlphabetically();
-        for (String recipient : recipientList) {
-            List<ContributionsAggregateData.ContributionsByDate> contributionsByDateList =
-                    contributionsAggregateData.getAllContributionsByDateSortedChronologically(recipient);
-            for (ContributionsAggregateData.ContributionsByDate contributionsByDate : contributionsByDateList) {
-                outputAggregateContributionsToFile(contributionsByDate);
-            }
+    public void processAllContributions() throws IOException {
+        SpillingAggregateData spillingAggregateData = contributionsStore.getSpillingAggregateData();
+        if (spillingAggregateData != null) {
+            spillingAggregateData.forEachSortedByRecipientAndDate((recipientId, date, median, count, total) ->
+                    outputAggregateRow(aggregateContributionsOutputFile, recipientId, date, median, count, total));
+        } else {
+            contributionsStore.getContributionsAggregateData().forEachSortedByRecipientAndDate(contributionsByDate -> {
+                outputAggregateContributionsToFile(aggregateContributionsOutputFile, contributionsByDate);
+                contributionsByDate.release();
+            });
+        }
+        if (contributionsViews != null) {
+            contributionsViews.writeFinalViews();
         }
     }
 
-    private void outputRunningContributionsToFile(Contribution contribution,
+    private void outputRunningContributionsToFile(String recipientId, String contributorZip,
                                                   ContributionsRunningData contributionsRunningData) {
         ContributionsRunningData.ContributionsByZip contributionsByZip =
                 contributionsRunningData.getCurrentContributionsByZip();
         if (contributionsByZip == null)
             return;
-        String outRow = contribution.getRecipientId() + "|" + contribution.getContributorZip() + "|"
-                + contributionsByZip.getRunningMedian() + "|" + contributionsByZip.getRunningTotalTxCount() + "|"
-                + contributionsByZip.getRunningTotalTxAmt();
-        runningContributionsOutputFile.println(outRow);
+        runningContributionsOutputFile.append(recipientId).append('|').append(contributorZip).append('|')
+                .append(contributionsByZip.getRunningMedian()).append('|')
+                .append(contributionsByZip.getRunningTotalTxCount()).append('|')
+                .append(contributionsByZip.getRunningTotalTxAmt()).endRow();
     }
 
-    private void outputAggregateContributionsToFile(ContributionsAggregateData.ContributionsByDate contributionsByDate) {
-        String outRow = contributionsByDate.getRecipientId() + "|"
-                + contributionsByDate.getContributionDateStr() + "|"
-                + contributionsByDate.getMedian() + "|" + contributionsByDate.getTotalTxCount() + "|"
-                + contributionsByDate.getTotalTxAmt();
-        aggregateContributionsOutputFile.println(outRow);
+    private static void outputAggregateContributionsToFile(AsciiRowWriter outputFile,
+            ContributionsAggregateData.ContributionsByDate contributionsByDate) {
+        outputAggregateRow(outputFile, contributionsByDate.getRecipientId(),
+                contributionsByDate.getContributionDate(), contributionsByDate.getMedian(),
+                contributionsByDate.getTotalTxCount(), contributionsByDate.getTotalTxAmt());
+    }
+
+    static void outputAggregateRow(AsciiRowWriter outputFile, String recipientId, int contributionDate, long median,
+                                   int count, long total) {
+        outputFile.append(recipientId).append('|')
+                .appendZeroPadded(PackedDate.month(contributionDate), 2)
+                .appendZeroPadded(PackedDate.day(contributionDate), 2)
+                .appendZeroPadded(PackedDate.year(contributionDate), 4).append('|')
+                .append(median).append('|')
+                .append(count).append('|')
+                .append(total).endRow();
+    }
+
+    /**
+     * The row layout written to the output files, kept as a String for query answers
+     *
+     * @return an output row, pipe separated as recipient|zipcode or date|median|count|total
+     */
+    static String formatRow(String recipientId, String groupedBy, long median, int count, long total) {
+        return recipientId + "|" + groupedBy + "|" + median + "|" + count + "|" + total;
+    }
+
+    /**
+     * The optional collaborators of an analysis, each left out unless set
+     */
+    public static class Options
+    {
+        private IngestMetrics metrics;
+        private ContributionsViews contributionsViews;
+        private ContributionsCache.Writer contributionsCache;
+
+        /**
+         * @param metrics metrics counting and timing every processed row, a new unregistered one by default
+         */
+        public Options metrics(IngestMetrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        /**
+         * @param contributionsViews additional views computed in the same pass, from rows given as raw bytes
+         */
+        public Options views(ContributionsViews contributionsViews) {
+            this.contributionsViews = contributionsViews;
+            return this;
+        }
+
+        /**
+         * @param contributionsCache cache every parsed row is written to, read instead of the input on later runs
+         */
+        public Options cache(ContributionsCache.Writer contributionsCache) {
+            this.contributionsCache = contributionsCache;
+            return this;
+        }
     }
-}
\ No newline at end of file
+}
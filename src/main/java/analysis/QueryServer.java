@@ -0,0 +1,83 @@
+package analysis;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Answers the queries of a ContributionService on a local TCP port
+ *
+ * Every connection is served on its own thread, which also answers its queries: each line read is one query,
+ * and its answer is written back as one line. Try it with e.g. nc localhost PORT.
+ */
+public class QueryServer implements Closeable
+{
+    private final ContributionService contributionService;
+    private final ServerSocket serverSocket;
+
+    private QueryServer(ContributionService contributionService, ServerSocket serverSocket) {
+        this.contributionService = contributionService;
+        this.serverSocket = serverSocket;
+    }
+
+    /**
+     * @param contributionService - service answering the queries
+     * @param port - local port to listen on
+     * @return the server, accepting connections on a background thread
+     * @throws IOException if the port can not be bound
+     */
+    public static QueryServer start(ContributionService contributionService, int port) throws IOException {
+        QueryServer queryServer = new QueryServer(contributionService,
+                new ServerSocket(port, 0, InetAddress.getLoopbackAddress()));
+        startDaemon(queryServer::acceptConnections, "query-server");
+        return queryServer;
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+
+    private void acceptConnections() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket connection = serverSocket.accept();
+                startDaemon(() -> answerQueries(connection), "query-connection");
+            } catch (IOException ioe) {
+                // closed
+            }
+        }
+    }
+
+    private void answerQueries(Socket connection) {
+        try (Socket socket = connection;
+             BufferedReader in = new BufferedReader(
+                     new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+             PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                try {
+                    out.println(contributionService.query(line));
+                } catch (RuntimeException re) {
+                    out.println("ERROR " + re);
+                }
+            }
+        } catch (IOException ioe) {
+            // connection dropped
+        }
+    }
+
+    private static void startDaemon(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
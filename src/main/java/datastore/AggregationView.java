@@ -0,0 +1,234 @@
+package datastore;
+
+import util.KllSketch;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Declares an additional report computed in the same pass over the input as the reports by zipcode and date
+ *
+ *  - key columns: one or two GroupColumns the contributions are grouped by, e.g. recipient and state
+ *  - metrics: the Metrics written per group, in the given order after the key columns
+ *  - running: a row is written for every contribution, with the metrics of its group so far,
+ *    like medianvals_by_zip.txt; otherwise every group is written once at the end,
+ *    sorted by its key columns, like medianvals_by_date.txt
+ *  - sketch size: 0 to compute medians and quantiles exactly, keeping every amount, otherwise the size k
+ *    of the KllSketch each group keeps instead, a fixed amount of memory per group
+ *
+ * Written on the command line as KEYS:running|final[,sketch[K]]:METRICS:FILE, e.g.
+ *   recipient,state:final:median,count,total:output/medianvals_by_state.txt
+ *   recipient:final,sketch:p90,p99,top3:output/percentiles_by_recipient.txt
+ */
+public class AggregationView
+{
+    /**
+     * What is computed per group
+     */
+    public static final class Metric
+    {
+        public enum Kind
+        {
+            COUNT, TOTAL, MEDIAN,
+
+            /**
+             * the amount at a quantile, written in whole dollars
+             */
+            QUANTILE,
+
+            /**
+             * the donors with the largest totals, written as NAME=TOTAL separated by ';', largest first,
+             * approximate once a group has more donors than its TopKTotals counters
+             */
+            TOP
+        }
+
+        public static final Metric COUNT = new Metric(Kind.COUNT, 0, 0);
+        public static final Metric TOTAL = new Metric(Kind.TOTAL, 0, 0);
+        public static final Metric MEDIAN = new Metric(Kind.MEDIAN, 0.5, 0);
+
+        private final Kind kind;
+        private final double quantile;
+        private final int topCount;
+
+        private Metric(Kind kind, double quantile, int topCount) {
+            this.kind = kind;
+            this.quantile = quantile;
+            this.topCount = topCount;
+        }
+
+        /**
+         * @param metric - count, total, median, pNN for the NN-th percentile, e.g. p90 or p99.9,
+         *                 or topN for the N donors with the largest totals
+         * @return the metric
+         * @throws IllegalArgumentException if the metric is unknown or its parameter is out of range
+         */
+        public static Metric parse(String metric) {
+            String name = metric.trim().toLowerCase();
+            try {
+                if (name.startsWith("top")) {
+                    int topCount = Integer.parseInt(name.substring(3));
+                    if (topCount > 0 && topCount <= MAX_TOP_COUNT) {
+                        return new Metric(Kind.TOP, 0, topCount);
+                    }
+                } else if (name.startsWith("p")) {
+                    double percentile = Double.parseDouble(name.substring(1));
+                    if (percentile > 0 && percentile <= 100) {
+                        return new Metric(Kind.QUANTILE, percentile / 100, 0);
+                    }
+                } else {
+                    switch (Kind.valueOf(name.toUpperCase())) {
+                        case COUNT:
+                            return COUNT;
+                        case TOTAL:
+                            return TOTAL;
+                        case MEDIAN:
+                            return MEDIAN;
+                        default:
+                    }
+                }
+            } catch (NumberFormatException nfe) {
+                // reported below
+            }
+            throw new IllegalArgumentException("Expected count, total, median, pNN or topN (N at most "
+                    + MAX_TOP_COUNT + "), not " + metric);
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        /**
+         * @return the quantile of a QUANTILE or MEDIAN metric, between 0 and 1
+         */
+        public double getQuantile() {
+            return quantile;
+        }
+
+        /**
+         * @return number of donors of a TOP metric
+         */
+        public int getTopCount() {
+            return topCount;
+        }
+    }
+
+    public static final int MAX_TOP_COUNT = 100;
+
+    private final List<GroupColumn> keyColumns;
+    private final List<Metric> metrics;
+    private final boolean running;
+    private final int sketchSize;
+    private final Path output;
+
+    /**
+     * @param keyColumns - one or two distinct columns the contributions are grouped by
+     * @param metrics - metrics written per group, at least one
+     * @param running - true to write the running metrics for every contribution, false to write every group at the end
+     * @param output - file the rows are written to
+     * @throws IllegalArgumentException if there are no or too many key columns, or no metrics
+     */
+    public AggregationView(List<GroupColumn> keyColumns, List<Metric> metrics, boolean running, Path output) {
+        this(keyColumns, metrics, running, 0, output);
+    }
+
+    /**
+     * @param keyColumns - one or two distinct columns the contributions are grouped by
+     * @param metrics - metrics written per group, at least one
+     * @param running - true to write the running metrics for every contribution, false to write every group at the end
+     * @param sketchSize - 0 for exact medians and quantiles, otherwise the k of the KllSketch kept per group
+     * @param output - file the rows are written to
+     * @throws IllegalArgumentException if there are no or too many key columns, no metrics, the sketch is too small,
+     *                                  or a running view asks for exact quantiles, which would select every row anew
+     */
+    public AggregationView(List<GroupColumn> keyColumns, List<Metric> metrics, boolean running, int sketchSize,
+                           Path output) {
+        if (keyColumns.isEmpty() || keyColumns.size() > 2
+                || keyColumns.size() == 2 && keyColumns.get(0) == keyColumns.get(1)) {
+            throw new IllegalArgumentException("Expected one or two distinct key columns, not " + keyColumns);
+        }
+        if (metrics.isEmpty()) {
+            throw new IllegalArgumentException("Expected at least one metric");
+        }
+        if (sketchSize != 0 && sketchSize < KllSketch.MIN_LEVEL_CAPACITY) {
+            throw new IllegalArgumentException("Expected a sketch size of at least " + KllSketch.MIN_LEVEL_CAPACITY
+                    + ", not " + sketchSize);
+        }
+        if (running && sketchSize == 0) {
+            for (Metric metric : metrics) {
+                if (metric.getKind() == Metric.Kind.QUANTILE) {
+                    throw new IllegalArgumentException("Quantiles of a running view need a sketch, e.g. running,sketch");
+                }
+            }
+        }
+        this.keyColumns = Collections.unmodifiableList(new ArrayList<>(keyColumns));
+        this.metrics = Collections.unmodifiableList(new ArrayList<>(metrics));
+        this.running = running;
+        this.sketchSize = sketchSize;
+        this.output = output;
+    }
+
+    /**
+     * @param spec - view as KEYS:running|final[,sketch[K]]:METRICS:FILE, keys and metrics comma separated,
+     *               sketch alone for a KllSketch of the default size
+     * @return the view
+     * @throws IllegalArgumentException if the spec is malformed
+     */
+    public static AggregationView parse(String spec) {
+        String[] parts = spec.split(":", 4);
+        if (parts.length != 4 || parts[3].isEmpty()) {
+            throw new IllegalArgumentException("Expected KEYS:running|final[,sketch[K]]:METRICS:FILE in " + spec);
+        }
+        List<GroupColumn> keyColumns = new ArrayList<>();
+        for (String column : parts[0].split(",")) {
+            keyColumns.add(GroupColumn.valueOf(column.trim().toUpperCase()));
+        }
+        String[] mode = parts[1].split(",");
+        if (!mode[0].equals("running") && !mode[0].equals("final") || mode.length > 2
+                || mode.length == 2 && !mode[1].startsWith("sketch")) {
+            throw new IllegalArgumentException("Expected running or final, optionally followed by ,sketch in " + spec);
+        }
+        int sketchSize = 0;
+        if (mode.length == 2) {
+            try {
+                sketchSize = mode[1].equals("sketch") ? KllSketch.DEFAULT_K : Integer.parseInt(mode[1].substring(6));
+            } catch (NumberFormatException nfe) {
+                throw new IllegalArgumentException("Expected sketch or sketchK, e.g. sketch100, in " + spec);
+            }
+        }
+        List<Metric> metrics = new ArrayList<>();
+        for (String metric : parts[2].split(",")) {
+            metrics.add(Metric.parse(metric));
+        }
+        return new AggregationView(keyColumns, metrics, mode[0].equals("running"), sketchSize, Paths.get(parts[3]));
+    }
+
+    public List<GroupColumn> getKeyColumns() {
+        return keyColumns;
+    }
+
+    public List<Metric> getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return true if a row is written for every contribution, false if every group is written once at the end
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return 0 if medians and quantiles are exact, otherwise the k of the KllSketch kept per group
+     */
+    public int getSketchSize() {
+        return sketchSize;
+    }
+
+    public Path getOutput() {
+        return output;
+    }
+}
@@ -1,9 +1,23 @@
 package datastore;
 
-import payloads.Contribution;
-import util.MedianHeapStore;
+import util.Cents;
+import util.GroupKey;
+import util.LongIntHashMap;
+import util.MedianStore;
+import util.MedianStoreType;
+import util.OffHeapLongArray;
+import util.OffHeapMedianHeaps;
+import util.PackedDate;
+import util.StringDictionary;
 
-import java.util.*;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
 
 /**
  * A generic framework to store and compute aggregate contributions
@@ -11,87 +25,509 @@ import java.util.*;
  * Currently computes count, median and total contributions
  * sorted by date chronologically for each recipient sorted alphabetically
  *
- *  - Uses a map of map of Contributions
- *  - Uses a TreeMap to store the recipients sorted alphabetically
- *  - Uses a HashMap to group contributions by date
- *  - Uses a custom comparator to chronologically sort the contribution objects by its date field
+ *  - Groups are keyed by the GroupKey of the recipient int id and the packed date
+ *  - Uses a LongIntHashMap from key to a dense group id, so looking up the group of a contribution allocates nothing
+ *  - Groups are kept by id in the GroupStorage of the data store, on or off the Java heap
+ *  - Each recipient also indexes its group ids by date, so they can be scanned chronologically
+ *  - Recipients are kept sorted alphabetically as they appear
+ *
+ * So the groups can be reported in order at any time with a single scan, without copying nor sorting them.
  *
  * @author Pradeep Das
  * @version 27th Oct 2017
  */
 public class ContributionsAggregateData
 {
-    private Map<String, Map<String, ContributionsByDate>> contributionsByRecipientMap;
+    private LongIntHashMap groupsByKey;
+    private Groups groups;
+    private RecipientDates[] recipientDatesById = new RecipientDates[64];
+    private TreeMap<String, RecipientDates> recipientDatesSortedAlphabetically = new TreeMap<>();
+
+    private MedianStoreType medianStoreType;
+    private StringDictionary recipientDictionary;
+    private long contributionCount;
 
-    ContributionsAggregateData() {
-        contributionsByRecipientMap = new TreeMap<>();
+    /**
+     * @param medianStoreType - how medians by date are computed, always HEAP when stored off the heap
+     * @param recipientDictionary - dictionary of the recipient int ids the contributions are added with
+     * @param groupStorage - where the groups are kept
+     */
+    ContributionsAggregateData(MedianStoreType medianStoreType, StringDictionary recipientDictionary,
+                               GroupStorage groupStorage) {
+        this.medianStoreType = groupStorage == GroupStorage.OFF_HEAP ? MedianStoreType.HEAP : medianStoreType;
+        this.recipientDictionary = recipientDictionary;
+        groupsByKey = new LongIntHashMap();
+        groups = groupStorage == GroupStorage.OFF_HEAP ? new OffHeapGroups() : new HeapGroups();
     }
 
     /**
      * Adds one contribution to the data store for a given recipient and date
      *
-     * @param contribution - contribution payload
+     * @param recipient - int id of the recipient of the contribution
+     * @param txDate - date packed as yyyymmdd, or PackedDate.INVALID if the date is malformed
+     * @param amountCents - contribution amount in cents
+     */
+    void addContribution(int recipient, int txDate, long amountCents) {
+        if (txDate != PackedDate.INVALID) {
+            long key = GroupKey.of(recipient, txDate);
+            int group = groupsByKey.get(key);
+            if (group == LongIntHashMap.NOT_FOUND) {
+                group = groups.newGroup(recipient, txDate);
+                addGroup(recipient, key, group);
+            }
+            groups.add(group, amountCents);
+            contributionCount++;
+        }
+    }
+
+    /**
+     * Merges contributions aggregated separately, e.g. from another slice of the input,
+     * into this data store
+     *
+     * @param other - aggregate data to merge, sharing the recipient dictionary and group storage of this store,
+     *                must not be used afterwards
+     */
+    void merge(ContributionsAggregateData other) {
+        other.groupsByKey.forEach((key, otherGroup) -> {
+            int group = groupsByKey.get(key);
+            if (group == LongIntHashMap.NOT_FOUND) {
+                addGroup(GroupKey.recipient(key), key, groups.adopt(other.groups, otherGroup));
+            } else {
+                groups.merge(group, other.groups, otherGroup);
+            }
+        });
+        contributionCount += other.contributionCount;
+    }
+
+    /**
+     * @param recipient - int id of the recipient
+     * @param txDate - date packed as yyyymmdd
+     * @return contributions of the recipient on that date, or null if there are none,
+     *         only valid till the next contribution is added when stored off the heap
+     */
+    public ContributionsByDate find(int recipient, int txDate) {
+        int group = groupsByKey.get(GroupKey.of(recipient, txDate));
+        return group == LongIntHashMap.NOT_FOUND ? null : groups.read(group);
+    }
+
+    /**
+     * @return number of recipient/date groups, may lag behind when read from another thread
+     */
+    public int getGroupCount() {
+        return groupsByKey.size();
+    }
+
+    /**
+     * @return number of contributions added to the groups, may lag behind when read from another thread
+     */
+    public long getContributionCount() {
+        return contributionCount;
+    }
+
+    /**
+     * @return bytes allocated outside of the Java heap for the groups
+     */
+    public long getOffHeapBytes() {
+        return groups.getOffHeapBytes();
+    }
+
+    /**
+     * Writes every group, see ContributionsCheckpoint
+     */
+    void writeTo(DataOutput out) throws IOException {
+        out.writeUTF(medianStoreType.name());
+        out.writeInt(groupsByKey.size());
+        try {
+            groupsByKey.forEach((key, group) -> {
+                try {
+                    out.writeLong(key);
+                    groups.get(group).writeTo(out);
+                } catch (IOException ioe) {
+                    throw new UncheckedIOException(ioe);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Restores the groups written by writeTo into this empty data store, see ContributionsCheckpoint
+     *
+     * @param recipients - int id in this store of every recipient int id of the checkpoint
      */
-    void addContribution(Contribution contribution) {
-        if (contribution.getTxDate() != null) {
-            contributionsByRecipientMap
-                    .computeIfAbsent(contribution.getRecipientId(), key -> new HashMap<>())
-                    .computeIfAbsent(contribution.getTxDateStr(), key -> new ContributionsByDate(
-                            contribution.getRecipientId(), contribution.getTxDateStr(), contribution.getTxDate()))
-                    .add(contribution.getTxAmount());
+    void readFrom(DataInput in, int[] recipients) throws IOException {
+        String checkpointMedianStoreType = in.readUTF();
+        if (!checkpointMedianStoreType.equals(medianStoreType.name())) {
+            throw new IOException("Checkpoint holds " + checkpointMedianStoreType.toLowerCase()
+                    + " medians by date, not " + medianStoreType.name().toLowerCase());
+        }
+        for (int count = in.readInt(); count > 0; count--) {
+            long key = in.readLong();
+            int recipient = recipients[GroupKey.recipient(key)];
+            int group = groups.newGroup(recipient, GroupKey.value(key));
+            groups.readFrom(group, in);
+            addGroup(recipient, GroupKey.of(recipient, GroupKey.value(key)), group);
+            contributionCount += groups.get(group).totalTxCount;
+        }
+    }
+
+    /**
+     * Visits every group, by recipient sorted alphabetically then by date sorted chronologically
+     *
+     * May be called at any time, e.g. for a report of the contributions so far, but no contribution
+     * may be added while visiting. Off the heap, a visited group is only valid till the next one is visited.
+     *
+     * @param visitor - called with each group in order
+     */
+    public void forEachSortedByRecipientAndDate(Consumer<? super ContributionsByDate> visitor) {
+        IntConsumer groupVisitor = group -> visitor.accept(groups.get(group));
+        for (RecipientDates recipientDates : recipientDatesSortedAlphabetically.values()) {
+            recipientDates.forEach(groupVisitor);
+        }
+    }
+
+    /**
+     * Lists every group in the order of forEachSortedByRecipientAndDate, to be read later with read,
+     * e.g. a few at a time while contributions are added in between
+     *
+     * @return id of every group, by recipient sorted alphabetically then by date sorted chronologically
+     */
+    public int[] getGroupsSortedByRecipientAndDate() {
+        int[] sorted = new int[groupsByKey.size()];
+        int[] size = new int[1];
+        IntConsumer groupCollector = group -> sorted[size[0]++] = group;
+        for (RecipientDates recipientDates : recipientDatesSortedAlphabetically.values()) {
+            recipientDates.forEach(groupCollector);
+        }
+        return sorted;
+    }
+
+    /**
+     * @param group - id of a group, see getGroupsSortedByRecipientAndDate
+     * @return contributions of the group, off the heap a view of its own,
+     *         only valid till the next contribution is added
+     */
+    public ContributionsByDate read(int group) {
+        return groups.read(group);
+    }
+
+    private void addGroup(int recipient, long key, int group) {
+        groupsByKey.put(key, group);
+        if (recipient >= recipientDatesById.length) {
+            recipientDatesById = Arrays.copyOf(recipientDatesById,
+                    Math.max(recipient + 1, recipientDatesById.length * 2));
+        }
+        RecipientDates recipientDates = recipientDatesById[recipient];
+        if (recipientDates == null) {
+            recipientDates = new RecipientDates();
+            recipientDatesById[recipient] = recipientDates;
+            recipientDatesSortedAlphabetically.put(recipientDictionary.nameOf(recipient), recipientDates);
+        }
+        recipientDates.insert(GroupKey.value(key), group);
+    }
+
+    /**
+     * The aggregate contributions of every group, by dense group id
+     */
+    private abstract static class Groups
+    {
+        /**
+         * @return id of a new group without contributions
+         */
+        abstract int newGroup(int recipient, int txDate);
+
+        abstract void add(int group, long amountCents);
+
+        /**
+         * @return the aggregate contributions of the group, off the heap a view that the next call replaces
+         */
+        abstract ContributionsByDate get(int group);
+
+        /**
+         * @return the aggregate contributions of the group, off the heap a view of its own,
+         *         so that several threads may read groups at once while no contribution is added
+         */
+        ContributionsByDate read(int group) {
+            return get(group);
+        }
+
+        /**
+         * @param other - groups of the same storage, the group must not be used through them afterwards
+         */
+        abstract void merge(int group, Groups other, int otherGroup);
+
+        /**
+         * @param other - groups of the same storage, the group must not be used through them afterwards
+         * @param otherGroup - group to take over
+         * @return id of the group in these groups
+         */
+        abstract int adopt(Groups other, int otherGroup);
+
+        abstract void readFrom(int group, DataInput in) throws IOException;
+
+        long getOffHeapBytes() {
+            return 0;
+        }
+    }
+
+    private class HeapGroups extends Groups
+    {
+        private ContributionsByDate[] contributionsByDate = new ContributionsByDate[64];
+        private int size;
+
+        @Override
+        int newGroup(int recipient, int txDate) {
+            return append(new ContributionsByDate(recipientDictionary.nameOf(recipient), txDate,
+                    medianStoreType.create()));
+        }
+
+        @Override
+        void add(int group, long amountCents) {
+            contributionsByDate[group].add(amountCents);
+        }
+
+        @Override
+        ContributionsByDate get(int group) {
+            return contributionsByDate[group];
+        }
+
+        @Override
+        void merge(int group, Groups other, int otherGroup) {
+            contributionsByDate[group].merge(other.get(otherGroup));
+        }
+
+        @Override
+        int adopt(Groups other, int otherGroup) {
+            return append(other.get(otherGroup));
+        }
+
+        @Override
+        void readFrom(int group, DataInput in) throws IOException {
+            contributionsByDate[group].readFrom(in);
+        }
+
+        private int append(ContributionsByDate group) {
+            if (size == contributionsByDate.length) {
+                contributionsByDate = Arrays.copyOf(contributionsByDate, size * 2);
+            }
+            contributionsByDate[size] = group;
+            return size++;
         }
     }
 
     /**
-     * @return all recipients, sorted alphabetically, with at least one valid contribution date
+     * Keeps the key, count and total of every group as three longs in an OffHeapLongArray
+     * and its amounts in OffHeapMedianHeaps, read and updated through a single ContributionsByDate view
      */
-    public Set<String> getAllRecipientsSortedAlphabetically() {
-        return contributionsByRecipientMap.keySet();
+    private class OffHeapGroups extends Groups
+    {
+        private static final int COUNTERS = 3;
+
+        private final OffHeapLongArray counters = new OffHeapLongArray();
+        private final OffHeapMedianHeaps medians = new OffHeapMedianHeaps();
+        private final ContributionsByDate view = new ContributionsByDate(null, PackedDate.INVALID,
+                medians.newView());
+
+        @Override
+        int newGroup(int recipient, int txDate) {
+            int group = medians.newGroup();
+            counters.ensureCapacity((group + 1L) * COUNTERS);
+            counters.set((long) group * COUNTERS, GroupKey.of(recipient, txDate));
+            return group;
+        }
+
+        @Override
+        void add(int group, long amountCents) {
+            get(group).add(amountCents);
+            put(group);
+        }
+
+        @Override
+        ContributionsByDate get(int group) {
+            return load(view, group);
+        }
+
+        @Override
+        ContributionsByDate read(int group) {
+            return load(new ContributionsByDate(null, PackedDate.INVALID, medians.newView()), group);
+        }
+
+        @Override
+        void merge(int group, Groups other, int otherGroup) {
+            ContributionsByDate source = other.get(otherGroup);
+            get(group).merge(source);
+            put(group);
+        }
+
+        @Override
+        int adopt(Groups other, int otherGroup) {
+            long key = ((OffHeapGroups) other).counters.get((long) otherGroup * COUNTERS);
+            int group = newGroup(GroupKey.recipient(key), GroupKey.value(key));
+            merge(group, other, otherGroup);
+            return group;
+        }
+
+        @Override
+        void readFrom(int group, DataInput in) throws IOException {
+            get(group).readFrom(in);
+            put(group);
+        }
+
+        @Override
+        long getOffHeapBytes() {
+            return counters.getAllocatedBytes() + medians.getAllocatedBytes();
+        }
+
+        private void put(int group) {
+            long counter = (long) group * COUNTERS;
+            counters.set(counter + 1, view.totalTxCount);
+            counters.set(counter + 2, view.totalTxAmtCents);
+        }
+
+        private ContributionsByDate load(ContributionsByDate into, int group) {
+            long counter = (long) group * COUNTERS;
+            long key = counters.get(counter);
+            into.recipientId = recipientDictionary.nameOf(GroupKey.recipient(key));
+            into.contributionDate = GroupKey.value(key);
+            into.totalTxCount = (int) counters.get(counter + 1);
+            into.totalTxAmtCents = counters.get(counter + 2);
+            ((OffHeapMedianHeaps.GroupView) into.median).select(group);
+            return into;
+        }
     }
 
     /**
-     * @param recipientId - specified recipient whose contributions are obtained
-     * @return returns contributions of a recipient aggregated by date, sorted chronologically
+     * The group ids of one recipient indexed by date: a block per year, sorted by year,
+     * holding a slot per month and day in month arrays allocated on first use
+     *
+     * Adding a group is a direct store into its slot. Scanning a year follows a fixed slot order
+     * that is chronological, including days past the end of a month that roll over into the next one.
+     * Dates falling on the same day are ordered by their MMDDYYYY text, so such a rolled over day,
+     * e.g. 02/31, always comes right before the actual day it falls on, 03/03.
      */
-    public List<ContributionsByDate> getAllContributionsByDateSortedChronologically(String recipientId) {
-        List<ContributionsByDate> contributionsByDateList =
-                new ArrayList<>(contributionsByRecipientMap.get(recipientId).values());
-        Collections.sort(contributionsByDateList);
-        return contributionsByDateList;
+    private static class RecipientDates
+    {
+        private static final int DAYS = 31;
+        private static final int SLOTS = 12 * DAYS;
+        private static final int[] SCAN_ORDER = scanOrder(2001);
+        private static final int[] LEAP_YEAR_SCAN_ORDER = scanOrder(2000);
+
+        private int[] years = new int[1];
+        // group id + 1 per slot, 0 for dates without a group
+        private int[][][] yearBlocks = new int[1][][];
+        private int size;
+
+        void insert(int date, int group) {
+            int year = PackedDate.year(date);
+            int index = Arrays.binarySearch(years, 0, size, year);
+            if (index < 0) {
+                index = -1 - index;
+                if (size == years.length) {
+                    years = Arrays.copyOf(years, size * 2);
+                    yearBlocks = Arrays.copyOf(yearBlocks, size * 2);
+                }
+                System.arraycopy(years, index, years, index + 1, size - index);
+                System.arraycopy(yearBlocks, index, yearBlocks, index + 1, size - index);
+                years[index] = year;
+                yearBlocks[index] = new int[12][];
+                size++;
+            }
+            int[][] months = yearBlocks[index];
+            int month = PackedDate.month(date) - 1;
+            if (months[month] == null) {
+                months[month] = new int[DAYS];
+            }
+            months[month][PackedDate.day(date) - 1] = group + 1;
+        }
+
+        void forEach(IntConsumer visitor) {
+            for (int i = 0; i < size; i++) {
+                int[][] months = yearBlocks[i];
+                for (int slot : PackedDate.isLeapYear(years[i]) ? LEAP_YEAR_SCAN_ORDER : SCAN_ORDER) {
+                    int[] days = months[slot / DAYS];
+                    if (days != null && days[slot % DAYS] != 0) {
+                        visitor.accept(days[slot % DAYS] - 1);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Every month/day slot of a year in chronological order: a day rolled over from the previous month
+         * comes right before the day it rolls over to, e.g. 02/30 between 03/01 and 03/02 of a leap year
+         */
+        private static int[] scanOrder(int year) {
+            int[] order = new int[SLOTS];
+            int next = 0;
+            for (int month = 0; month < 12; month++) {
+                int previousLength = month > 0 ? PackedDate.lengthOfMonth(year, month) : DAYS;
+                for (int day = 0; day < PackedDate.lengthOfMonth(year, month + 1); day++) {
+                    if (previousLength + day < DAYS) {
+                        order[next++] = (month - 1) * DAYS + previousLength + day;
+                    }
+                    order[next++] = month * DAYS + day;
+                }
+            }
+            return order;
+        }
     }
 
     /**
      * A class that represents aggregate contributions by date for a recipient
      */
-    public static class ContributionsByDate implements Comparable<ContributionsByDate>
+    public static class ContributionsByDate
     {
         private String recipientId;
-        private String contributionDateStr;
-        private Date contributionDate;
+        private int contributionDate;
         private int totalTxCount;
-        private double totalTxAmt;
-        private MedianHeapStore median;
+        private long totalTxAmtCents;
+        private MedianStore median;
 
-        ContributionsByDate(String recipientId, String contributionDateStr, Date contributionDate) {
+        ContributionsByDate(String recipientId, int contributionDate, MedianStore median) {
             this.recipientId = recipientId;
-            this.contributionDateStr = contributionDateStr;
             this.contributionDate = contributionDate;
-            median = new MedianHeapStore();
+            this.median = median;
         }
 
-        void add(double amount) {
-            amount *= 100;
-            totalTxAmt += amount;
+        void add(long amountCents) {
+            totalTxAmtCents += amountCents;
             totalTxCount += 1;
-            median.add(amount);
+            median.add(amountCents);
+        }
+
+        ContributionsByDate merge(ContributionsByDate other) {
+            totalTxAmtCents += other.totalTxAmtCents;
+            totalTxCount += other.totalTxCount;
+            median.addAll(other.median);
+            return this;
+        }
+
+        void writeTo(DataOutput out) throws IOException {
+            out.writeInt(totalTxCount);
+            out.writeLong(totalTxAmtCents);
+            median.writeTo(out);
+        }
+
+        void readFrom(DataInput in) throws IOException {
+            totalTxCount = in.readInt();
+            totalTxAmtCents = in.readLong();
+            median.readFrom(in);
         }
 
         public String getRecipientId() {
             return recipientId;
         }
 
+        /**
+         * @return date packed as yyyymmdd
+         */
+        public int getContributionDate() {
+            return contributionDate;
+        }
+
         public String getContributionDateStr() {
-            return contributionDateStr;
+            return PackedDate.format(contributionDate);
         }
 
         public int getTotalTxCount() {
@@ -99,15 +535,18 @@ public class ContributionsAggregateData
         }
 
         public long getTotalTxAmt() {
-            return (long) Math.rint(totalTxAmt / 100);
+            return Cents.toDollars(totalTxAmtCents);
         }
 
         public long getMedian() {
-            return (long) Math.rint(median.getMedian() / 100);
+            return Cents.doubledToDollars(median.getDoubledMedian());
         }
 
-        public int compareTo(ContributionsByDate o) {
-            return this.contributionDate.compareTo(o.contributionDate);
+        /**
+         * Frees the individual amounts once the group is reported, no contributions may be added afterwards
+         */
+        public void release() {
+            median.release();
         }
 
         @Override
@@ -117,15 +556,14 @@ public class ContributionsAggregateData
 
             ContributionsByDate that = (ContributionsByDate) o;
 
-            return (recipientId != null ? recipientId.equals(that.recipientId) : that.recipientId == null) &&
-                    (contributionDateStr != null ?
-                            contributionDateStr.equals(that.contributionDateStr) : that.contributionDateStr == null);
+            return contributionDate == that.contributionDate &&
+                    (recipientId != null ? recipientId.equals(that.recipientId) : that.recipientId == null);
         }
 
         @Override
         public int hashCode() {
             int result = recipientId != null ? recipientId.hashCode() : 0;
-            result = 31 * result + (contributionDateStr != null ? contributionDateStr.hashCode() : 0);
+            result = 31 * result + contributionDate;
             return result;
         }
     }
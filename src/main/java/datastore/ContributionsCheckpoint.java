@@ -0,0 +1,98 @@
+package datastore;
+
+import util.StringDictionary;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * A compact binary snapshot of a ContributionsStore, so that a run can continue where a previous run ended
+ *
+ * The FEC publishes incremental files, and the running medians by zipcode only make sense against
+ * the full history. Instead of replaying the historical files, a run saves its store at the end and
+ * the next run loads it before processing the new file.
+ *
+ * Layout, big-endian as written by DataOutputStream:
+ *  - magic and format version
+ *  - the recipient dictionary, every recipient id in int id order
+ *  - the running groups by zipcode and the aggregate groups by date, each as
+ *    median store type, number of groups, then per group its long key, counts, totals and median store state
+ *
+ * Median stores are written with their internal layout (heap arrays, histogram, appended values),
+ * so loading copies arrays back instead of re-adding every amount.
+ */
+public final class ContributionsCheckpoint
+{
+    private static final int MAGIC = 0x46454343;
+    private static final int VERSION = 2;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private ContributionsCheckpoint() {
+    }
+
+    /**
+     * Saves the store, must be called before the groups by date are reported and released
+     *
+     * The checkpoint is written next to the target and moved in place once complete,
+     * so a failed run never leaves a truncated checkpoint behind.
+     *
+     * @param contributionsStore - store to save
+     * @param checkpoint - file to write
+     * @throws IOException if writing fails
+     */
+    public static void save(ContributionsStore contributionsStore, Path checkpoint) throws IOException {
+        Path partial = checkpoint.resolveSibling(checkpoint.getFileName() + ".partial");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(partial), BUFFER_SIZE))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            StringDictionary recipientDictionary = contributionsStore.getRecipientDictionary();
+            int recipients = recipientDictionary.size();
+            out.writeInt(recipients);
+            for (int recipient = 0; recipient < recipients; recipient++) {
+                out.writeUTF(recipientDictionary.nameOf(recipient));
+            }
+            contributionsStore.getContributionsRunningData().writeTo(out);
+            contributionsStore.getContributionsAggregateData().writeTo(out);
+        }
+        Files.move(partial, checkpoint, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Loads a checkpoint into a store that has not been given any contribution yet
+     *
+     * @param contributionsStore - empty store, configured with the median store types of the saved store
+     * @param checkpoint - file written by save
+     * @throws IOException if reading fails, or the file is not a checkpoint matching the store
+     */
+    public static void load(ContributionsStore contributionsStore, Path checkpoint) throws IOException {
+        if (contributionsStore.getContributionsRunningData().getGroupCount() > 0
+                || contributionsStore.getContributionsAggregateData().getGroupCount() > 0) {
+            throw new IllegalStateException("A checkpoint can only be loaded into an empty store");
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(checkpoint), BUFFER_SIZE))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(checkpoint + " is not a contributions checkpoint");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported checkpoint version " + version + " in " + checkpoint);
+            }
+            // ids may already be taken, e.g. by parsers started before the checkpoint is loaded
+            StringDictionary recipientDictionary = contributionsStore.getRecipientDictionary();
+            int[] recipients = new int[in.readInt()];
+            for (int recipient = 0; recipient < recipients.length; recipient++) {
+                recipients[recipient] = recipientDictionary.idOf(in.readUTF());
+            }
+            contributionsStore.getContributionsRunningData().readFrom(in, recipients);
+            contributionsStore.getContributionsAggregateData().readFrom(in, recipients);
+        }
+    }
+}
@@ -1,26 +1,50 @@
 package datastore;
 
-import payloads.Contribution;
-import util.MedianHeapStore;
+import payloads.ContributionRecord;
+import util.Cents;
+import util.GroupKey;
+import util.LongIntHashMap;
+import util.MedianStore;
+import util.MedianStoreType;
+import util.OffHeapLongArray;
+import util.OffHeapMedianHeaps;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
 
 /**
  * A generic framework to store and compute running contributions
  *
  * Currently computes running count, median and total contributions for each recipient
  *
+ *  - Groups are keyed by the GroupKey of the recipient int id and the zipcode
+ *  - Uses a LongIntHashMap from key to a dense group id, so looking up the group of a contribution allocates nothing
+ *  - Groups are kept by id in the GroupStorage of the data store, on or off the Java heap
+ *
  * @author Pradeep Das
  * @version 27th Oct 2017
  */
 public class ContributionsRunningData
 {
     private ContributionsByZip currentContributionsByZip;
-    private Map<String, ContributionsByZip> contributionsByZipMap;
+    private LongIntHashMap groupsByKey;
+    private Groups groups;
+    private MedianStoreType medianStoreType;
+    private GroupStorage groupStorage;
+    private long contributionCount;
 
-    ContributionsRunningData() {
-        contributionsByZipMap = new HashMap<>();
+    /**
+     * @param medianStoreType - how running medians are computed, always HEAP when stored off the heap
+     * @param groupStorage - where the groups are kept
+     */
+    ContributionsRunningData(MedianStoreType medianStoreType, GroupStorage groupStorage) {
+        this.medianStoreType = groupStorage == GroupStorage.OFF_HEAP ? MedianStoreType.HEAP : medianStoreType;
+        this.groupStorage = groupStorage;
+        groupsByKey = new LongIntHashMap();
+        groups = newGroups();
     }
 
     void resetCurrentData() {
@@ -30,50 +54,330 @@ public class ContributionsRunningData
     /**
      * Adds one contribution to the data store for a given recipient and zipcode
      *
-     * @param contribution - contribution payload
+     * @param recipient - int id of the recipient of the contribution
+     * @param contributorZip - zipcode as int, see ZipCode,
+     *                         or ContributionRecord.INVALID_ZIP if the zipcode is malformed
+     * @param amountCents - contribution amount in cents
      */
-    void addContribution(Contribution contribution) {
-        if (contribution.getContributorZip() != null) {
-            currentContributionsByZip = contributionsByZipMap
-                    .computeIfAbsent(contribution.getRecipientId() + "_" + contribution.getContributorZip(),
-                                      key -> new ContributionsByZip()).add(contribution.getTxAmount());
+    void addContribution(int recipient, int contributorZip, long amountCents) {
+        if (contributorZip != ContributionRecord.INVALID_ZIP) {
+            long key = GroupKey.of(recipient, contributorZip);
+            int group = groupsByKey.get(key);
+            if (group == LongIntHashMap.NOT_FOUND) {
+                group = groups.newGroup();
+                groupsByKey.put(key, group);
+            }
+            currentContributionsByZip = groups.add(group, amountCents);
+            contributionCount++;
         }
     }
 
+    /**
+     * Moves the groups of every recipient to the shard that owns the recipient, leaving this data store empty
+     *
+     * @param shards - empty data stores, see ContributionsStore.shardOf
+     */
+    void splitInto(ContributionsRunningData[] shards) {
+        groupsByKey.forEach((key, group) -> {
+            ContributionsRunningData shard = shards[ContributionsStore.shardOf(GroupKey.recipient(key), shards.length)];
+            int shardGroup = shard.groups.adopt(groups, group);
+            shard.groupsByKey.put(key, shardGroup);
+            shard.contributionCount += shard.groups.get(shardGroup).runningTotalTxCount;
+        });
+        groupsByKey = new LongIntHashMap();
+        groups = newGroups();
+        contributionCount = 0;
+    }
+
+    /**
+     * Moves every group of a shard back into this data store
+     *
+     * @param shard - data store owning recipients that have no group in this data store
+     */
+    void merge(ContributionsRunningData shard) {
+        shard.groupsByKey.forEach((key, group) -> groupsByKey.put(key, groups.adopt(shard.groups, group)));
+        contributionCount += shard.contributionCount;
+    }
+
+    /**
+     * @param recipient - int id of the recipient
+     * @param contributorZip - zipcode as int, see ZipCode
+     * @return running contributions of the recipient and zipcode, or null if there are none,
+     *         only valid till the next contribution is added when stored off the heap
+     */
+    public ContributionsByZip find(int recipient, int contributorZip) {
+        int group = groupsByKey.get(GroupKey.of(recipient, contributorZip));
+        return group == LongIntHashMap.NOT_FOUND ? null : groups.read(group);
+    }
+
+    /**
+     * @return number of recipient/zipcode groups, may lag behind when read from another thread
+     */
+    public int getGroupCount() {
+        return groupsByKey.size();
+    }
+
+    /**
+     * @return number of contributions added to the groups, may lag behind when read from another thread
+     */
+    public long getContributionCount() {
+        return contributionCount;
+    }
+
+    /**
+     * @return bytes allocated outside of the Java heap for the groups
+     */
+    public long getOffHeapBytes() {
+        return groups.getOffHeapBytes();
+    }
+
+    /**
+     * @return running contributions of the group of the last contribution added, or null if it has no zipcode,
+     *         only valid till the next contribution is added when stored off the heap
+     */
     public ContributionsByZip getCurrentContributionsByZip() {
         return currentContributionsByZip;
     }
 
+    /**
+     * Writes every group, see ContributionsCheckpoint
+     */
+    void writeTo(DataOutput out) throws IOException {
+        out.writeUTF(medianStoreType.name());
+        out.writeInt(groupsByKey.size());
+        try {
+            groupsByKey.forEach((key, group) -> {
+                try {
+                    out.writeLong(key);
+                    groups.get(group).writeTo(out);
+                } catch (IOException ioe) {
+                    throw new UncheckedIOException(ioe);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Restores the groups written by writeTo into this empty data store, see ContributionsCheckpoint
+     *
+     * @param recipients - int id in this store of every recipient int id of the checkpoint
+     */
+    void readFrom(DataInput in, int[] recipients) throws IOException {
+        String checkpointMedianStoreType = in.readUTF();
+        if (!checkpointMedianStoreType.equals(medianStoreType.name())) {
+            throw new IOException("Checkpoint holds " + checkpointMedianStoreType.toLowerCase()
+                    + " running medians, not " + medianStoreType.name().toLowerCase());
+        }
+        for (int count = in.readInt(); count > 0; count--) {
+            long key = in.readLong();
+            int group = groups.newGroup();
+            groups.readFrom(group, in);
+            groupsByKey.put(GroupKey.of(recipients[GroupKey.recipient(key)], GroupKey.value(key)), group);
+            contributionCount += groups.get(group).runningTotalTxCount;
+        }
+    }
+
+    private Groups newGroups() {
+        return groupStorage == GroupStorage.OFF_HEAP ? new OffHeapGroups() : new HeapGroups();
+    }
+
+    /**
+     * The running contributions of every group, by dense group id
+     */
+    private abstract static class Groups
+    {
+        /**
+         * @return id of a new group without contributions
+         */
+        abstract int newGroup();
+
+        /**
+         * @return the running contributions of the group after adding the amount
+         */
+        abstract ContributionsByZip add(int group, long amountCents);
+
+        /**
+         * @return the running contributions of the group, off the heap a view that the next call replaces
+         */
+        abstract ContributionsByZip get(int group);
+
+        /**
+         * @return the running contributions of the group, off the heap a view of its own,
+         *         so that several threads may read groups at once while no contribution is added
+         */
+        ContributionsByZip read(int group) {
+            return get(group);
+        }
+
+        /**
+         * @param other - groups of the same storage, the group must not be used through them afterwards
+         * @param otherGroup - group to take over
+         * @return id of the group in these groups
+         */
+        abstract int adopt(Groups other, int otherGroup);
+
+        abstract void readFrom(int group, DataInput in) throws IOException;
+
+        long getOffHeapBytes() {
+            return 0;
+        }
+    }
+
+    private class HeapGroups extends Groups
+    {
+        private ContributionsByZip[] contributionsByZip = new ContributionsByZip[64];
+        private int size;
+
+        @Override
+        int newGroup() {
+            return append(new ContributionsByZip(medianStoreType.create()));
+        }
+
+        @Override
+        ContributionsByZip add(int group, long amountCents) {
+            return contributionsByZip[group].add(amountCents);
+        }
+
+        @Override
+        ContributionsByZip get(int group) {
+            return contributionsByZip[group];
+        }
+
+        @Override
+        int adopt(Groups other, int otherGroup) {
+            return append(((HeapGroups) other).contributionsByZip[otherGroup]);
+        }
+
+        @Override
+        void readFrom(int group, DataInput in) throws IOException {
+            contributionsByZip[group].readFrom(in);
+        }
+
+        private int append(ContributionsByZip group) {
+            if (size == contributionsByZip.length) {
+                contributionsByZip = Arrays.copyOf(contributionsByZip, size * 2);
+            }
+            contributionsByZip[size] = group;
+            return size++;
+        }
+    }
+
+    /**
+     * Keeps the count and total of every group as two longs in an OffHeapLongArray
+     * and its amounts in OffHeapMedianHeaps, read and updated through a single ContributionsByZip view
+     */
+    private static class OffHeapGroups extends Groups
+    {
+        private static final int COUNTERS = 2;
+
+        private final OffHeapLongArray counters = new OffHeapLongArray();
+        private final OffHeapMedianHeaps medians = new OffHeapMedianHeaps();
+        private final ContributionsByZip view = new ContributionsByZip(medians.newView());
+
+        @Override
+        int newGroup() {
+            int group = medians.newGroup();
+            counters.ensureCapacity((group + 1L) * COUNTERS);
+            return group;
+        }
+
+        @Override
+        ContributionsByZip add(int group, long amountCents) {
+            get(group).add(amountCents);
+            return put(group);
+        }
+
+        @Override
+        ContributionsByZip get(int group) {
+            return load(view, group);
+        }
+
+        @Override
+        ContributionsByZip read(int group) {
+            return load(new ContributionsByZip(medians.newView()), group);
+        }
+
+        @Override
+        int adopt(Groups other, int otherGroup) {
+            ContributionsByZip source = other.get(otherGroup);
+            int group = newGroup();
+            get(group).runningMedian.addAll(source.runningMedian);
+            view.runningTotalTxCount = source.runningTotalTxCount;
+            view.runningTotalTxAmtCents = source.runningTotalTxAmtCents;
+            put(group);
+            return group;
+        }
+
+        @Override
+        void readFrom(int group, DataInput in) throws IOException {
+            get(group).readFrom(in);
+            put(group);
+        }
+
+        @Override
+        long getOffHeapBytes() {
+            return counters.getAllocatedBytes() + medians.getAllocatedBytes();
+        }
+
+        private ContributionsByZip put(int group) {
+            long counter = (long) group * COUNTERS;
+            counters.set(counter, view.runningTotalTxCount);
+            counters.set(counter + 1, view.runningTotalTxAmtCents);
+            return view;
+        }
+
+        private ContributionsByZip load(ContributionsByZip into, int group) {
+            long counter = (long) group * COUNTERS;
+            into.runningTotalTxCount = (int) counters.get(counter);
+            into.runningTotalTxAmtCents = counters.get(counter + 1);
+            ((OffHeapMedianHeaps.GroupView) into.runningMedian).select(group);
+            return into;
+        }
+    }
+
     /**
      * A class that represents running contributions by zipcode for a recipient
      */
     public static class ContributionsByZip {
         private int runningTotalTxCount;
-        private double runningTotalTxAmt;
-        private MedianHeapStore runningMedian;
+        private long runningTotalTxAmtCents;
+        private MedianStore runningMedian;
 
-        ContributionsByZip() {
-            runningMedian = new MedianHeapStore();
+        ContributionsByZip(MedianStore runningMedian) {
+            this.runningMedian = runningMedian;
         }
 
-        ContributionsByZip add(double amount) {
-            double amountInCents = amount*100;
-            runningTotalTxAmt += amountInCents;
+        ContributionsByZip add(long amountCents) {
+            runningTotalTxAmtCents += amountCents;
             runningTotalTxCount += 1;
-            runningMedian.add(amountInCents);
+            runningMedian.add(amountCents);
             return this;
         }
 
+        void writeTo(DataOutput out) throws IOException {
+            out.writeInt(runningTotalTxCount);
+            out.writeLong(runningTotalTxAmtCents);
+            runningMedian.writeTo(out);
+        }
+
+        void readFrom(DataInput in) throws IOException {
+            runningTotalTxCount = in.readInt();
+            runningTotalTxAmtCents = in.readLong();
+            runningMedian.readFrom(in);
+        }
+
         public int getRunningTotalTxCount() {
             return runningTotalTxCount;
         }
 
         public long getRunningTotalTxAmt() {
-            return (long) Math.rint(runningTotalTxAmt / 100);
+            return Cents.toDollars(runningTotalTxAmtCents);
         }
 
         public long getRunningMedian() {
-            return (long) Math.rint(runningMedian.getMedian() / 100);
+            return Cents.doubledToDollars(runningMedian.getDoubledMedian());
         }
     }
 }
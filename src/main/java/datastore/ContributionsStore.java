@@ -1,6 +1,12 @@
 package datastore;
 
 import payloads.Contribution;
+import payloads.ContributionRecord;
+import util.MedianStoreType;
+import util.StringDictionary;
+import util.ZipCode;
+
+import java.nio.file.Path;
 
 /**
  * A generic framework to store/compute running and aggregate contributions
@@ -10,12 +16,120 @@ import payloads.Contribution;
  */
 public class ContributionsStore
 {
+    // rough size of a group: map slot, group object and median store with its arrays
+    private static final int ESTIMATED_GROUP_BYTES = 120;
+    // an amount kept as long with growth slack, histogram stores keep less
+    private static final int ESTIMATED_CONTRIBUTION_BYTES = 12;
+
+    private StringDictionary recipientDictionary;
     private ContributionsRunningData contributionsRunningData;
     private ContributionsAggregateData contributionsAggregateData;
+    private SpillingAggregateData spillingAggregateData;
+
+    private boolean computeAggregateData;
+    private MedianStoreType runningMedianStoreType;
+    private MedianStoreType aggregateMedianStoreType;
+    private GroupStorage groupStorage;
 
     public ContributionsStore() {
-        contributionsRunningData = new ContributionsRunningData();
-        contributionsAggregateData = new ContributionsAggregateData();
+        this(true, MedianStoreType.HEAP, MedianStoreType.SELECTION);
+    }
+
+    /**
+     * @param computeAggregateData - false if the aggregate data is computed separately
+     *                               and merged in with mergeContributionsAggregateData
+     * @param runningMedianStoreType - how running medians by zipcode are computed
+     * @param aggregateMedianStoreType - how aggregate medians by date are computed
+     */
+    public ContributionsStore(boolean computeAggregateData, MedianStoreType runningMedianStoreType,
+                              MedianStoreType aggregateMedianStoreType) {
+        this(computeAggregateData, runningMedianStoreType, aggregateMedianStoreType, GroupStorage.HEAP);
+    }
+
+    /**
+     * @param computeAggregateData - false if the aggregate data is computed separately
+     *                               and merged in with mergeContributionsAggregateData
+     * @param runningMedianStoreType - how running medians by zipcode are computed
+     * @param aggregateMedianStoreType - how aggregate medians by date are computed
+     * @param groupStorage - where the groups are kept, off the heap both median store types are HEAP
+     */
+    public ContributionsStore(boolean computeAggregateData, MedianStoreType runningMedianStoreType,
+                              MedianStoreType aggregateMedianStoreType, GroupStorage groupStorage) {
+        this(new StringDictionary(), computeAggregateData, runningMedianStoreType, aggregateMedianStoreType,
+                groupStorage);
+    }
+
+    private ContributionsStore(StringDictionary recipientDictionary, boolean computeAggregateData,
+                               MedianStoreType runningMedianStoreType, MedianStoreType aggregateMedianStoreType,
+                               GroupStorage groupStorage) {
+        this.recipientDictionary = recipientDictionary;
+        contributionsRunningData = new ContributionsRunningData(runningMedianStoreType, groupStorage);
+        contributionsAggregateData = new ContributionsAggregateData(aggregateMedianStoreType, recipientDictionary,
+                groupStorage);
+        this.computeAggregateData = computeAggregateData;
+        this.runningMedianStoreType = runningMedianStoreType;
+        this.aggregateMedianStoreType = aggregateMedianStoreType;
+        this.groupStorage = groupStorage;
+    }
+
+    /**
+     * Splits this store into shards that each own the recipients whose int id modulo the number of shards
+     * selects them, so that the shards can be updated on different threads without locking
+     *
+     * Shards share the recipient dictionary and settings of this store, and take over its running groups.
+     * This store must not be used till the shards are merged back with mergeShards.
+     *
+     * @param shards - number of shards
+     * @return the shards, a contribution must be added to the shard shardOf its recipient
+     */
+    public ContributionsStore[] shard(int shards) {
+        ContributionsStore[] shardStores = new ContributionsStore[shards];
+        ContributionsRunningData[] runningShards = new ContributionsRunningData[shards];
+        for (int i = 0; i < shards; i++) {
+            shardStores[i] = new ContributionsStore(recipientDictionary, computeAggregateData,
+                    runningMedianStoreType, aggregateMedianStoreType, groupStorage);
+            runningShards[i] = shardStores[i].contributionsRunningData;
+        }
+        contributionsRunningData.splitInto(runningShards);
+        return shardStores;
+    }
+
+    /**
+     * Computes the aggregate data out of core from now on: contributions by date are buffered up to
+     * memoryLimitBytes, then spilled to sorted runs on disk, see SpillingAggregateData
+     * The aggregate data of this store stays empty, so it can not be queried, checkpointed, sharded or merged.
+     *
+     * @param memoryLimitBytes - bytes of buffered contributions by date that trigger a spill
+     * @param spillDirectory - directory the runs are written to
+     */
+    public void spillAggregateData(long memoryLimitBytes, Path spillDirectory) {
+        spillingAggregateData = new SpillingAggregateData(recipientDictionary, memoryLimitBytes, spillDirectory);
+    }
+
+    /**
+     * @return the out of core aggregate data, or null if the aggregate data is kept in memory
+     */
+    public SpillingAggregateData getSpillingAggregateData() {
+        return spillingAggregateData;
+    }
+
+    /**
+     * @param recipient - int id of the recipient
+     * @param shards - number of shards
+     * @return index of the shard owning the recipient
+     */
+    public static int shardOf(int recipient, int shards) {
+        return recipient % shards;
+    }
+
+    /**
+     * Merges back the shards returned by shard, which must not be used afterwards
+     */
+    public void mergeShards(ContributionsStore[] shards) {
+        for (ContributionsStore shard : shards) {
+            contributionsRunningData.merge(shard.contributionsRunningData);
+            contributionsAggregateData.merge(shard.contributionsAggregateData);
+        }
     }
 
     /**
@@ -24,14 +138,117 @@ public class ContributionsStore
      * @return returns a running contribution data at the end of processing each contribution
      */
     public ContributionsRunningData addContribution(Contribution contribution) {
+        if (contribution.getRecipientId() == null) {
+            contributionsRunningData.resetCurrentData();
+            return contributionsRunningData;
+        }
+        String contributorZip = contribution.getContributorZip();
+        return addContribution(recipientDictionary.idOf(contribution.getRecipientId()),
+                contributorZip != null ? ZipCode.parse(contributorZip) : ContributionRecord.INVALID_ZIP,
+                contribution.getTxDatePacked(), contribution.getTxAmountCents());
+    }
+
+    /**
+     *
+     * @param record - a single contribution parsed by a ContributionParser sharing this store's recipient dictionary
+     * @return returns a running contribution data at the end of processing each contribution
+     */
+    public ContributionsRunningData addContribution(ContributionRecord record) {
+        return addContribution(record.getRecipientIndex(), record.getContributorZipCode(),
+                record.getTxDate(), record.getTxAmountCents());
+    }
+
+    /**
+     *
+     * @param recipient - int id of the recipient of the contribution in this store's recipient dictionary
+     * @param contributorZip - zipcode as int, see ZipCode,
+     *                         or ContributionRecord.INVALID_ZIP if the zipcode is malformed
+     * @param txDate - date packed as yyyymmdd, or PackedDate.INVALID if the date is malformed
+     * @param txAmountCents - contribution amount in cents
+     * @return returns a running contribution data at the end of processing each contribution
+     */
+    public ContributionsRunningData addContribution(int recipient, int contributorZip, int txDate,
+                                                    long txAmountCents) {
         contributionsRunningData.resetCurrentData();
 
-        contributionsRunningData.addContribution(contribution);
-        contributionsAggregateData.addContribution(contribution);
+        contributionsRunningData.addContribution(recipient, contributorZip, txAmountCents);
+        if (spillingAggregateData != null) {
+            spillingAggregateData.addContribution(recipient, txDate, txAmountCents);
+        } else if (computeAggregateData) {
+            contributionsAggregateData.addContribution(recipient, txDate, txAmountCents);
+        }
+
+        return contributionsRunningData;
+    }
+
+    /**
+     * @param recipientId - recipient of the contributions
+     * @param contributorZip - zipcode as int, see ZipCode
+     * @return running contributions of the recipient and zipcode, or null if there are none
+     */
+    public ContributionsRunningData.ContributionsByZip findContributionsByZip(String recipientId, int contributorZip) {
+        int recipient = recipientDictionary.find(recipientId);
+        return recipient == StringDictionary.NOT_FOUND ? null
+                : contributionsRunningData.find(recipient, contributorZip);
+    }
+
+    /**
+     * @param recipientId - recipient of the contributions
+     * @param txDate - date packed as yyyymmdd
+     * @return contributions of the recipient on that date, or null if there are none
+     */
+    public ContributionsAggregateData.ContributionsByDate findContributionsByDate(String recipientId, int txDate) {
+        int recipient = recipientDictionary.find(recipientId);
+        return recipient == StringDictionary.NOT_FOUND ? null
+                : contributionsAggregateData.find(recipient, txDate);
+    }
+
+    /**
+     * @param partialAggregateData - aggregate data computed outside of this store
+     */
+    public void mergeContributionsAggregateData(ContributionsAggregateData partialAggregateData) {
+        contributionsAggregateData.merge(partialAggregateData);
+    }
 
+    public ContributionsRunningData getContributionsRunningData() {
         return contributionsRunningData;
     }
 
+    /**
+     * Estimates the heap used by the groups, assuming every amount is kept,
+     * meant for monitoring only
+     *
+     * @return estimated bytes used by the running and aggregate data
+     */
+    public long getEstimatedMemoryBytes() {
+        long groups = (long) contributionsRunningData.getGroupCount() + contributionsAggregateData.getGroupCount();
+        long contributions = contributionsRunningData.getContributionCount()
+                + contributionsAggregateData.getContributionCount();
+        long spillBuffer = spillingAggregateData != null ? spillingAggregateData.getBufferedBytes() : 0;
+        return groups * ESTIMATED_GROUP_BYTES + contributions * ESTIMATED_CONTRIBUTION_BYTES + spillBuffer;
+    }
+
+    /**
+     * @return bytes allocated outside of the Java heap by the running and aggregate data
+     */
+    public long getOffHeapBytes() {
+        return contributionsRunningData.getOffHeapBytes() + contributionsAggregateData.getOffHeapBytes();
+    }
+
+    /**
+     * @return dictionary of the recipient int ids, to be shared by every parser feeding this store
+     */
+    public StringDictionary getRecipientDictionary() {
+        return recipientDictionary;
+    }
+
+    /**
+     * @return where the groups are kept, aggregate data merged into this store must keep them alike
+     */
+    public GroupStorage getGroupStorage() {
+        return groupStorage;
+    }
+
     public ContributionsAggregateData getContributionsAggregateData() {
         return contributionsAggregateData;
     }
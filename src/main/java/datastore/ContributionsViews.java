@@ -0,0 +1,381 @@
+package datastore;
+
+import payloads.ContributionRecord;
+import payloads.TextColumn;
+import util.AsciiRowWriter;
+import util.Cents;
+import util.GroupKey;
+import util.KllSketch;
+import util.LongIntHashMap;
+import util.MedianStore;
+import util.MedianStoreType;
+import util.QuantileStore;
+import util.StringDictionary;
+import util.SelectionMedianStore;
+import util.TopKTotals;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+
+/**
+ * Computes any number of AggregationViews in a single pass over the contributions
+ *
+ * The views are compiled into one update per row: the value of every column used by any view is
+ * read once from the parsed row, then each view packs its one or two key columns into a GroupKey,
+ * looks up its group in a LongIntHashMap and updates only the metrics it reports.
+ * Groups keep their count, total in cents, median or quantile store and top donors in arrays by dense group id.
+ * Medians and quantiles are exact, or approximated by a KllSketch of fixed size for views with a sketch size.
+ * Top donors are kept by a TopKTotals of TOP_COUNTERS_PER_DONOR counters per donor reported.
+ *
+ * Running views write a row per contribution as it is added, final views write every group
+ * with writeFinalViews, sorted by their key columns: recipients and text alphabetically,
+ * zipcodes, dates and months by value.
+ *
+ * Text columns are parsed only if a view groups by them, and donor names only for top donors,
+ * see getTextDictionaries.
+ */
+public class ContributionsViews implements Closeable
+{
+    public static final int TOP_COUNTERS_PER_DONOR = 4;
+
+    private static final GroupColumn[] COLUMNS = GroupColumn.values();
+
+    private final StringDictionary recipientDictionary;
+    private final StringDictionary[] textDictionaries = new StringDictionary[TextColumn.values().length];
+    private final ViewData[] views;
+    // columns read by any view, and their values on the row being added
+    private final GroupColumn[] usedColumns;
+    private final int[] columnValues = new int[COLUMNS.length];
+
+    private ContributionsViews(List<AggregationView> views, StringDictionary recipientDictionary,
+                               AsciiRowWriter[] outputs) {
+        this.recipientDictionary = recipientDictionary;
+        this.views = new ViewData[views.size()];
+        EnumSet<GroupColumn> used = EnumSet.noneOf(GroupColumn.class);
+        for (int i = 0; i < views.size(); i++) {
+            this.views[i] = new ViewData(views.get(i), outputs[i]);
+            used.addAll(views.get(i).getKeyColumns());
+            if (this.views[i].tops != null) {
+                textDictionaries[TextColumn.NAME.ordinal()] = new StringDictionary();
+            }
+        }
+        for (GroupColumn column : used) {
+            if (column.getTextColumn() != null) {
+                textDictionaries[column.getTextColumn().ordinal()] = new StringDictionary();
+            }
+        }
+        usedColumns = used.toArray(new GroupColumn[0]);
+    }
+
+    /**
+     * Creates the output file of every view
+     *
+     * @param views - views to compute
+     * @param recipientDictionary - dictionary of the recipient int ids of the parsed rows
+     * @param outputBufferSize - bytes buffered per output file before writing
+     * @return the views, to be closed once written
+     * @throws IOException if an output file can not be opened
+     */
+    public static ContributionsViews open(List<AggregationView> views, StringDictionary recipientDictionary,
+                                          int outputBufferSize) throws IOException {
+        AsciiRowWriter[] outputs = new AsciiRowWriter[views.size()];
+        try {
+            for (int i = 0; i < outputs.length; i++) {
+                outputs[i] = AsciiRowWriter.open(views.get(i).getOutput(), outputBufferSize);
+            }
+        } catch (IOException ioe) {
+            for (AsciiRowWriter output : outputs) {
+                if (output != null) {
+                    output.close();
+                }
+            }
+            throw ioe;
+        }
+        return new ContributionsViews(views, recipientDictionary, outputs);
+    }
+
+    /**
+     * @return dictionary per TextColumn by ordinal for the columns the views group by, null for the others,
+     *         to be given to every ContributionParser of the rows added
+     */
+    public StringDictionary[] getTextDictionaries() {
+        return textDictionaries;
+    }
+
+    /**
+     * Adds a contribution to every view, writing the rows of the running views
+     *
+     * @param record - a row parsed with the text dictionaries of these views
+     */
+    public void addContribution(ContributionRecord record) {
+        for (GroupColumn column : usedColumns) {
+            columnValues[column.ordinal()] = column.valueOf(record);
+        }
+        long amountCents = record.getTxAmountCents();
+        int donor = record.getTextId(TextColumn.NAME);
+        for (ViewData view : views) {
+            view.add(columnValues, amountCents, donor);
+        }
+    }
+
+    /**
+     * Writes every group of the final views, once all contributions are added
+     */
+    public void writeFinalViews() {
+        for (ViewData view : views) {
+            if (!view.running) {
+                view.writeAll();
+            }
+        }
+    }
+
+    /**
+     * @return true if writing any output failed
+     */
+    public boolean checkError() {
+        boolean error = false;
+        for (ViewData view : views) {
+            error |= view.output.checkError();
+        }
+        return error;
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (ViewData view : views) {
+            try {
+                view.output.close();
+            } catch (IOException ioe) {
+                failure = ioe;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private String nameOf(GroupColumn column, int value) {
+        if (column == GroupColumn.RECIPIENT) {
+            return recipientDictionary.nameOf(value);
+        }
+        TextColumn textColumn = column.getTextColumn();
+        return textColumn != null ? textDictionaries[textColumn.ordinal()].nameOf(value) : null;
+    }
+
+    /**
+     * The groups of one view, by dense group id
+     */
+    private class ViewData
+    {
+        private final GroupColumn[] keyColumns;
+        private final AggregationView.Metric[] metrics;
+        private final boolean running;
+        private final MedianStoreType medianStoreType;
+        private final int sketchSize;
+        private final AsciiRowWriter output;
+
+        private final LongIntHashMap groupsByKey = new LongIntHashMap();
+        private long[] keys = new long[64];
+        private int[] counts = new int[64];
+        private long[] totals = new long[64];
+        // exact medians, null unless a median is reported without a sketch
+        private MedianStore[] medians;
+        // quantiles, and medians with a sketch, the same stores as the medians if both are exact
+        private QuantileStore[] quantiles;
+        private TopKTotals[] tops;
+        private final int topCounters;
+        private final int[] topIds;
+        private final long[] topTotals;
+        private int size;
+
+        ViewData(AggregationView view, AsciiRowWriter output) {
+            this.keyColumns = view.getKeyColumns().toArray(new GroupColumn[0]);
+            this.metrics = view.getMetrics().toArray(new AggregationView.Metric[0]);
+            this.running = view.isRunning();
+            // a final median is computed once per group, see MedianStoreType.SELECTION
+            this.medianStoreType = running ? MedianStoreType.HEAP : MedianStoreType.SELECTION;
+            this.sketchSize = view.getSketchSize();
+            this.output = output;
+            boolean median = false;
+            boolean quantile = false;
+            int topCount = 0;
+            for (AggregationView.Metric metric : metrics) {
+                median |= metric.getKind() == AggregationView.Metric.Kind.MEDIAN;
+                quantile |= metric.getKind() == AggregationView.Metric.Kind.QUANTILE;
+                topCount = Math.max(topCount, metric.getTopCount());
+            }
+            this.medians = median && sketchSize == 0 ? new MedianStore[64] : null;
+            this.quantiles = quantile || median && sketchSize > 0 ? new QuantileStore[64] : null;
+            this.tops = topCount > 0 ? new TopKTotals[64] : null;
+            this.topCounters = topCount * TOP_COUNTERS_PER_DONOR;
+            this.topIds = new int[topCount];
+            this.topTotals = new long[topCount];
+        }
+
+        void add(int[] columnValues, long amountCents, int donor) {
+            int first = columnValues[keyColumns[0].ordinal()];
+            int second = keyColumns.length > 1 ? columnValues[keyColumns[1].ordinal()] : 0;
+            if (first == GroupColumn.INVALID || second == GroupColumn.INVALID) {
+                return;
+            }
+            long key = GroupKey.of(first, second);
+            int group = groupsByKey.get(key);
+            if (group == LongIntHashMap.NOT_FOUND) {
+                group = newGroup(key);
+                groupsByKey.put(key, group);
+            }
+            counts[group]++;
+            totals[group] += amountCents;
+            if (medians != null) {
+                medians[group].add(amountCents);
+            } else if (quantiles != null) {
+                quantiles[group].add(amountCents);
+            }
+            if (tops != null && donor != ContributionRecord.MISSING_TEXT) {
+                tops[group].add(donor, amountCents);
+            }
+            if (running) {
+                write(group);
+            }
+        }
+
+        private int newGroup(long key) {
+            if (size == keys.length) {
+                int capacity = size * 2;
+                keys = Arrays.copyOf(keys, capacity);
+                counts = Arrays.copyOf(counts, capacity);
+                totals = Arrays.copyOf(totals, capacity);
+                if (medians != null) {
+                    medians = Arrays.copyOf(medians, capacity);
+                }
+                if (quantiles != null) {
+                    quantiles = Arrays.copyOf(quantiles, capacity);
+                }
+                if (tops != null) {
+                    tops = Arrays.copyOf(tops, capacity);
+                }
+            }
+            keys[size] = key;
+            if (medians != null) {
+                medians[size] = medianStoreType.create();
+            }
+            if (quantiles != null) {
+                if (sketchSize > 0) {
+                    quantiles[size] = new KllSketch(sketchSize);
+                } else {
+                    // exact quantiles are only allowed in final views, whose medians are selections as well
+                    quantiles[size] = medians != null ? (SelectionMedianStore) medians[size] : new SelectionMedianStore();
+                }
+            }
+            if (tops != null) {
+                tops[size] = new TopKTotals(topCounters);
+            }
+            return size++;
+        }
+        /**
+         * Writes every group sorted by key columns: each column value is replaced by its rank,
+         * the alphabetical rank for names, and the groups are written in the order of their packed ranks
+         */
+        void writeAll() {
+            int[] firstRanks = ranks(keyColumns[0]);
+            int[] secondRanks = keyColumns.length > 1 ? ranks(keyColumns[1]) : null;
+            long[] sortKeys = new long[size];
+            LongIntHashMap groupsBySortKey = new LongIntHashMap(size);
+            for (int group = 0; group < size; group++) {
+                int first = GroupKey.recipient(keys[group]);
+                int second = GroupKey.value(keys[group]);
+                sortKeys[group] = GroupKey.of(firstRanks != null ? firstRanks[first] : first,
+                        secondRanks != null ? secondRanks[second] : second);
+                groupsBySortKey.put(sortKeys[group], group);
+            }
+            Arrays.sort(sortKeys);
+            for (long sortKey : sortKeys) {
+                int group = groupsBySortKey.get(sortKey);
+                write(group);
+                if (medians != null) {
+                    medians[group].release();
+                }
+                if (quantiles != null) {
+                    quantiles[group] = null;
+                }
+                if (tops != null) {
+                    tops[group] = null;
+                }
+            }
+        }
+
+        /**
+         * @return alphabetical rank of every id of a named column, or null to sort the column by value
+         */
+        private int[] ranks(GroupColumn column) {
+            if (!column.isNamed()) {
+                return null;
+            }
+            StringDictionary dictionary = column == GroupColumn.RECIPIENT ? recipientDictionary
+                    : textDictionaries[column.getTextColumn().ordinal()];
+            int names = dictionary.size();
+            Integer[] byName = new Integer[names];
+            for (int id = 0; id < names; id++) {
+                byName[id] = id;
+            }
+            Arrays.sort(byName, (a, b) -> dictionary.nameOf(a).compareTo(dictionary.nameOf(b)));
+            int[] ranks = new int[names];
+            for (int rank = 0; rank < names; rank++) {
+                ranks[byName[rank]] = rank;
+            }
+            return ranks;
+        }
+
+        private void write(int group) {
+            int first = GroupKey.recipient(keys[group]);
+            keyColumns[0].write(output, first, nameOf(keyColumns[0], first));
+            output.append('|');
+            if (keyColumns.length > 1) {
+                int second = GroupKey.value(keys[group]);
+                keyColumns[1].write(output, second, nameOf(keyColumns[1], second));
+                output.append('|');
+            }
+            for (int i = 0; i < metrics.length; i++) {
+                if (i > 0) {
+                    output.append('|');
+                }
+                switch (metrics[i].getKind()) {
+                    case COUNT:
+                        output.append(counts[group]);
+                        break;
+                    case TOTAL:
+                        output.append(Cents.toDollars(totals[group]));
+                        break;
+                    case MEDIAN:
+                        if (medians != null) {
+                            output.append(Cents.doubledToDollars(medians[group].getDoubledMedian()));
+                        } else {
+                            output.append(Cents.toDollars(quantiles[group].getQuantile(metrics[i].getQuantile())));
+                        }
+                        break;
+                    case QUANTILE:
+                        output.append(Cents.toDollars(quantiles[group].getQuantile(metrics[i].getQuantile())));
+                        break;
+                    default:
+                        writeTopDonors(group, metrics[i].getTopCount());
+                }
+            }
+            output.endRow();
+        }
+
+        private void writeTopDonors(int group, int topCount) {
+            int donors = tops[group].top(topIds, topTotals);
+            StringDictionary names = textDictionaries[TextColumn.NAME.ordinal()];
+            for (int i = 0; i < Math.min(donors, topCount); i++) {
+                if (i > 0) {
+                    output.append(';');
+                }
+                output.append(names.nameOf(topIds[i])).append('=').append(Cents.toDollars(topTotals[i]));
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package datastore;
+
+import payloads.ContributionRecord;
+import payloads.TextColumn;
+import util.AsciiRowWriter;
+import util.PackedDate;
+import util.ZipCode;
+
+/**
+ * A column contributions can be grouped by in an AggregationView, with its int value on a parsed row
+ *
+ * Every value is a non-negative int so that two of them form a GroupKey, and INVALID marks rows
+ * whose column is malformed or empty, which are left out of the view like rows with a malformed
+ * zipcode are left out of the running data by zipcode.
+ */
+public enum GroupColumn
+{
+    /**
+     * int id of the recipient in the store's StringDictionary, written as the recipient id
+     */
+    RECIPIENT(null),
+
+    /**
+     * 5 digit zipcode, written zero padded
+     */
+    ZIP(null),
+
+    /**
+     * date packed as yyyymmdd, written as MMDDYYYY
+     */
+    DATE(null),
+
+    /**
+     * month packed as yyyymm, written as MMYYYY
+     */
+    MONTH(null),
+
+    STATE(TextColumn.STATE),
+    EMPLOYER(TextColumn.EMPLOYER),
+    OCCUPATION(TextColumn.OCCUPATION);
+
+    public static final int INVALID = -1;
+
+    private final TextColumn textColumn;
+
+    GroupColumn(TextColumn textColumn) {
+        this.textColumn = textColumn;
+    }
+
+    /**
+     * @return the text column the values are dictionary ids of, or null if the value is not text
+     */
+    public TextColumn getTextColumn() {
+        return textColumn;
+    }
+
+    /**
+     * @param record - a parsed row, with this column's text column parsed
+     * @return value of the column on the row, or INVALID
+     */
+    int valueOf(ContributionRecord record) {
+        switch (this) {
+            case RECIPIENT:
+                return record.getRecipientIndex();
+            case ZIP:
+                int zip = record.getContributorZipCode();
+                return zip == ContributionRecord.INVALID_ZIP ? INVALID : zip;
+            case DATE:
+                int date = record.getTxDate();
+                return date == PackedDate.INVALID ? INVALID : date;
+            case MONTH:
+                int month = record.getTxDate();
+                return month == PackedDate.INVALID ? INVALID : month / 100;
+            default:
+                int text = record.getTextId(textColumn);
+                return text == ContributionRecord.MISSING_TEXT ? INVALID : text;
+        }
+    }
+
+    /**
+     * @param value - a valid value of this column
+     * @param name - the recipient id or the text of a text column, null otherwise
+     */
+    void write(AsciiRowWriter out, int value, String name) {
+        switch (this) {
+            case ZIP:
+                ZipCode.append(out, value);
+                break;
+            case DATE:
+                out.appendZeroPadded(PackedDate.month(value), 2).appendZeroPadded(PackedDate.day(value), 2)
+                        .appendZeroPadded(PackedDate.year(value), 4);
+                break;
+            case MONTH:
+                out.appendZeroPadded(value % 100, 2).appendZeroPadded(value / 100, 4);
+                break;
+            default:
+                out.append(name);
+        }
+    }
+
+    /**
+     * @return true if the values are dictionary ids, reported in the alphabetical order of their names
+     */
+    boolean isNamed() {
+        return this == RECIPIENT || textColumn != null;
+    }
+}
@@ -0,0 +1,18 @@
+package datastore;
+
+/**
+ * Where the running and aggregate data stores keep their groups
+ */
+public enum GroupStorage
+{
+    /**
+     * An object per group with its own median store, on the Java heap
+     */
+    HEAP,
+
+    /**
+     * Counters and amounts of every group in direct buffers outside of the Java heap,
+     * see OffHeapLongArray and OffHeapMedianHeaps. Medians are always kept in two heaps.
+     */
+    OFF_HEAP
+}
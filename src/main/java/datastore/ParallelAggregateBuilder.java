@@ -0,0 +1,118 @@
+package datastore;
+
+import ingest.MappedFileReader;
+import payloads.ContributionParser;
+import payloads.ContributionRecord;
+import util.MedianStoreType;
+import util.StringDictionary;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Computes the aggregate contributions by date on a pool of worker threads
+ *
+ * Aggregate data is only reported at the end of the run, so the order in which
+ * contributions are added to it does not matter:
+ *  - The input is memory-mapped in line-aligned chunks
+ *  - Each worker takes the next unprocessed chunk and adds its rows to its own partial data store
+ *  - The partial data stores are merged once every chunk is processed
+ *
+ * Runs alongside the ordered running computation, which then skips the aggregate data.
+ */
+public class ParallelAggregateBuilder
+{
+    public static final int DEFAULT_CHUNK_SIZE = 16 << 20;
+
+    private final ExecutorService executor;
+    private final List<Future<ContributionsAggregateData>> partials;
+    private final FileChannel channel;
+
+    private ParallelAggregateBuilder(Path input, int threads, int chunkSize, MedianStoreType medianStoreType,
+                                     StringDictionary recipientDictionary,
+                                     GroupStorage groupStorage) throws IOException {
+        channel = FileChannel.open(input, StandardOpenOption.READ);
+        List<MappedByteBuffer> chunks = MappedFileReader.mapChunks(channel, chunkSize);
+        AtomicInteger nextChunk = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "date-aggregator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        partials = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            partials.add(executor.submit(() -> aggregateChunks(chunks, nextChunk, medianStoreType,
+                    recipientDictionary, groupStorage)));
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * Starts aggregating the input in the background
+     *
+     * @param input - input file
+     * @param threads - number of worker threads
+     * @param chunkSize - approximate size in bytes of the chunks taken by the workers, e.g. DEFAULT_CHUNK_SIZE
+     * @param medianStoreType - how medians by date are computed
+     * @param contributionsStore - store whose aggregate data is filled, providing the recipient dictionary
+     *                             and group storage
+     * @return builder to collect the merged result from
+     * @throws IOException if the input can not be mapped
+     */
+    public static ParallelAggregateBuilder start(Path input, int threads, int chunkSize,
+                                                 MedianStoreType medianStoreType,
+                                                 ContributionsStore contributionsStore) throws IOException {
+        return new ParallelAggregateBuilder(input, Math.max(1, threads), chunkSize, medianStoreType,
+                contributionsStore.getRecipientDictionary(), contributionsStore.getGroupStorage());
+    }
+
+    /**
+     * Waits for every worker and merges their partial data into the store
+     *
+     * @param contributionsStore - store whose aggregate data is filled
+     * @throws IOException if a worker failed
+     */
+    public void mergeInto(ContributionsStore contributionsStore) throws IOException {
+        try {
+            for (Future<ContributionsAggregateData> partial : partials) {
+                contributionsStore.mergeContributionsAggregateData(partial.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while aggregating contributions by date", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to aggregate contributions by date", e.getCause());
+        } finally {
+            executor.shutdownNow();
+            channel.close();
+        }
+    }
+
+    private static ContributionsAggregateData aggregateChunks(List<MappedByteBuffer> chunks, AtomicInteger nextChunk,
+                                                              MedianStoreType medianStoreType,
+                                                              StringDictionary recipientDictionary,
+                                                              GroupStorage groupStorage) {
+        ContributionsAggregateData partial = new ContributionsAggregateData(medianStoreType, recipientDictionary,
+                groupStorage);
+        ContributionParser parser = new ContributionParser(recipientDictionary);
+        ContributionRecord record = new ContributionRecord();
+        for (int chunk = nextChunk.getAndIncrement(); chunk < chunks.size(); chunk = nextChunk.getAndIncrement()) {
+            MappedFileReader.forEachLine(chunks.get(chunk), (buffer, start, end) -> {
+                if (parser.parse(buffer, start, end, record)) {
+                    partial.addContribution(record.getRecipientIndex(), record.getTxDate(), record.getTxAmountCents());
+                }
+            });
+        }
+        return partial;
+    }
+}
@@ -0,0 +1,555 @@
+package datastore;
+
+import util.Cents;
+import util.GroupKey;
+import util.LongIntHashMap;
+import util.PackedDate;
+import util.StringDictionary;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Aggregate contributions by recipient and date computed out of core, with a bounded amount of memory
+ *
+ *  - Contributions are buffered as groups of amounts, like ContributionsAggregateData, till the buffer
+ *    reaches its memory limit
+ *  - The buffer is then spilled as a run to a temporary file: its groups sorted by recipient alphabetically
+ *    then date chronologically, each written as recipient, date and count followed by its amounts sorted ascending,
+ *    as variable-length ints, the amounts as deltas
+ *  - At the end the runs are merged MERGE_WIDTH at a time into longer runs, then the last ones into
+ *    the groups in report order: the counts of a group are summed from the run headers, so the median is
+ *    picked while streaming its merged amounts, without holding them
+ *
+ * Memory is thus the buffer limit plus a read buffer per merged run, whatever the size of the input,
+ * and the medians are exact.
+ *
+ * Not thread-safe.
+ */
+public class SpillingAggregateData implements Closeable
+{
+    public static final int MERGE_WIDTH = 64;
+
+    // written in place of a recipient after the last group of a run
+    private static final long END_OF_RUN = -1;
+    private static final int IO_BUFFER_SIZE = 64 << 10;
+    // hash map slot, key, size and array header of a buffered group
+    private static final int GROUP_BYTES = 64;
+
+    private final StringDictionary recipientDictionary;
+    private final long memoryLimitBytes;
+    private final Path spillDirectory;
+    private Path runDirectory;
+    private final List<Path> runs = new ArrayList<>();
+    private int runsCreated;
+
+    private LongIntHashMap groupsByKey = new LongIntHashMap();
+    private long[] keys = new long[64];
+    private long[][] amounts = new long[64][];
+    private int[] sizes = new int[64];
+    private int groupCount;
+    private long bufferedBytes;
+    private long contributionCount;
+    private IOException failure;
+
+    /**
+     * @param recipientDictionary - dictionary of the recipient int ids the contributions are added with
+     * @param memoryLimitBytes - bytes of buffered groups and amounts that trigger a spill
+     * @param spillDirectory - directory the temporary directory of the runs is created in
+     */
+    public SpillingAggregateData(StringDictionary recipientDictionary, long memoryLimitBytes,
+                                 Path spillDirectory) {
+        this.recipientDictionary = recipientDictionary;
+        this.memoryLimitBytes = memoryLimitBytes;
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * Adds one contribution, spilling the buffer first if it is full
+     * A failed spill is reported by forEachSortedByRecipientAndDate, the contributions added afterwards are dropped.
+     *
+     * @param recipient - int id of the recipient of the contribution
+     * @param txDate - date packed as yyyymmdd, or PackedDate.INVALID if the date is malformed
+     * @param amountCents - contribution amount in cents
+     */
+    void addContribution(int recipient, int txDate, long amountCents) {
+        if (txDate == PackedDate.INVALID || failure != null) {
+            return;
+        }
+        if (bufferedBytes >= memoryLimitBytes) {
+            try {
+                spill();
+            } catch (IOException ioe) {
+                failure = ioe;
+                return;
+            }
+        }
+        long key = GroupKey.of(recipient, txDate);
+        int group = groupsByKey.get(key);
+        if (group == LongIntHashMap.NOT_FOUND) {
+            group = newGroup(key);
+            groupsByKey.put(key, group);
+        }
+        long[] groupAmounts = amounts[group];
+        if (sizes[group] == groupAmounts.length) {
+            groupAmounts = Arrays.copyOf(groupAmounts, groupAmounts.length * 2);
+            amounts[group] = groupAmounts;
+            bufferedBytes += 4L * groupAmounts.length;
+        }
+        groupAmounts[sizes[group]++] = amountCents;
+        contributionCount++;
+    }
+
+    private int newGroup(long key) {
+        if (groupCount == keys.length) {
+            int capacity = groupCount * 2;
+            keys = Arrays.copyOf(keys, capacity);
+            amounts = Arrays.copyOf(amounts, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+        }
+        keys[groupCount] = key;
+        amounts[groupCount] = new long[2];
+        bufferedBytes += GROUP_BYTES + 16;
+        return groupCount++;
+    }
+
+    /**
+     * Merges the runs and the buffer, visiting every group by recipient sorted alphabetically then by date
+     * sorted chronologically, then deletes the runs. May only be called once, after every contribution is added.
+     *
+     * @param visitor - called with each merged group in order
+     * @throws IOException if spilling or merging the runs failed
+     */
+    public void forEachSortedByRecipientAndDate(MergedGroupVisitor visitor) throws IOException {
+        try {
+            if (failure != null) {
+                throw failure;
+            }
+            if (groupCount > 0) {
+                spill();
+            }
+            int[] ranks = alphabeticalRanks();
+            while (runs.size() > MERGE_WIDTH) {
+                List<Path> merged = new ArrayList<>(runs.subList(0, MERGE_WIDTH));
+                // listed before it is written, so that close deletes it whatever happens
+                Path run = nextRunFile();
+                try (RunMerger merger = new RunMerger(merged, ranks);
+                     DataOutputRun out = new DataOutputRun(run)) {
+                    while (merger.nextGroup()) {
+                        out.writeGroupHeader(merger.recipient, merger.date, merger.count);
+                        for (int i = 0; i < merger.count; i++) {
+                            out.writeAmount(merger.nextAmount());
+                        }
+                    }
+                    out.finish();
+                }
+                runs.subList(0, MERGE_WIDTH).clear();
+                for (Path input : merged) {
+                    Files.delete(input);
+                }
+            }
+            try (RunMerger merger = new RunMerger(runs, ranks)) {
+                while (merger.nextGroup()) {
+                    mergeGroup(merger, visitor);
+                }
+            }
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Streams the amounts of the current group of the merger, picking its median on the way,
+     * and visits the merged group
+     */
+    private void mergeGroup(RunMerger merger, MergedGroupVisitor visitor) throws IOException {
+        int lowerRank = (merger.count - 1) / 2;
+        int upperRank = merger.count / 2;
+        long doubledMedian = 0;
+        long total = 0;
+        for (int i = 0; i < merger.count; i++) {
+            long amount = merger.nextAmount();
+            total += amount;
+            if (i == lowerRank) {
+                doubledMedian = amount;
+            }
+            if (i == upperRank) {
+                doubledMedian += amount;
+            }
+        }
+        visitor.accept(recipientDictionary.nameOf(merger.recipient), merger.date,
+                Cents.doubledToDollars(doubledMedian), merger.count, Cents.toDollars(total));
+    }
+
+    /**
+     * @return number of buffered recipient/date groups
+     */
+    public int getGroupCount() {
+        return groupCount;
+    }
+
+    /**
+     * @return number of contributions added so far, spilled or buffered
+     */
+    public long getContributionCount() {
+        return contributionCount;
+    }
+
+    /**
+     * @return estimated bytes held by the buffered groups
+     */
+    public long getBufferedBytes() {
+        return bufferedBytes;
+    }
+
+    /**
+     * @return number of runs spilled so far
+     */
+    public int getSpilledRuns() {
+        return runsCreated;
+    }
+
+    /**
+     * Deletes the runs and their directory
+     */
+    @Override
+    public void close() throws IOException {
+        IOException deleteFailure = null;
+        for (Path run : runs) {
+            try {
+                Files.deleteIfExists(run);
+            } catch (IOException ioe) {
+                deleteFailure = ioe;
+            }
+        }
+        runs.clear();
+        if (runDirectory != null) {
+            try {
+                Files.deleteIfExists(runDirectory);
+            } catch (IOException ioe) {
+                deleteFailure = ioe;
+            }
+            runDirectory = null;
+        }
+        if (deleteFailure != null) {
+            throw deleteFailure;
+        }
+    }
+
+    /**
+     * Writes the buffered groups as a run, sorted by recipient alphabetically, date and amount, and empties the buffer
+     */
+    private void spill() throws IOException {
+        int[] ranks = alphabeticalRanks();
+        long[] sortKeys = new long[groupCount];
+        LongIntHashMap groupsBySortKey = new LongIntHashMap(groupCount);
+        for (int group = 0; group < groupCount; group++) {
+            sortKeys[group] = GroupKey.of(ranks[GroupKey.recipient(keys[group])],
+                    PackedDate.chronologicalKey(GroupKey.value(keys[group])));
+            groupsBySortKey.put(sortKeys[group], group);
+        }
+        Arrays.sort(sortKeys);
+        Path run = nextRunFile();
+        try (DataOutputRun out = new DataOutputRun(run)) {
+            for (long sortKey : sortKeys) {
+                int group = groupsBySortKey.get(sortKey);
+                long[] groupAmounts = amounts[group];
+                Arrays.sort(groupAmounts, 0, sizes[group]);
+                out.writeGroupHeader(GroupKey.recipient(keys[group]), GroupKey.value(keys[group]), sizes[group]);
+                for (int i = 0; i < sizes[group]; i++) {
+                    out.writeAmount(groupAmounts[i]);
+                }
+            }
+            out.finish();
+        }
+        groupsByKey = new LongIntHashMap();
+        keys = new long[64];
+        amounts = new long[64][];
+        sizes = new int[64];
+        groupCount = 0;
+        bufferedBytes = 0;
+    }
+
+    /**
+     * @return file of a new run, already listed in the runs
+     */
+    private Path nextRunFile() throws IOException {
+        if (runDirectory == null) {
+            runDirectory = Files.createTempDirectory(spillDirectory, "date-runs");
+        }
+        Path run = runDirectory.resolve("run-" + runsCreated++ + ".bin");
+        runs.add(run);
+        return run;
+    }
+
+    /**
+     * @return alphabetical rank of every recipient int id, the same order for every recipient seen so far
+     */
+    private int[] alphabeticalRanks() {
+        int recipients = recipientDictionary.size();
+        Integer[] byName = new Integer[recipients];
+        for (int id = 0; id < recipients; id++) {
+            byName[id] = id;
+        }
+        Arrays.sort(byName, Comparator.comparing(recipientDictionary::nameOf));
+        int[] ranks = new int[recipients];
+        for (int rank = 0; rank < recipients; rank++) {
+            ranks[byName[rank]] = rank;
+        }
+        return ranks;
+    }
+
+    /**
+     * Writes a run: every group as its recipient, date and count followed by its sorted amounts,
+     * the first zigzag encoded, the others as the difference to the previous one,
+     * then END_OF_RUN and the number of groups
+     */
+    private static class DataOutputRun implements Closeable
+    {
+        private final OutputStream out;
+        private long previousAmount;
+        private boolean firstAmount;
+        private int groups;
+
+        DataOutputRun(Path path) throws IOException {
+            this.out = new BufferedOutputStream(Files.newOutputStream(path), IO_BUFFER_SIZE);
+        }
+
+        void writeGroupHeader(int recipient, int date, int count) throws IOException {
+            writeVarLong(out, recipient);
+            writeVarLong(out, date);
+            writeVarLong(out, count);
+            firstAmount = true;
+            groups++;
+        }
+
+        void writeAmount(long amount) throws IOException {
+            writeVarLong(out, firstAmount ? (amount << 1) ^ (amount >> 63) : amount - previousAmount);
+            previousAmount = amount;
+            firstAmount = false;
+        }
+
+        /**
+         * Ends the run with a trailer checked by the reader, so a truncated run is detected
+         */
+        void finish() throws IOException {
+            writeVarLong(out, END_OF_RUN);
+            writeVarLong(out, groups);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads a run one group at a time, and the amounts of the current group one at a time
+     */
+    private static class RunReader implements Closeable
+    {
+        private final Path path;
+        private final InputStream in;
+        private int recipient;
+        private int date;
+        // PackedDate.chronologicalKey of the date
+        private int sortDate;
+        private int count;
+        private int amountsLeft;
+        private long previousAmount;
+        private int groups;
+        // alphabetical rank of the current recipient
+        private int rank;
+
+        RunReader(Path path) throws IOException {
+            this.path = path;
+            this.in = new BufferedInputStream(Files.newInputStream(path), IO_BUFFER_SIZE);
+        }
+
+        /**
+         * @return false at the end of the run
+         */
+        boolean nextGroup() throws IOException {
+            while (amountsLeft > 0) {
+                nextAmount();
+            }
+            long value = readVarLong(in, path);
+            if (value == END_OF_RUN) {
+                if (readVarLong(in, path) != groups) {
+                    throw new IOException("Corrupt run " + path);
+                }
+                return false;
+            }
+            recipient = (int) value;
+            date = (int) readVarLong(in, path);
+            sortDate = PackedDate.chronologicalKey(date);
+            count = (int) readVarLong(in, path);
+            amountsLeft = count;
+            groups++;
+            return true;
+        }
+
+        long nextAmount() throws IOException {
+            long value = readVarLong(in, path);
+            previousAmount = amountsLeft-- == count ? (value >>> 1) ^ -(value & 1) : previousAmount + value;
+            return previousAmount;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Merges runs group by group in report order, and the amounts of each group in ascending order
+     */
+    private static class RunMerger implements Closeable
+    {
+        private final List<RunReader> readers = new ArrayList<>();
+        private final int[] ranks;
+        private final PriorityQueue<RunReader> byGroup = new PriorityQueue<>(
+                Comparator.<RunReader>comparingInt(reader -> reader.rank).thenComparingInt(reader -> reader.sortDate));
+        // readers holding the current group, each with its next amount
+        private RunReader[] current = new RunReader[0];
+        private long[] heads = new long[0];
+        private int currentSize;
+
+        private int recipient;
+        private int date;
+        private int count;
+
+        RunMerger(List<Path> runs, int[] ranks) throws IOException {
+            this.ranks = ranks;
+            try {
+                for (Path run : runs) {
+                    RunReader reader = new RunReader(run);
+                    readers.add(reader);
+                    offer(reader);
+                }
+            } catch (IOException ioe) {
+                close();
+                throw ioe;
+            }
+            current = new RunReader[readers.size()];
+            heads = new long[readers.size()];
+        }
+
+        /**
+         * @return false once every group is merged
+         */
+        boolean nextGroup() throws IOException {
+            for (int i = 0; i < currentSize; i++) {
+                offer(current[i]);
+            }
+            currentSize = 0;
+            RunReader first = byGroup.poll();
+            if (first == null) {
+                return false;
+            }
+            recipient = first.recipient;
+            date = first.date;
+            count = 0;
+            for (RunReader reader = first; reader != null; ) {
+                count += reader.count;
+                heads[currentSize] = reader.nextAmount();
+                current[currentSize++] = reader;
+                RunReader next = byGroup.peek();
+                reader = next != null && next.rank == first.rank && next.date == date ? byGroup.poll() : null;
+            }
+            return true;
+        }
+
+        /**
+         * @return the smallest amount of the current group not returned yet, called count times per group
+         */
+        long nextAmount() throws IOException {
+            int smallest = 0;
+            for (int i = 1; i < currentSize; i++) {
+                if (heads[i] < heads[smallest]) {
+                    smallest = i;
+                }
+            }
+            long amount = heads[smallest];
+            RunReader reader = current[smallest];
+            if (reader.amountsLeft > 0) {
+                heads[smallest] = reader.nextAmount();
+            } else {
+                heads[smallest] = Long.MAX_VALUE;
+            }
+            return amount;
+        }
+
+        private void offer(RunReader reader) throws IOException {
+            if (reader.nextGroup()) {
+                reader.rank = ranks[reader.recipient];
+                byGroup.add(reader);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            IOException failure = null;
+            for (RunReader reader : readers) {
+                try {
+                    reader.close();
+                } catch (IOException ioe) {
+                    failure = ioe;
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    private static void writeVarLong(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarLong(InputStream in, Path path) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Truncated run " + path);
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Corrupt run " + path);
+    }
+
+    /**
+     * Receives the merged groups, in report order
+     */
+    public interface MergedGroupVisitor
+    {
+        /**
+         * @param recipientId - id of the recipient
+         * @param date - date packed as yyyymmdd
+         * @param median - median amount of the group in dollars, rounded
+         * @param count - number of contributions of the group
+         * @param total - total amount of the group in dollars, rounded
+         */
+        void accept(String recipientId, int date, long median, int count, long total);
+    }
+}
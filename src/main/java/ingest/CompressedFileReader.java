@@ -0,0 +1,178 @@
+package ingest;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads a gzip or zip compressed file, decompressing it on a dedicated thread
+ *
+ *  - The decompressor thread splits the decompressed bytes into batches of complete lines, see StreamLineReader
+ *  - Batches are handed over through a bounded queue, so decompression runs ahead of the parser
+ *    by at most a fixed number of batches
+ *  - Lines are handed to the LineHandler in file order on the calling thread, or the batches themselves
+ *    are taken one after the other with nextBatch
+ *
+ * Decompression thus overlaps with the analysis, and the file is read once without unpacking it to disk first.
+ */
+public class CompressedFileReader implements AutoCloseable
+{
+    public static final int DEFAULT_BATCH_SIZE = 4 << 20;
+    public static final int DEFAULT_PENDING_BATCHES = 8;
+
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final Path path;
+    private final InputCompression compression;
+    private final int batchSize;
+    private final BlockingQueue<ByteBuffer> batches;
+    private Thread decompressor;
+    private volatile IOException failure;
+    private boolean ended;
+
+    public CompressedFileReader(Path path, InputCompression compression) {
+        this(path, compression, DEFAULT_BATCH_SIZE, DEFAULT_PENDING_BATCHES);
+    }
+
+    /**
+     * @param path - file to read
+     * @param compression - compression of the file
+     * @param batchSize - initial size in bytes of the buffer the lines are batched in
+     * @param pendingBatches - number of batches decompressed ahead of the reader
+     */
+    public CompressedFileReader(Path path, InputCompression compression, int batchSize, int pendingBatches) {
+        this.path = path;
+        this.compression = compression;
+        this.batchSize = batchSize;
+        this.batches = new ArrayBlockingQueue<>(pendingBatches);
+    }
+
+    /**
+     * Reads the file till the end, calling the handler for every line in file order
+     *
+     * @param handler - receives each line
+     * @throws IOException if reading or decompressing the file fails
+     */
+    public void readLines(LineHandler handler) throws IOException {
+        try {
+            for (ByteBuffer batch = nextBatch(); batch != null; batch = nextBatch()) {
+                MappedFileReader.forEachLine(batch, handler);
+            }
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Takes the next batch of complete lines, starting the decompressor thread on the first call
+     * Only the last batch may lack the final line terminator.
+     *
+     * @return the next batch in file order, or null at the end of the file
+     * @throws IOException if reading or decompressing the file fails
+     */
+    public ByteBuffer nextBatch() throws IOException {
+        if (ended) {
+            return null;
+        }
+        if (decompressor == null) {
+            start();
+        }
+        ByteBuffer batch;
+        try {
+            batch = batches.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading " + path, e);
+        }
+        if (batch == END) {
+            ended = true;
+            if (failure != null) {
+                throw failure;
+            }
+            return null;
+        }
+        return batch;
+    }
+
+    private void start() {
+        decompressor = new Thread(this::decompress, "decompressor");
+        decompressor.setDaemon(true);
+        decompressor.start();
+    }
+
+    /**
+     * Decompressor thread, reads the file till its end or till the reader is closed
+     */
+    private void decompress() {
+        try (InputStream inputStream = new FillingInputStream(compression.open(path))) {
+            new StreamLineReader(inputStream, batchSize).readLineBatches(batch -> {
+                try {
+                    batches.put(batch);
+                } catch (InterruptedException e) {
+                    throw new ReaderClosed();
+                }
+            });
+        } catch (IOException ioe) {
+            failure = new IOException("Failed to decompress " + path + ": " + ioe.getMessage(), ioe);
+        } catch (ReaderClosed closed) {
+            return;
+        } catch (RuntimeException re) {
+            failure = new IOException("Failed to decompress " + path, re);
+        }
+        try {
+            batches.put(END);
+        } catch (InterruptedException e) {
+            // closed before the end was taken
+        }
+    }
+
+    /**
+     * Stops the decompressor thread if the file was not read till its end
+     */
+    @Override
+    public void close() {
+        if (decompressor != null) {
+            decompressor.interrupt();
+        }
+    }
+
+    /**
+     * Fills the whole buffer on every read unless the stream ends, the inflater streams return
+     * much less per read, which would otherwise make a small batch of lines out of every read
+     */
+    private static class FillingInputStream extends FilterInputStream
+    {
+        FillingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            int filled = 0;
+            while (filled < length) {
+                int read = in.read(bytes, offset + filled, length - filled);
+                if (read < 0) {
+                    return filled == 0 ? -1 : filled;
+                }
+                filled += read;
+            }
+            return filled;
+        }
+    }
+
+    /**
+     * Unwinds the decompressor thread once the reader is closed
+     */
+    private static class ReaderClosed extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+
+        ReaderClosed() {
+            super(null, null, false, false);
+        }
+    }
+}
@@ -0,0 +1,359 @@
+package ingest;
+
+import payloads.RejectReason;
+import util.StringDictionary;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A columnar binary copy of the parsed contributions of an input file, written once and read instead of
+ * the input on later runs, so that the text is parsed only once
+ *
+ * Layout:
+ *  - header: magic, version, size and last modified time of the source file, number of rows,
+ *    offset of the recipient dictionary and number of rejected rows per RejectReason
+ *  - blocks of up to BLOCK_ROWS accepted rows in input order, each column stored contiguously:
+ *    the amounts as long cents, the recipients as int ids of the dictionary, the zipcodes as ints,
+ *    the dates packed as yyyymmdd and a byte of validity flags per row
+ *  - the recipient dictionary: the recipient ids by int id, as UTF-8
+ *
+ * A cache is only used while the size and last modified time of its source file are unchanged.
+ * It is written to a temporary file next to it and moved in place once complete, so a run that
+ * fails half way never leaves a truncated cache behind. Blocks are read through memory-mapped windows.
+ */
+public final class ContributionsCache
+{
+    public static final int BLOCK_ROWS = 1 << 16;
+
+    public static final int VALID_ZIP = 1;
+    public static final int VALID_DATE = 2;
+
+    private static final int MAGIC = 0x46504443;
+    private static final int VERSION = 1;
+    private static final int REASONS = RejectReason.values().length;
+    private static final int HEADER_BYTES = 40 + 8 * REASONS;
+    // amount, recipient, zipcode, date and flags
+    private static final int ROW_BYTES = 8 + 4 + 4 + 4 + 1;
+    private static final long MAX_WINDOW = 1L << 30;
+
+    private ContributionsCache() {
+    }
+
+    /**
+     * Receives the rows of a cache in input order
+     */
+    public interface RowHandler
+    {
+        /**
+         * @param recipient - int id of the recipient in the dictionary given to replay
+         * @param contributorZip - zipcode as int, see ZipCode, only meaningful with the VALID_ZIP flag
+         * @param txDate - date packed as yyyymmdd, only meaningful with the VALID_DATE flag
+         * @param txAmountCents - contribution amount in cents
+         * @param flags - VALID_ZIP and VALID_DATE bits
+         */
+        void row(int recipient, int contributorZip, int txDate, long txAmountCents, int flags);
+    }
+
+    /**
+     * @param input - input file
+     * @return the default cache of the input, next to it
+     */
+    public static Path sidecarOf(Path input) {
+        return Paths.get(input.toString() + ".cache");
+    }
+
+    /**
+     * @param cache - cache file
+     * @param source - input file the cache was written from
+     * @return true if the cache is complete and was written from the source as it is now
+     */
+    public static boolean isCurrent(Path cache, Path source) {
+        if (!Files.isRegularFile(cache)) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(cache, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // reads the whole header
+            }
+            header.flip();
+            return header.remaining() == HEADER_BYTES && header.getInt() == MAGIC && header.getInt() == VERSION
+                    && header.getLong() == Files.size(source)
+                    && header.getLong() == Files.getLastModifiedTime(source).toMillis();
+        } catch (IOException ioe) {
+            return false;
+        }
+    }
+
+    /**
+     * Reads every row of a cache in input order
+     *
+     * @param cache - a current cache, see isCurrent
+     * @param recipientDictionary - dictionary the recipients of the rows are given as int ids of
+     * @param rejected - receives the number of rows rejected per RejectReason by ordinal
+     * @param handler - called for every accepted row
+     * @return number of accepted rows
+     * @throws IOException if the cache can not be read or is corrupt
+     */
+    public static long replay(Path cache, StringDictionary recipientDictionary, long[] rejected,
+                              RowHandler handler) throws IOException {
+        try (FileChannel channel = FileChannel.open(cache, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            if (fileSize < HEADER_BYTES) {
+                throw new IOException("Truncated cache " + cache);
+            }
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("Not a contributions cache " + cache);
+            }
+            header.position(24);
+            long rows = header.getLong();
+            long dictionaryOffset = header.getLong();
+            for (int i = 0; i < REASONS; i++) {
+                rejected[i] = header.getLong();
+            }
+            if (dictionaryOffset < HEADER_BYTES || dictionaryOffset > fileSize) {
+                throw new IOException("Corrupt cache " + cache);
+            }
+            int[] recipients = readDictionary(channel, dictionaryOffset, fileSize, recipientDictionary, cache);
+
+            long position = HEADER_BYTES;
+            long windowStart = 0;
+            MappedByteBuffer window = null;
+            long replayed = 0;
+            while (position < dictionaryOffset) {
+                if (window == null || position + 4 > windowStart + window.capacity()) {
+                    windowStart = position;
+                    window = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                            Math.min(MAX_WINDOW, dictionaryOffset - position));
+                }
+                int blockRows = window.getInt((int) (position - windowStart));
+                long blockBytes = 4 + (long) blockRows * ROW_BYTES;
+                if (blockRows <= 0 || blockRows > BLOCK_ROWS || position + blockBytes > dictionaryOffset) {
+                    throw new IOException("Corrupt cache " + cache);
+                }
+                if (position + blockBytes > windowStart + window.capacity()) {
+                    windowStart = position;
+                    window = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                            Math.min(MAX_WINDOW, dictionaryOffset - position));
+                }
+                replayBlock(window, (int) (position - windowStart) + 4, blockRows, recipients, handler, cache);
+                position += blockBytes;
+                replayed += blockRows;
+            }
+            if (replayed != rows) {
+                throw new IOException("Corrupt cache " + cache);
+            }
+            return rows;
+        }
+    }
+
+    private static void replayBlock(ByteBuffer block, int start, int rows, int[] recipients, RowHandler handler,
+                                    Path cache) throws IOException {
+        int amounts = start;
+        int recipientIds = amounts + 8 * rows;
+        int zips = recipientIds + 4 * rows;
+        int dates = zips + 4 * rows;
+        int flags = dates + 4 * rows;
+        for (int i = 0; i < rows; i++) {
+            int recipient = block.getInt(recipientIds + 4 * i);
+            if (recipient < 0 || recipient >= recipients.length) {
+                throw new IOException("Corrupt cache " + cache);
+            }
+            handler.row(recipients[recipient], block.getInt(zips + 4 * i), block.getInt(dates + 4 * i),
+                    block.getLong(amounts + 8 * i), block.get(flags + i));
+        }
+    }
+
+    /**
+     * @return int id in the given dictionary of every recipient int id of the cache
+     */
+    private static int[] readDictionary(FileChannel channel, long offset, long fileSize,
+                                        StringDictionary recipientDictionary, Path cache) throws IOException {
+        ByteBuffer dictionary = channel.map(FileChannel.MapMode.READ_ONLY, offset, fileSize - offset);
+        try {
+            int[] recipients = new int[dictionary.getInt()];
+            for (int i = 0; i < recipients.length; i++) {
+                byte[] name = new byte[dictionary.getShort() & 0xFFFF];
+                dictionary.get(name);
+                recipients[i] = recipientDictionary.idOf(new String(name, StandardCharsets.UTF_8));
+            }
+            return recipients;
+        } catch (RuntimeException re) {
+            throw new IOException("Corrupt cache " + cache, re);
+        }
+    }
+
+    /**
+     * Writes a cache while its source is parsed, one accepted row at a time
+     */
+    public static class Writer implements Closeable
+    {
+        private final Path cache;
+        private final Path temporary;
+        private final FileChannel channel;
+        private final long sourceSize;
+        private final long sourceModified;
+        private final StringDictionary dictionary = new StringDictionary();
+        private final long[] rejected = new long[REASONS];
+
+        private final long[] amounts = new long[BLOCK_ROWS];
+        private final int[] recipients = new int[BLOCK_ROWS];
+        private final int[] zips = new int[BLOCK_ROWS];
+        private final int[] dates = new int[BLOCK_ROWS];
+        private final byte[] flags = new byte[BLOCK_ROWS];
+        private final ByteBuffer block = ByteBuffer.allocateDirect(4 + BLOCK_ROWS * ROW_BYTES);
+        private int blockRows;
+        private long rows;
+        private boolean finished;
+        private IOException failure;
+
+        /**
+         * Records the size and last modified time of the source, to be called before it is read
+         *
+         * @param cache - cache file to write
+         * @param source - input file the rows are parsed from
+         * @throws IOException if the source can not be accessed or the cache can not be created
+         */
+        public Writer(Path cache, Path source) throws IOException {
+            this.cache = cache;
+            this.temporary = Paths.get(cache.toString() + ".tmp");
+            this.sourceSize = Files.size(source);
+            this.sourceModified = Files.getLastModifiedTime(source).toMillis();
+            this.channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            channel.position(HEADER_BYTES);
+        }
+
+        /**
+         * @param recipientId - recipient of the row
+         * @param contributorZip - zipcode as int, see ZipCode, ignored unless the flags hold VALID_ZIP
+         * @param txDate - date packed as yyyymmdd, ignored unless the flags hold VALID_DATE
+         * @param txAmountCents - contribution amount in cents
+         * @param rowFlags - VALID_ZIP and VALID_DATE bits
+         */
+        public void add(String recipientId, int contributorZip, int txDate, long txAmountCents, int rowFlags) {
+            if (failure != null) {
+                return;
+            }
+            amounts[blockRows] = txAmountCents;
+            recipients[blockRows] = dictionary.idOf(recipientId);
+            zips[blockRows] = contributorZip;
+            dates[blockRows] = txDate;
+            flags[blockRows] = (byte) rowFlags;
+            if (++blockRows == BLOCK_ROWS) {
+                try {
+                    writeBlock();
+                } catch (IOException ioe) {
+                    // rows keep being analyzed without the cache, the failure is reported by finish
+                    failure = ioe;
+                }
+            }
+        }
+
+        public void rejected(RejectReason reason) {
+            rejected[reason.ordinal()]++;
+        }
+
+        /**
+         * Completes the cache and moves it in place of any previous one
+         *
+         * @throws IOException if writing or moving the cache fails, or writing a block failed before
+         */
+        public void finish() throws IOException {
+            if (failure != null) {
+                throw failure;
+            }
+            if (blockRows > 0) {
+                writeBlock();
+            }
+            long dictionaryOffset = channel.position();
+            writeDictionary();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putInt(VERSION).putLong(sourceSize).putLong(sourceModified)
+                    .putLong(rows).putLong(dictionaryOffset);
+            for (long rejectedRows : rejected) {
+                header.putLong(rejectedRows);
+            }
+            header.flip();
+            writeFully(header, 0);
+            channel.close();
+            try {
+                Files.move(temporary, cache, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, cache, StandardCopyOption.REPLACE_EXISTING);
+            }
+            finished = true;
+        }
+
+        /**
+         * Deletes the incomplete cache unless it was finished
+         */
+        @Override
+        public void close() throws IOException {
+            if (!finished) {
+                channel.close();
+                Files.deleteIfExists(temporary);
+            }
+        }
+
+        private void writeBlock() throws IOException {
+            block.clear();
+            block.putInt(blockRows);
+            for (int i = 0; i < blockRows; i++) {
+                block.putLong(amounts[i]);
+            }
+            for (int i = 0; i < blockRows; i++) {
+                block.putInt(recipients[i]);
+            }
+            for (int i = 0; i < blockRows; i++) {
+                block.putInt(zips[i]);
+            }
+            for (int i = 0; i < blockRows; i++) {
+                block.putInt(dates[i]);
+            }
+            block.put(flags, 0, blockRows);
+            block.flip();
+            writeFully(block, channel.position());
+            channel.position(channel.position() + 4 + (long) blockRows * ROW_BYTES);
+            rows += blockRows;
+            blockRows = 0;
+        }
+
+        private void writeDictionary() throws IOException {
+            int bytes = 4;
+            byte[][] names = new byte[dictionary.size()][];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = dictionary.nameOf(i).getBytes(StandardCharsets.UTF_8);
+                if (names[i].length > 0xFFFF) {
+                    throw new IOException("Recipient id too long to cache: " + dictionary.nameOf(i));
+                }
+                bytes += 2 + names[i].length;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(bytes);
+            buffer.putInt(names.length);
+            for (byte[] name : names) {
+                buffer.putShort((short) name.length).put(name);
+            }
+            buffer.flip();
+            writeFully(buffer, channel.position());
+        }
+
+        private void writeFully(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+    }
+}
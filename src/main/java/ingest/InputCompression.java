@@ -0,0 +1,148 @@
+package ingest;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * How an input file is compressed, detected from its first bytes rather than its name
+ */
+public enum InputCompression
+{
+    /**
+     * Plain text
+     */
+    NONE,
+
+    /**
+     * gzip, including files of several concatenated gzip members
+     */
+    GZIP,
+
+    /**
+     * zip archive, the file entries are read one after the other as a single input
+     */
+    ZIP;
+
+    private static final int STREAM_BUFFER_SIZE = 64 << 10;
+
+    /**
+     * @param path - file to look at
+     * @return the compression of the file, NONE if it starts with neither the gzip nor the zip signature
+     * @throws IOException if the file can not be read
+     */
+    public static InputCompression detect(Path path) throws IOException {
+        ByteBuffer magic = ByteBuffer.allocate(4);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (magic.hasRemaining() && channel.read(magic) >= 0) {
+                // up to 4 bytes, fewer for a shorter file
+            }
+        }
+        if (magic.position() >= 2 && (magic.get(0) & 0xff) == 0x1f && (magic.get(1) & 0xff) == 0x8b) {
+            return GZIP;
+        }
+        if (magic.position() == 4 && magic.get(0) == 'P' && magic.get(1) == 'K'
+                && magic.get(2) == 3 && magic.get(3) == 4) {
+            return ZIP;
+        }
+        return NONE;
+    }
+
+    /**
+     * Opens a stream of the decompressed bytes of the file, the caller closes it
+     *
+     * @param path - file to read
+     * @return stream of the decompressed bytes, the entries of a zip archive one after the other
+     * @throws IOException if the file can not be opened
+     */
+    public InputStream open(Path path) throws IOException {
+        InputStream file = new FileInputStream(path.toFile());
+        try {
+            switch (this) {
+                case GZIP:
+                    return new GZIPInputStream(file, STREAM_BUFFER_SIZE);
+                case ZIP:
+                    return new ZipEntriesInputStream(
+                            new ZipInputStream(new BufferedInputStream(file, STREAM_BUFFER_SIZE)));
+                default:
+                    return file;
+            }
+        } catch (IOException ioe) {
+            file.close();
+            throw ioe;
+        }
+    }
+
+    /**
+     * @param path - file to read, compressed or not
+     * @return stream of the decompressed bytes of the file
+     * @throws IOException if the file can not be opened
+     */
+    public static InputStream openDecompressed(Path path) throws IOException {
+        return detect(path).open(path);
+    }
+
+    /**
+     * The file entries of a zip archive as one stream
+     * A newline is inserted after an entry whose last line has no terminator, so lines never span two entries.
+     */
+    private static class ZipEntriesInputStream extends InputStream
+    {
+        private final ZipInputStream zipInputStream;
+        private boolean inEntry;
+        private boolean lineOpen;
+
+        ZipEntriesInputStream(ZipInputStream zipInputStream) {
+            this.zipInputStream = zipInputStream;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            while (true) {
+                if (!inEntry) {
+                    if (lineOpen) {
+                        lineOpen = false;
+                        bytes[offset] = '\n';
+                        return 1;
+                    }
+                    ZipEntry entry = zipInputStream.getNextEntry();
+                    while (entry != null && entry.isDirectory()) {
+                        entry = zipInputStream.getNextEntry();
+                    }
+                    if (entry == null) {
+                        return -1;
+                    }
+                    inEntry = true;
+                }
+                int read = zipInputStream.read(bytes, offset, length);
+                if (read > 0) {
+                    lineOpen = bytes[offset + read - 1] != '\n';
+                    return read;
+                }
+                inEntry = false;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            zipInputStream.close();
+        }
+    }
+}
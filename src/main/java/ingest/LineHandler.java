@@ -0,0 +1,16 @@
+package ingest;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the raw bytes of each input line
+ */
+public interface LineHandler
+{
+    /**
+     * @param buffer - buffer holding the line, only valid for the duration of the call
+     * @param start - index of the first byte of the line
+     * @param end - index after the last byte of the line, excluding the line terminator
+     */
+    void onLine(ByteBuffer buffer, int start, int end);
+}
@@ -0,0 +1,220 @@
+package ingest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reads a file through memory-mapped, line-aligned chunks
+ *
+ *  - The file is mapped with FileChannel.map in chunks, each ending right after a line terminator
+ *  - Line boundaries of the chunks are found in parallel by a pool of worker threads
+ *  - Lines are handed to the LineHandler in file order, as byte ranges of the mapped chunk
+ *
+ * Lines are terminated by \n, \r\n or a lone \r, as with BufferedReader.readLine.
+ * Only a bounded number of chunks is indexed ahead of the line handler,
+ * so the memory used for line boundaries does not grow with the file size.
+ */
+public class MappedFileReader
+{
+    public static final int DEFAULT_CHUNK_SIZE = 64 << 20;
+
+    private final Path path;
+    private final int chunkSize;
+    private final int threads;
+
+    public MappedFileReader(Path path, int threads) {
+        this(path, threads, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param path - file to read
+     * @param threads - number of threads splitting chunks into lines
+     * @param chunkSize - approximate size of each mapped chunk in bytes
+     */
+    public MappedFileReader(Path path, int threads, int chunkSize) {
+        this.path = path;
+        this.threads = Math.max(1, threads);
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Reads the file till the end, calling the handler for every line in file order
+     *
+     * @param handler - receives each line
+     * @throws IOException if mapping the file fails
+     */
+    public void readLines(LineHandler handler) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            List<MappedByteBuffer> chunks = mapChunks(channel, chunkSize);
+            ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "line-splitter");
+                thread.setDaemon(true);
+                return thread;
+            });
+            try {
+                ArrayDeque<Future<LineIndex>> pending = new ArrayDeque<>();
+                int next = 0;
+                while (next < chunks.size() || !pending.isEmpty()) {
+                    while (next < chunks.size() && pending.size() < threads * 2) {
+                        ByteBuffer chunk = chunks.get(next++);
+                        pending.add(executor.submit(() -> LineIndex.of(chunk)));
+                    }
+                    pending.poll().get().forEachLine(handler);
+                    chunks.set(next - pending.size() - 1, null);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while reading " + path, e);
+            } catch (ExecutionException e) {
+                throw new IOException("Failed to split " + path + " into lines", e.getCause());
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Splits the file into chunks that end right after a line terminator, never between the \r and \n of a \r\n
+     * A chunk is grown if a single line does not fit into it.
+     *
+     * @param channel - channel of the file to map
+     * @param chunkSize - approximate size of each chunk in bytes
+     * @return mapped chunks in file order
+     * @throws IOException if mapping the file fails
+     */
+    public static List<MappedByteBuffer> mapChunks(FileChannel channel, int chunkSize) throws IOException {
+        List<MappedByteBuffer> chunks = new ArrayList<>();
+        long size = channel.size();
+        long position = 0;
+        while (position < size) {
+            long length = Math.min(chunkSize, size - position);
+            MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            while (position + length < size) {
+                int lastLineEnd = lastLineEnd(chunk);
+                if (lastLineEnd >= 0) {
+                    length = lastLineEnd + 1;
+                    break;
+                }
+                if (length >= Integer.MAX_VALUE / 2) {
+                    throw new IOException("Line longer than " + length + " bytes at offset " + position);
+                }
+                length = Math.min(length * 2, size - position);
+                chunk = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            }
+            if (length < chunk.capacity()) {
+                chunk = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            }
+            chunks.add(chunk);
+            position += length;
+        }
+        return chunks;
+    }
+
+    /**
+     * Calls the handler for every line of a single chunk, in order, on the calling thread
+     *
+     * @param chunk - a chunk aligned to line terminators, as mapChunks and StreamLineReader.readLineBatches split
+     * @param handler - receives each line
+     */
+    public static void forEachLine(ByteBuffer chunk, LineHandler handler) {
+        int limit = chunk.limit();
+        int start = 0;
+        for (int i = 0; i < limit; i++) {
+            if (isLineTerminator(chunk.get(i))) {
+                handler.onLine(chunk, start, i);
+                start = nextLineStart(chunk, i);
+                i = start - 1;
+            }
+        }
+        if (start < limit) {
+            handler.onLine(chunk, start, limit);
+        }
+    }
+
+    static boolean isLineTerminator(byte b) {
+        return b == '\n' || b == '\r';
+    }
+
+    /**
+     * @return offset right after the line terminator at end, a \r\n counting as one terminator
+     */
+    private static int nextLineStart(ByteBuffer chunk, int end) {
+        return chunk.get(end) == '\r' && end + 1 < chunk.limit() && chunk.get(end + 1) == '\n' ? end + 2 : end + 1;
+    }
+
+    /**
+     * @return offset of the last byte of the chunk that surely ends a line, or -1 if there is none
+     */
+    private static int lastLineEnd(ByteBuffer chunk) {
+        for (int i = chunk.limit() - 1; i >= 0; i--) {
+            // a \r as last byte may be followed by the \n of a \r\n in the next chunk
+            if (chunk.get(i) == '\n' || chunk.get(i) == '\r' && i + 1 < chunk.limit()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * End offsets of all the lines in a chunk
+     */
+    static class LineIndex
+    {
+        private final ByteBuffer chunk;
+        private final int[] lineEnds;
+        private final int lineCount;
+
+        private LineIndex(ByteBuffer chunk, int[] lineEnds, int lineCount) {
+            this.chunk = chunk;
+            this.lineEnds = lineEnds;
+            this.lineCount = lineCount;
+        }
+
+        static LineIndex of(ByteBuffer chunk) {
+            int limit = chunk.limit();
+            int[] lineEnds = new int[Math.max(16, limit / 128)];
+            int lineCount = 0;
+            int start = 0;
+            for (int i = 0; i < limit; i++) {
+                if (isLineTerminator(chunk.get(i))) {
+                    if (lineCount == lineEnds.length) {
+                        lineEnds = Arrays.copyOf(lineEnds, lineCount * 2);
+                    }
+                    lineEnds[lineCount++] = i;
+                    start = nextLineStart(chunk, i);
+                    i = start - 1;
+                }
+            }
+            if (start < limit) {
+                if (lineCount == lineEnds.length) {
+                    lineEnds = Arrays.copyOf(lineEnds, lineCount + 1);
+                }
+                lineEnds[lineCount++] = limit;
+            }
+            return new LineIndex(chunk, lineEnds, lineCount);
+        }
+
+        void forEachLine(LineHandler handler) {
+            int start = 0;
+            for (int i = 0; i < lineCount; i++) {
+                int end = lineEnds[i];
+                handler.onLine(chunk, start, end);
+                if (end < chunk.limit()) {
+                    start = nextLineStart(chunk, end);
+                }
+            }
+        }
+    }
+}
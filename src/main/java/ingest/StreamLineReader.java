@@ -0,0 +1,126 @@
+package ingest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Splits an input stream into lines without decoding them to Strings
+ *
+ * Bytes are read into a single reusable buffer and each complete line is handed
+ * to the LineHandler as a byte range. Lines are terminated by \n, \r\n or a lone \r,
+ * as with BufferedReader.readLine, a last line without terminator is also delivered.
+ */
+public class StreamLineReader
+{
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+    private final InputStream inputStream;
+    private byte[] buffer;
+
+    public StreamLineReader(InputStream inputStream) {
+        this(inputStream, DEFAULT_BUFFER_SIZE);
+    }
+
+    public StreamLineReader(InputStream inputStream, int bufferSize) {
+        this.inputStream = inputStream;
+        this.buffer = new byte[bufferSize];
+    }
+
+    /**
+     * Reads the stream till the end, calling the handler for every line
+     *
+     * @param handler - receives each line
+     * @throws IOException if reading the stream fails
+     */
+    public void readLines(LineHandler handler) throws IOException {
+        ByteBuffer view = ByteBuffer.wrap(buffer);
+        int filled = 0;
+        int lineStart = 0;
+        int scanFrom = 0;
+        while (true) {
+            int read = inputStream.read(buffer, filled, buffer.length - filled);
+            if (read < 0) {
+                break;
+            }
+            filled += read;
+            int i = scanFrom;
+            for (; i < filled; i++) {
+                if (MappedFileReader.isLineTerminator(buffer[i])) {
+                    if (buffer[i] == '\r' && i + 1 == filled) {
+                        // the \n of a \r\n may come with the next read
+                        break;
+                    }
+                    handler.onLine(view, lineStart, i);
+                    if (buffer[i] == '\r' && buffer[i + 1] == '\n') {
+                        i++;
+                    }
+                    lineStart = i + 1;
+                }
+            }
+            scanFrom = i;
+            if (filled == buffer.length) {
+                if (lineStart == 0) {
+                    byte[] larger = new byte[buffer.length * 2];
+                    System.arraycopy(buffer, 0, larger, 0, filled);
+                    buffer = larger;
+                    view = ByteBuffer.wrap(buffer);
+                } else {
+                    System.arraycopy(buffer, lineStart, buffer, 0, filled - lineStart);
+                    filled -= lineStart;
+                    scanFrom -= lineStart;
+                    lineStart = 0;
+                }
+            }
+        }
+        if (lineStart < filled) {
+            handler.onLine(view, lineStart, trimCarriageReturn(lineStart, filled));
+        }
+    }
+
+    /**
+     * Reads the stream till the end, handing over the complete lines as soon as they are read
+     *
+     * Unlike readLines, every batch is a copy holding one or more complete lines, so it can be
+     * processed on another thread while the next bytes are read. Only the last batch may lack the
+     * final line terminator. Lines of a batch can be split with MappedFileReader.forEachLine.
+     *
+     * @param handler - receives each batch of lines
+     * @throws IOException if reading the stream fails
+     */
+    public void readLineBatches(Consumer<ByteBuffer> handler) throws IOException {
+        int filled = 0;
+        while (true) {
+            int read = inputStream.read(buffer, filled, buffer.length - filled);
+            if (read < 0) {
+                break;
+            }
+            int scanFrom = filled;
+            filled += read;
+            int batchEnd = 0;
+            // a \r left last by the previous read ends a line now that it is followed by another byte
+            for (int i = filled - 1; i >= Math.max(0, scanFrom - 1); i--) {
+                if (buffer[i] == '\n' || buffer[i] == '\r' && i + 1 < filled) {
+                    batchEnd = i + 1;
+                    break;
+                }
+            }
+            if (batchEnd > 0) {
+                handler.accept(ByteBuffer.wrap(Arrays.copyOf(buffer, batchEnd)));
+                System.arraycopy(buffer, batchEnd, buffer, 0, filled - batchEnd);
+                filled -= batchEnd;
+            } else if (filled == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+        }
+        if (filled > 0) {
+            handler.accept(ByteBuffer.wrap(Arrays.copyOf(buffer, filled)));
+        }
+    }
+
+    private int trimCarriageReturn(int start, int end) {
+        return end > start && buffer[end - 1] == '\r' ? end - 1 : end;
+    }
+}
@@ -0,0 +1,301 @@
+package metrics;
+
+import datastore.ContributionsStore;
+import payloads.RejectReason;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Throughput, rejection and latency metrics of a contribution analysis run
+ *
+ *  - rows are counted as accepted or rejected by RejectReason, accepted rows with a malformed
+ *    zipcode or date are counted as well
+ *  - the time per row spent parsing, updating the store and writing the running output is sampled
+ *    into a StageTimer per stage
+ *  - group counts and an estimate of the memory used are read from the ContributionsStore
+ *  - garbage collections and the peak heap usage are read from the platform MXBeans
+ *
+ * Counting is a LongAdder increment per row and only one row in SAMPLE_INTERVAL is timed,
+ * so the metrics stay enabled on the hot path.
+ * The metrics are exposed through JMX and can be printed as a periodic and final summary.
+ */
+public class IngestMetrics implements IngestMetricsMBean
+{
+    public static final String OBJECT_NAME = "insight:type=IngestMetrics";
+
+    private static final int SAMPLE_INTERVAL = 64;
+
+    private final ContributionsStore contributionsStore;
+    private final long startNanos = System.nanoTime();
+
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder invalidZip = new LongAdder();
+    private final LongAdder invalidDate = new LongAdder();
+    private final LongAdder[] rejected = new LongAdder[RejectReason.values().length];
+
+    private final StageTimer parseTimer = new StageTimer("parse");
+    private final StageTimer updateTimer = new StageTimer("update");
+    private final StageTimer writeTimer = new StageTimer("write");
+
+    private int rowsSinceSample;
+    private ScheduledExecutorService reporter;
+
+    /**
+     * @param contributionsStore - store whose groups are reported
+     */
+    public IngestMetrics(ContributionsStore contributionsStore) {
+        this.contributionsStore = contributionsStore;
+        for (int i = 0; i < rejected.length; i++) {
+            rejected[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @param validZip - false if the zipcode of the row is malformed
+     * @param validDate - false if the date of the row is malformed
+     */
+    public void accepted(boolean validZip, boolean validDate) {
+        accepted.increment();
+        if (!validZip) {
+            invalidZip.increment();
+        }
+        if (!validDate) {
+            invalidDate.increment();
+        }
+    }
+
+    public void rejected(RejectReason reason) {
+        rejected[reason.ordinal()].increment();
+    }
+
+    /**
+     * @param reason - why the rows were skipped
+     * @param rows - number of rows skipped for that reason, e.g. read back from a ContributionsCache
+     */
+    public void rejected(RejectReason reason, long rows) {
+        rejected[reason.ordinal()].add(rows);
+    }
+
+    /**
+     * Decides whether the current row is timed, must only be called by the single thread applying rows in order
+     *
+     * @return true for one row in SAMPLE_INTERVAL
+     */
+    public boolean sampleRow() {
+        if (++rowsSinceSample == SAMPLE_INTERVAL) {
+            rowsSinceSample = 0;
+            return true;
+        }
+        return false;
+    }
+
+    public StageTimer getParseTimer() {
+        return parseTimer;
+    }
+
+    public StageTimer getUpdateTimer() {
+        return updateTimer;
+    }
+
+    public StageTimer getWriteTimer() {
+        return writeTimer;
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server, replacing the metrics of a previous run
+     */
+    public void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            System.out.println("Failed to register metrics MBean " + OBJECT_NAME);
+        }
+    }
+
+    /**
+     * Prints the summary every given number of seconds till stopReporting is called
+     *
+     * @param intervalSeconds - seconds between two summaries
+     * @param out - stream to print to
+     */
+    public synchronized void startReporting(long intervalSeconds, PrintStream out) {
+        reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> out.println(getSummary()), intervalSeconds, intervalSeconds,
+                TimeUnit.SECONDS);
+    }
+
+    public synchronized void stopReporting() {
+        if (reporter != null) {
+            reporter.shutdownNow();
+            reporter = null;
+        }
+    }
+
+    @Override
+    public long getRowsRead() {
+        long rows = accepted.sum();
+        for (LongAdder rejectedRows : rejected) {
+            rows += rejectedRows.sum();
+        }
+        return rows;
+    }
+
+    @Override
+    public long getRowsAccepted() {
+        return accepted.sum();
+    }
+
+    @Override
+    public long getRowsRejectedOtherId() {
+        return rejected[RejectReason.OTHER_ID.ordinal()].sum();
+    }
+
+    @Override
+    public long getRowsRejectedMalformed() {
+        return rejected[RejectReason.MALFORMED.ordinal()].sum();
+    }
+
+    @Override
+    public long getRowsWithInvalidZip() {
+        return invalidZip.sum();
+    }
+
+    @Override
+    public long getRowsWithInvalidDate() {
+        return invalidDate.sum();
+    }
+
+    @Override
+    public double getRowsPerSecond() {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        return seconds > 0 ? getRowsRead() / seconds : 0;
+    }
+
+    @Override
+    public int getRunningGroups() {
+        return contributionsStore.getContributionsRunningData().getGroupCount();
+    }
+
+    @Override
+    public int getAggregateGroups() {
+        return contributionsStore.getContributionsAggregateData().getGroupCount();
+    }
+
+    @Override
+    public long getEstimatedStoreBytes() {
+        return contributionsStore.getEstimatedMemoryBytes();
+    }
+
+    @Override
+    public long getOffHeapStoreBytes() {
+        return contributionsStore.getOffHeapBytes();
+    }
+
+    /**
+     * @return collections run by every garbage collector of the JVM so far
+     */
+    @Override
+    public long getGcCollections() {
+        long collections = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            collections += Math.max(0, collector.getCollectionCount());
+        }
+        return collections;
+    }
+
+    /**
+     * @return milliseconds spent in collections by every garbage collector of the JVM so far
+     */
+    @Override
+    public long getGcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, collector.getCollectionTime());
+        }
+        return millis;
+    }
+
+    /**
+     * @return sum of the peak usage of every heap memory pool, an upper bound of the peak heap usage
+     */
+    @Override
+    public long getPeakHeapBytes() {
+        long bytes = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                bytes += pool.getPeakUsage().getUsed();
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    public double getParseMeanNanos() {
+        return parseTimer.getMeanNanos();
+    }
+
+    @Override
+    public long getParseP99Nanos() {
+        return parseTimer.getPercentileNanos(99);
+    }
+
+    @Override
+    public double getUpdateMeanNanos() {
+        return updateTimer.getMeanNanos();
+    }
+
+    @Override
+    public long getUpdateP99Nanos() {
+        return updateTimer.getPercentileNanos(99);
+    }
+
+    @Override
+    public double getWriteMeanNanos() {
+        return writeTimer.getMeanNanos();
+    }
+
+    @Override
+    public long getWriteP99Nanos() {
+        return writeTimer.getPercentileNanos(99);
+    }
+
+    @Override
+    public String getSummary() {
+        StringBuilder summary = new StringBuilder();
+        summary.append(String.format("rows: %d read, %d accepted, %d rejected (other-id %d, malformed %d),"
+                        + " %d invalid zip, %d invalid date, %.0f rows/s%n",
+                getRowsRead(), getRowsAccepted(), getRowsRejectedOtherId() + getRowsRejectedMalformed(),
+                getRowsRejectedOtherId(), getRowsRejectedMalformed(), getRowsWithInvalidZip(),
+                getRowsWithInvalidDate(), getRowsPerSecond()));
+        summary.append(String.format("groups: %d by zip, %d by date, ~%d MB%n", getRunningGroups(),
+                getAggregateGroups(), getEstimatedStoreBytes() >> 20));
+        summary.append(String.format("memory: %d MB off-heap, %d MB peak heap, %d gc collections in %d ms%n",
+                getOffHeapStoreBytes() >> 20, getPeakHeapBytes() >> 20, getGcCollections(), getGcMillis()));
+        for (StageTimer timer : new StageTimer[] { parseTimer, updateTimer, writeTimer }) {
+            summary.append(String.format("%-6s ns/row: mean %.0f, p50 < %d, p99 < %d (%d samples)%n",
+                    timer.getName(), timer.getMeanNanos(), timer.getPercentileNanos(50),
+                    timer.getPercentileNanos(99), timer.getSamples()));
+        }
+        return summary.toString().trim();
+    }
+}
@@ -0,0 +1,49 @@
+package metrics;
+
+/**
+ * JMX view of the IngestMetrics of a contribution analysis run
+ */
+public interface IngestMetricsMBean
+{
+    long getRowsRead();
+
+    long getRowsAccepted();
+
+    long getRowsRejectedOtherId();
+
+    long getRowsRejectedMalformed();
+
+    long getRowsWithInvalidZip();
+
+    long getRowsWithInvalidDate();
+
+    double getRowsPerSecond();
+
+    int getRunningGroups();
+
+    int getAggregateGroups();
+
+    long getEstimatedStoreBytes();
+
+    long getOffHeapStoreBytes();
+
+    long getGcCollections();
+
+    long getGcMillis();
+
+    long getPeakHeapBytes();
+
+    double getParseMeanNanos();
+
+    long getParseP99Nanos();
+
+    double getUpdateMeanNanos();
+
+    long getUpdateP99Nanos();
+
+    double getWriteMeanNanos();
+
+    long getWriteP99Nanos();
+
+    String getSummary();
+}
@@ -0,0 +1,72 @@
+package metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of sampled per-row times of one processing stage
+ *
+ * Times are counted in power-of-two nanosecond buckets, so recording is a few atomic
+ * increments and percentiles are accurate to a factor of two, enough to see where time goes.
+ * Safe to record from several threads.
+ */
+public class StageTimer
+{
+    private static final int BUCKETS = 64;
+
+    private final String name;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong samples = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+
+    StageTimer(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @param nanos - time spent on one row
+     */
+    public void record(long nanos) {
+        long positive = Math.max(0, nanos);
+        // bucket b counts times in [2^b, 2^(b+1))
+        buckets.incrementAndGet(Math.max(0, BUCKETS - 1 - Long.numberOfLeadingZeros(positive)));
+        samples.incrementAndGet();
+        totalNanos.addAndGet(positive);
+    }
+
+    public long getSamples() {
+        return samples.get();
+    }
+
+    /**
+     * @return mean time per row in nanoseconds, 0 without samples
+     */
+    public double getMeanNanos() {
+        long count = samples.get();
+        return count == 0 ? 0 : (double) totalNanos.get() / count;
+    }
+
+    /**
+     * @param percentile - between 0 and 100
+     * @return upper bound in nanoseconds of the bucket holding the percentile, 0 without samples
+     */
+    public long getPercentileNanos(double percentile) {
+        long count = samples.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += buckets.get(bucket);
+            if (seen >= rank) {
+                return bucket >= 62 ? Long.MAX_VALUE : (2L << bucket) - 1;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+}
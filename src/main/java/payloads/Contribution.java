@@ -1,5 +1,8 @@
 package payloads;
 
+import util.Cents;
+import util.PackedDate;
+
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
@@ -17,8 +20,9 @@ public class Contribution
     private String recipientId;
     private String donorZip;
     private String txDateStr;
-    private double txAmount;
+    private long txAmountCents;
     private Date txDate;
+    private int txDatePacked;
 
     /**
      * Populates zipcode, date and contribution amount only if other-id is empty
@@ -33,7 +37,7 @@ public class Contribution
             if (recipientId != null && recipientId.length() >= 0) {
                 donorZip = contributionData.get(10);
                 txDateStr = contributionData.get(13);
-                txAmount = Double.valueOf(contributionData.get(14));
+                txAmountCents = Cents.parse(contributionData.get(14));
             }
             validateData();
         }
@@ -62,6 +66,7 @@ public class Contribution
         }
         if (txDateStr != null) {
             boolean validDateStr = false;
+            int packedDate = PackedDate.INVALID;
             if (txDateStr.length() == 8) {
                 String mStr = txDateStr.substring(0, 2);
                 String dStr = txDateStr.substring(2, 4);
@@ -72,6 +77,7 @@ public class Contribution
                     int y = Integer.parseInt(yStr);
                     if (y > 0 && m >= 1 && m <= 12 && d >= 1 && d <= 31) {
                         validDateStr = true;
+                        packedDate = PackedDate.pack(y, m, d);
                     }
                 } catch (NumberFormatException nfe) {
                     // log bad contribution row
@@ -80,6 +86,7 @@ public class Contribution
             if (validDateStr) {
                 try {
                     txDate = new SimpleDateFormat("MMddyyyy").parse(txDateStr);
+                    txDatePacked = packedDate;
                 } catch (ParseException e) {
                     // log bad contribution row
                 }
@@ -99,21 +106,31 @@ public class Contribution
         return txDateStr;
     }
 
-    public double getTxAmount() {
-        return txAmount;
+    /**
+     * @return contribution amount in cents
+     */
+    public long getTxAmountCents() {
+        return txAmountCents;
     }
 
     public Date getTxDate() {
         return txDate;
     }
 
+    /**
+     * @return date packed as yyyymmdd, or PackedDate.INVALID if the input date is malformed
+     */
+    public int getTxDatePacked() {
+        return txDatePacked;
+    }
+
     @Override
     public String toString() {
         return "Contribution{" +
                 "recipientId='" + recipientId + '\'' +
                 ", donorZip='" + donorZip + '\'' +
                 ", txDateStr='" + txDateStr + '\'' +
-                ", txAmount=" + txAmount +
+                ", txAmountCents=" + txAmountCents +
                 ", txDate=" + txDate +
                 '}';
     }
@@ -0,0 +1,307 @@
+package payloads;
+
+import util.ByteStringInterner;
+import util.Cents;
+import util.PackedDate;
+import util.StringDictionary;
+import util.ZipCode;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Allocation-free parser for pipe separated FEC contribution rows
+ *
+ * Scans the raw bytes of a row for the pipe delimiters and only decodes the
+ * columns that are needed:
+ *  - 0  CMTE_ID (recipient)
+ *  - 10 ZIP_CODE
+ *  - 13 TRANSACTION_DT
+ *  - 14 TRANSACTION_AMT
+ *  - 15 OTHER_ID
+ *  - the TextColumns given a dictionary, e.g. 9 STATE, only when asked for
+ *
+ * Validation follows the String based Contribution payload, so both produce the same results:
+ * a zipcode is read like Integer.parseInt, so it may be signed as in +1234, see ZipCode,
+ * while a date must be plain digits, as its MMDDYYYY format rejects signs.
+ * Recipient ids, zipcodes and dates are cached as Strings, so a row only allocates
+ * when it carries a value that has not been seen before. Recipient ids are also
+ * mapped to their int id in the StringDictionary the parser is created with.
+ *
+ * Not thread-safe, use one parser per thread.
+ */
+public class ContributionParser
+{
+    private static final int RECIPIENT_ID = 0;
+    private static final int ZIP_CODE = 10;
+    private static final int TX_DATE = 13;
+    private static final int TX_AMOUNT = 14;
+    private static final int OTHER_ID = 15;
+
+    private static final TextColumn[] TEXT_COLUMNS = TextColumn.values();
+
+    private static final int DATE_LENGTH = 8;
+
+    private final int[] fieldStart = new int[OTHER_ID + 1];
+    private final int[] fieldEnd = new int[OTHER_ID + 1];
+
+    private final StringDictionary recipientDictionary;
+    private final ByteStringInterner recipientIds;
+    // per TextColumn, null for the columns that are not parsed
+    private final ByteStringInterner[] textIds = new ByteStringInterner[TextColumn.values().length];
+    private final String[] zipStrings = new String[ZipCode.LIMIT];
+    private int[] dateKeys = new int[64];
+    private String[] dateStrings = new String[64];
+    private int dateCount;
+    private RejectReason rejectReason;
+
+    public ContributionParser() {
+        this(new StringDictionary());
+    }
+
+    /**
+     * @param recipientDictionary - dictionary assigning int ids to recipients,
+     *                              shared by every parser feeding the same ContributionsStore
+     */
+    public ContributionParser(StringDictionary recipientDictionary) {
+        this.recipientDictionary = recipientDictionary;
+        this.recipientIds = new ByteStringInterner(recipientDictionary);
+    }
+
+    /**
+     * @param recipientDictionary - dictionary assigning int ids to recipients,
+     *                              shared by every parser feeding the same ContributionsStore
+     * @param textDictionaries - dictionary assigning int ids to the text of each TextColumn by ordinal,
+     *                           null for the columns that are not parsed
+     */
+    public ContributionParser(StringDictionary recipientDictionary, StringDictionary[] textDictionaries) {
+        this(recipientDictionary);
+        for (TextColumn textColumn : TextColumn.values()) {
+            StringDictionary dictionary = textDictionaries[textColumn.ordinal()];
+            if (dictionary != null) {
+                textIds[textColumn.ordinal()] = new ByteStringInterner(dictionary);
+            }
+        }
+    }
+
+    /**
+     * Parses a single row into the given record
+     *
+     * @param buffer - buffer holding the row
+     * @param start - index of the first byte of the row
+     * @param end - index after the last byte of the row, excluding the line terminator
+     * @param record - record to fill, its previous content is discarded
+     * @return true if the row is a valid contribution with an empty other-id,
+     *         false if it has to be skipped
+     */
+    public boolean parse(ByteBuffer buffer, int start, int end, ContributionRecord record) {
+        record.clear();
+
+        int column = 0;
+        int columnStart = start;
+        for (int i = start; i < end && column < OTHER_ID; i++) {
+            if (buffer.get(i) == '|') {
+                fieldStart[column] = columnStart;
+                fieldEnd[column] = i;
+                column++;
+                columnStart = i + 1;
+            }
+        }
+        int lastColumnEnd = end;
+        if (column == OTHER_ID) {
+            for (int i = columnStart; i < end; i++) {
+                if (buffer.get(i) == '|') {
+                    lastColumnEnd = i;
+                    break;
+                }
+            }
+        }
+        fieldStart[column] = columnStart;
+        fieldEnd[column] = lastColumnEnd;
+
+        if (column == OTHER_ID && fieldEnd[OTHER_ID] > fieldStart[OTHER_ID]) {
+            rejectReason = RejectReason.OTHER_ID;
+            return false;
+        }
+        if (column < TX_AMOUNT || fieldEnd[TX_AMOUNT] == fieldStart[TX_AMOUNT]
+                || !parseAmount(buffer, fieldStart[TX_AMOUNT], fieldEnd[TX_AMOUNT], record)) {
+            rejectReason = RejectReason.MALFORMED;
+            return false;
+        }
+
+        record.recipientIndex = recipientIds.internId(buffer, fieldStart[RECIPIENT_ID], fieldEnd[RECIPIENT_ID]);
+        record.recipientId = recipientDictionary.nameOf(record.recipientIndex);
+        parseZip(buffer, fieldStart[ZIP_CODE], fieldEnd[ZIP_CODE], record);
+        parseDate(buffer, fieldStart[TX_DATE], fieldEnd[TX_DATE], record);
+        for (int i = 0; i < textIds.length; i++) {
+            int textColumn = TEXT_COLUMNS[i].getColumn();
+            if (textIds[i] != null && fieldEnd[textColumn] > fieldStart[textColumn]) {
+                record.textIds[i] = textIds[i].internId(buffer, fieldStart[textColumn], fieldEnd[textColumn]);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return why the row of the last parse returning false was skipped
+     */
+    public RejectReason getRejectReason() {
+        return rejectReason;
+    }
+
+    /**
+     * Zipcode is valid if its first 5 characters form a positive number, as digits or a plus sign and digits
+     */
+    private void parseZip(ByteBuffer buffer, int start, int end, ContributionRecord record) {
+        if (end - start < ZipCode.LENGTH) {
+            return;
+        }
+        boolean signed = buffer.get(start) == '+';
+        int digits = 0;
+        for (int i = signed ? start + 1 : start; i < start + ZipCode.LENGTH; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return;
+            }
+            digits = digits * 10 + digit;
+        }
+        if (digits > 0) {
+            int zip = ZipCode.of(digits, signed);
+            record.donorZip = zip;
+            String zipStr = zipStrings[zip];
+            if (zipStr == null) {
+                zipStr = ZipCode.format(zip);
+                zipStrings[zip] = zipStr;
+            }
+            record.donorZipStr = zipStr;
+        }
+    }
+
+    /**
+     * Date is valid if it's 8 digits in MMDDYYYY format with month 1-12, day 1-31 and a positive year
+     */
+    private void parseDate(ByteBuffer buffer, int start, int end, ContributionRecord record) {
+        if (end - start != DATE_LENGTH) {
+            return;
+        }
+        int month = 0;
+        int day = 0;
+        int year = 0;
+        for (int i = 0; i < DATE_LENGTH; i++) {
+            int digit = buffer.get(start + i) - '0';
+            if (digit < 0 || digit > 9) {
+                return;
+            }
+            if (i < 2) {
+                month = month * 10 + digit;
+            } else if (i < 4) {
+                day = day * 10 + digit;
+            } else {
+                year = year * 10 + digit;
+            }
+        }
+        int packedDate = PackedDate.pack(year, month, day);
+        if (packedDate != PackedDate.INVALID) {
+            record.txDate = packedDate;
+            record.txDateStr = dateString(packedDate);
+        }
+    }
+
+    /**
+     * Parses the amount straight into integer cents, see Cents.parse
+     *
+     * Plain decimals with up to Cents.MAX_DIGITS digits are converted in place, extra fraction digits
+     * rounded half to even. Anything else (exponents, type suffixes, very long numbers) falls back to Cents.parse.
+     *
+     * @return false if the amount is not a number
+     */
+    private boolean parseAmount(ByteBuffer buffer, int start, int end, ContributionRecord record) {
+        while (start < end && (buffer.get(start) & 0xff) <= ' ') {
+            start++;
+        }
+        while (end > start && (buffer.get(end - 1) & 0xff) <= ' ') {
+            end--;
+        }
+        int i = start;
+        boolean negative = false;
+        if (i < end && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+            negative = buffer.get(i) == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = -1;
+        for (; i < end && digits <= Cents.MAX_DIGITS; i++) {
+            byte b = buffer.get(i);
+            if (b >= '0' && b <= '9') {
+                digits++;
+                mantissa = mantissa * 10 + (b - '0');
+                if (fractionDigits >= 0) {
+                    fractionDigits++;
+                }
+            } else if (b == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+            } else {
+                break;
+            }
+        }
+        if (i != end || digits == 0 || digits > Cents.MAX_DIGITS) {
+            return parseAmountSlowPath(buffer, start, end, record);
+        }
+        long cents = Cents.ofDecimal(mantissa, Math.max(fractionDigits, 0));
+        record.txAmountCents = negative ? -cents : cents;
+        return true;
+    }
+
+    private boolean parseAmountSlowPath(ByteBuffer buffer, int start, int end, ContributionRecord record) {
+        byte[] bytes = new byte[end - start];
+        for (int i = start; i < end; i++) {
+            bytes[i - start] = buffer.get(i);
+        }
+        try {
+            record.txAmountCents = Cents.parse(new String(bytes, StandardCharsets.UTF_8));
+            return true;
+        } catch (NumberFormatException nfe) {
+            // log bad contribution row
+            return false;
+        }
+    }
+
+    private String dateString(int packedDate) {
+        int mask = dateKeys.length - 1;
+        int slot = (packedDate * 0x9E3779B9) >>> 16 & mask;
+        while (dateKeys[slot] != 0) {
+            if (dateKeys[slot] == packedDate) {
+                return dateStrings[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        String dateStr = PackedDate.format(packedDate);
+        dateKeys[slot] = packedDate;
+        dateStrings[slot] = dateStr;
+        if (++dateCount * 2 > dateKeys.length) {
+            int[] oldKeys = dateKeys;
+            String[] oldStrings = dateStrings;
+            dateKeys = new int[oldKeys.length * 2];
+            dateStrings = new String[oldKeys.length * 2];
+            dateCount = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    insertDate(oldKeys[i], oldStrings[i]);
+                }
+            }
+        }
+        return dateStr;
+    }
+
+    private void insertDate(int packedDate, String dateStr) {
+        int mask = dateKeys.length - 1;
+        int slot = (packedDate * 0x9E3779B9) >>> 16 & mask;
+        while (dateKeys[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        dateKeys[slot] = packedDate;
+        dateStrings[slot] = dateStr;
+        dateCount++;
+    }
+}
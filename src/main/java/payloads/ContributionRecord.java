@@ -0,0 +1,104 @@
+package payloads;
+
+import util.PackedDate;
+import util.ZipCode;
+
+/**
+ * A mutable, reusable view of a single Contribution row
+ *
+ * Filled in place by ContributionParser for every row so that the byte-level
+ * parsing path does not allocate a payload object per contribution.
+ * Zipcode and date are kept as ints, the amount is kept as integer cents.
+ */
+public class ContributionRecord
+{
+    public static final int INVALID_ZIP = ZipCode.INVALID;
+    public static final int MISSING_TEXT = -1;
+
+    String recipientId;
+    int recipientIndex;
+    int donorZip;
+    String donorZipStr;
+    int txDate;
+    String txDateStr;
+    long txAmountCents;
+    final int[] textIds = new int[TextColumn.values().length];
+
+    void clear() {
+        recipientId = null;
+        recipientIndex = 0;
+        donorZip = INVALID_ZIP;
+        donorZipStr = null;
+        txDate = PackedDate.INVALID;
+        txDateStr = null;
+        txAmountCents = 0;
+        for (int i = 0; i < textIds.length; i++) {
+            textIds[i] = MISSING_TEXT;
+        }
+    }
+
+    public String getRecipientId() {
+        return recipientId;
+    }
+
+    /**
+     * @return int id of the recipient in the StringDictionary of the parser
+     */
+    public int getRecipientIndex() {
+        return recipientIndex;
+    }
+
+    /**
+     * @return zipcode as int, see ZipCode, or INVALID_ZIP if the input zipcode is malformed
+     */
+    public int getContributorZipCode() {
+        return donorZip;
+    }
+
+    /**
+     * @return 5 digit zipcode, or null if the input zipcode is malformed
+     */
+    public String getContributorZip() {
+        return donorZipStr;
+    }
+
+    /**
+     * @return date packed as yyyymmdd, or PackedDate.INVALID if the input date is malformed
+     */
+    public int getTxDate() {
+        return txDate;
+    }
+
+    /**
+     * @return date as MMDDYYYY, or null if the input date is malformed
+     */
+    public String getTxDateStr() {
+        return txDateStr;
+    }
+
+    /**
+     * @return contribution amount in cents
+     */
+    public long getTxAmountCents() {
+        return txAmountCents;
+    }
+
+    /**
+     * @param textColumn - a column the parser was asked to parse
+     * @return int id of the column's text in the parser's dictionary of the column,
+     *         or MISSING_TEXT if the column is empty or not parsed
+     */
+    public int getTextId(TextColumn textColumn) {
+        return textIds[textColumn.ordinal()];
+    }
+
+    @Override
+    public String toString() {
+        return "ContributionRecord{" +
+                "recipientId='" + recipientId + '\'' +
+                ", donorZip='" + donorZipStr + '\'' +
+                ", txDateStr='" + txDateStr + '\'' +
+                ", txAmountCents=" + txAmountCents +
+                '}';
+    }
+}
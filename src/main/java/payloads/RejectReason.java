@@ -0,0 +1,20 @@
+package payloads;
+
+/**
+ * Why a contribution row is skipped entirely
+ *
+ * Rows with a malformed zipcode or date are not rejected, they are only left out
+ * of the running data by zipcode or the aggregate data by date.
+ */
+public enum RejectReason
+{
+    /**
+     * The row has a non-empty OTHER_ID, i.e. it is not an individual contribution
+     */
+    OTHER_ID,
+
+    /**
+     * The row has too few columns or its amount is not a number
+     */
+    MALFORMED
+}
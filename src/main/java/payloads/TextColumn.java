@@ -0,0 +1,29 @@
+package payloads;
+
+/**
+ * Text columns of a contribution row that can be parsed in addition to the ones the analysis always needs,
+ * each mapped to a dense int id by its own dictionary, see ContributionParser
+ */
+public enum TextColumn
+{
+    /**
+     * name of the donor, see the top donors of an AggregationView
+     */
+    NAME(7),
+    STATE(9),
+    EMPLOYER(11),
+    OCCUPATION(12);
+
+    private final int column;
+
+    TextColumn(int column) {
+        this.column = column;
+    }
+
+    /**
+     * @return index of the column in a pipe separated FEC row
+     */
+    public int getColumn() {
+        return column;
+    }
+}
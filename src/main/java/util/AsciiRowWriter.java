@@ -0,0 +1,181 @@
+package util;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes output rows as bytes into a large buffer, flushed to a channel through a direct buffer when full
+ *
+ * Avoids building an intermediate String per row and the charset encoding of a Writer:
+ * text is copied byte by byte and numbers are written as decimal digits in place.
+ * Rows are formatted into a plain byte array, since single byte puts into a direct ByteBuffer are bounds
+ * checked one by one, and the array is copied into the direct buffer in bulk before each channel write.
+ * Rows end with the platform line separator and non-ASCII text is encoded with the default charset,
+ * so the bytes written are the same a PrintWriter over a FileWriter writes.
+ *
+ * Like a PrintWriter, write failures are not thrown but remembered, see checkError.
+ * Not thread-safe, every output has a single writing thread.
+ */
+public class AsciiRowWriter implements Closeable, Flushable
+{
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(Charset.defaultCharset());
+    private static final byte[] MIN_LONG = Long.toString(Long.MIN_VALUE).getBytes(Charset.defaultCharset());
+    // room for any number, so that a number is never split over two flushes
+    private static final int MIN_BUFFER_SIZE = 64;
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer directBuffer;
+    private final byte[] buffer;
+    private int size;
+    private boolean error;
+
+    /**
+     * @param channel - channel to write to, closed with this writer
+     * @param bufferSize - bytes buffered before writing to the channel
+     */
+    public AsciiRowWriter(WritableByteChannel channel, int bufferSize) {
+        this.channel = channel;
+        this.buffer = new byte[Math.max(MIN_BUFFER_SIZE, bufferSize)];
+        this.directBuffer = ByteBuffer.allocateDirect(buffer.length);
+    }
+
+    /**
+     * @param file - file to create, or to truncate if it exists
+     * @param bufferSize - bytes buffered before writing to the file
+     * @return a writer to the file
+     * @throws IOException if the file can not be opened
+     */
+    public static AsciiRowWriter open(Path file, int bufferSize) throws IOException {
+        return new AsciiRowWriter(FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING), bufferSize);
+    }
+
+    public AsciiRowWriter append(String text) {
+        int length = text.length();
+        if (length > buffer.length - size) {
+            drain();
+            if (length > buffer.length) {
+                return append(text.getBytes(Charset.defaultCharset()));
+            }
+        }
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80) {
+                size -= i;
+                return append(text.getBytes(Charset.defaultCharset()));
+            }
+            buffer[size++] = (byte) c;
+        }
+        return this;
+    }
+
+    public AsciiRowWriter append(byte[] bytes) {
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (size == buffer.length) {
+                drain();
+            }
+            int length = Math.min(bytes.length - offset, buffer.length - size);
+            System.arraycopy(bytes, offset, buffer, size, length);
+            size += length;
+            offset += length;
+        }
+        return this;
+    }
+
+    public AsciiRowWriter append(char c) {
+        if (size == buffer.length) {
+            drain();
+        }
+        buffer[size++] = (byte) c;
+        return this;
+    }
+
+    public AsciiRowWriter append(long value) {
+        if (value == Long.MIN_VALUE) {
+            return append(MIN_LONG);
+        }
+        if (buffer.length - size < 20) {
+            drain();
+        }
+        if (value < 0) {
+            buffer[size++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long remaining = value / 10; remaining > 0; remaining /= 10) {
+            digits++;
+        }
+        for (int i = size + digits - 1; i >= size; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        size += digits;
+        return this;
+    }
+
+    /**
+     * @param value - non-negative value
+     * @param minDigits - minimum number of digits, the value is padded with leading zeros
+     */
+    public AsciiRowWriter appendZeroPadded(long value, int minDigits) {
+        int length = 1;
+        for (long remaining = value / 10; remaining > 0; remaining /= 10) {
+            length++;
+        }
+        for (; length < minDigits; length++) {
+            append('0');
+        }
+        return append(value);
+    }
+
+    public AsciiRowWriter endRow() {
+        return append(LINE_SEPARATOR);
+    }
+
+    /**
+     * Writes the buffered rows to the channel
+     */
+    @Override
+    public void flush() {
+        drain();
+    }
+
+    /**
+     * Flushes and reports whether any write failed so far
+     *
+     * @return true if writing to the channel failed
+     */
+    public boolean checkError() {
+        drain();
+        return error;
+    }
+
+    @Override
+    public void close() throws IOException {
+        drain();
+        channel.close();
+    }
+
+    private void drain() {
+        directBuffer.clear();
+        directBuffer.put(buffer, 0, size).flip();
+        size = 0;
+        try {
+            while (directBuffer.hasRemaining() && !error) {
+                channel.write(directBuffer);
+            }
+        } catch (IOException ioe) {
+            error = true;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An open-addressing table that maps raw byte slices to interned Strings and their StringDictionary ids
+ *
+ * Recipient ids repeat on almost every row, so looking up the bytes directly
+ * avoids decoding a new String per row. A String is only created, and looked up in the
+ * shared dictionary, the first time a byte sequence is seen.
+ *
+ * Not thread-safe, each parser owns its own table.
+ */
+public class ByteStringInterner
+{
+    private final StringDictionary dictionary;
+
+    private byte[][] keys;
+    private String[] values;
+    private int[] ids;
+    private int[] hashes;
+    private int size;
+
+    public ByteStringInterner() {
+        this(new StringDictionary());
+    }
+
+    /**
+     * @param dictionary - dictionary assigning the ids, may be shared with other tables
+     */
+    public ByteStringInterner(StringDictionary dictionary) {
+        this.dictionary = dictionary;
+        keys = new byte[64][];
+        values = new String[64];
+        ids = new int[64];
+        hashes = new int[64];
+    }
+
+    /**
+     * @param buffer - buffer holding the bytes
+     * @param start - start index, inclusive
+     * @param end - end index, exclusive
+     * @return the String for the given bytes, decoded as UTF-8
+     */
+    public String intern(ByteBuffer buffer, int start, int end) {
+        int slot = slot(buffer, start, end);
+        return values[slot];
+    }
+
+    /**
+     * @param buffer - buffer holding the bytes
+     * @param start - start index, inclusive
+     * @param end - end index, exclusive
+     * @return the dictionary id of the String for the given bytes
+     */
+    public int internId(ByteBuffer buffer, int start, int end) {
+        int slot = slot(buffer, start, end);
+        return ids[slot];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private int slot(ByteBuffer buffer, int start, int end) {
+        if ((size + 1) * 2 > keys.length) {
+            resize();
+        }
+        int hash = hash(buffer, start, end);
+        int mask = keys.length - 1;
+        int slot = hash & mask;
+        while (keys[slot] != null) {
+            if (hashes[slot] == hash && matches(keys[slot], buffer, start, end)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        byte[] key = new byte[end - start];
+        for (int i = start; i < end; i++) {
+            key[i - start] = buffer.get(i);
+        }
+        String value = new String(key, StandardCharsets.UTF_8);
+        keys[slot] = key;
+        values[slot] = value;
+        ids[slot] = dictionary.idOf(value);
+        hashes[slot] = hash;
+        size++;
+        return slot;
+    }
+
+    private static int hash(ByteBuffer buffer, int start, int end) {
+        int hash = 1;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + buffer.get(i);
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean matches(byte[] key, ByteBuffer buffer, int start, int end) {
+        if (key.length != end - start) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (key[i] != buffer.get(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void resize() {
+        byte[][] oldKeys = keys;
+        String[] oldValues = values;
+        int[] oldIds = ids;
+        int[] oldHashes = hashes;
+        keys = new byte[oldKeys.length * 2][];
+        values = new String[oldKeys.length * 2];
+        ids = new int[oldKeys.length * 2];
+        hashes = new int[oldKeys.length * 2];
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                int slot = oldHashes[i] & mask;
+                while (keys[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+                ids[slot] = oldIds[i];
+                hashes[slot] = oldHashes[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package util;
+
+/**
+ * Integer arithmetic on contribution amounts kept as long cents
+ *
+ * Amounts are parsed straight into cents, and totals and medians are summed and rounded
+ * to whole dollars without going through double. Rounding is half to even, like Math.rint
+ * on the dollar value, so the reported numbers are the same as with floating point.
+ */
+public final class Cents
+{
+    // digits of a plain decimal that always fit a long, even in cents
+    public static final int MAX_DIGITS = 16;
+    private static final long MAX_CENTS_DOUBLE = Long.MAX_VALUE / 2;
+
+    private Cents() {
+    }
+
+    /**
+     * @param cents - amount in cents
+     * @return amount in whole dollars, rounded half to even
+     */
+    public static long toDollars(long cents) {
+        return divideHalfEven(cents, 100);
+    }
+
+    /**
+     * @param doubledCents - twice an amount in cents, e.g. the sum of the two middle values of a median
+     * @return the amount in whole dollars, rounded half to even
+     */
+    public static long doubledToDollars(long doubledCents) {
+        return divideHalfEven(doubledCents, 200);
+    }
+
+    /**
+     * @param dividend - any value
+     * @param divisor - positive divisor
+     * @return dividend / divisor rounded to the nearest long, half to even
+     */
+    public static long divideHalfEven(long dividend, long divisor) {
+        long quotient = Math.floorDiv(dividend, divisor);
+        long twiceRemainder = Math.floorMod(dividend, divisor) * 2;
+        if (twiceRemainder > divisor || (twiceRemainder == divisor && (quotient & 1) == 1)) {
+            quotient++;
+        }
+        return quotient;
+    }
+
+    /**
+     * Converts the digits of a plain decimal number to cents, rounding extra fraction digits half to even
+     *
+     * @param mantissa - the digits of the number without the decimal point, at most MAX_DIGITS digits
+     * @param fractionDigits - number of those digits after the decimal point
+     * @return the unsigned amount in cents
+     */
+    public static long ofDecimal(long mantissa, int fractionDigits) {
+        if (fractionDigits <= 2) {
+            return fractionDigits == 2 ? mantissa : mantissa * (fractionDigits == 1 ? 10 : 100);
+        }
+        long divisor = 1;
+        for (int i = 2; i < fractionDigits; i++) {
+            divisor *= 10;
+        }
+        return divideHalfEven(mantissa, divisor);
+    }
+
+    /**
+     * Parses an amount as written in the FEC files to cents
+     *
+     * Plain decimals of up to MAX_DIGITS digits are converted exactly. Anything else Double.valueOf accepts
+     * (exponents, type suffixes, longer numbers) is converted through double, the amount rounded to cents.
+     *
+     * @param amount - amount in dollars, surrounding whitespace is ignored
+     * @return the amount in cents
+     * @throws NumberFormatException if the amount is not a number, or not a finite one that fits a long in cents
+     */
+    public static long parse(String amount) {
+        int start = 0;
+        int end = amount.length();
+        while (start < end && amount.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && amount.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        int i = start;
+        boolean negative = false;
+        if (i < end && (amount.charAt(i) == '-' || amount.charAt(i) == '+')) {
+            negative = amount.charAt(i) == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = -1;
+        for (; i < end && digits <= MAX_DIGITS; i++) {
+            char c = amount.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits++;
+                mantissa = mantissa * 10 + (c - '0');
+                if (fractionDigits >= 0) {
+                    fractionDigits++;
+                }
+            } else if (c == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+            } else {
+                break;
+            }
+        }
+        if (i == end && digits > 0 && digits <= MAX_DIGITS) {
+            long cents = ofDecimal(mantissa, Math.max(fractionDigits, 0));
+            return negative ? -cents : cents;
+        }
+        return ofDouble(Double.valueOf(amount));
+    }
+
+    /**
+     * @param amount - amount in dollars
+     * @return the amount rounded to cents
+     * @throws NumberFormatException if the amount is not finite or does not fit a long in cents
+     */
+    public static long ofDouble(double amount) {
+        double cents = amount * 100;
+        if (!(Math.abs(cents) < MAX_CENTS_DOUBLE)) {
+            throw new NumberFormatException("Amount out of range: " + amount);
+        }
+        return Math.round(cents);
+    }
+}
@@ -0,0 +1,31 @@
+package util;
+
+/**
+ * Encodes a contribution group as a single long key
+ *
+ * The high 32 bits hold the int id of the recipient from the store's StringDictionary,
+ * the low 32 bits the int value the contributions are grouped by,
+ * e.g. the zipcode or the packed date.
+ */
+public final class GroupKey
+{
+    private GroupKey() {
+    }
+
+    /**
+     * @param recipient - int id of the recipient
+     * @param value - zipcode, packed date or any other int the group is keyed by
+     * @return key of the group
+     */
+    public static long of(int recipient, int value) {
+        return ((long) recipient << 32) | (value & 0xFFFFFFFFL);
+    }
+
+    public static int recipient(long key) {
+        return (int) (key >>> 32);
+    }
+
+    public static int value(long key) {
+        return (int) key;
+    }
+}
@@ -0,0 +1,176 @@
+package util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * An exact median store that keeps a count per distinct value instead of every value
+ *
+ * Contribution amounts are heavily clustered (whole dollars, common round values),
+ * so a group usually holds far fewer distinct amounts than contributions.
+ * Distinct values are kept sorted in a long[] with their counts in a parallel int[],
+ * and a cursor pointing at the lower median is moved by at most one step per insert.
+ * Memory grows with the number of distinct amounts of a group, not with its number of contributions.
+ *
+ * Time Complexity
+ * ---------------
+ * insert - O(lg k) for a known value, O(k) for a new one, with k distinct values
+ * compute median - O(1)
+ */
+public class HistogramMedianStore implements MedianStore
+{
+    private static final long[] NO_VALUES = new long[0];
+    private static final int[] NO_COUNTS = new int[0];
+
+    private long[] values = NO_VALUES;
+    private int[] counts = NO_COUNTS;
+    private int distinct;
+    private int size;
+
+    // the lower median is copy number medianOffset of values[medianIndex], at rank (size - 1) / 2
+    private int medianIndex;
+    private int medianOffset;
+
+    @Override
+    public long getDoubledMedian() {
+        long lower = values[medianIndex];
+        if (size % 2 == 1) {
+            return lower * 2;
+        }
+        long upper = medianOffset + 1 < counts[medianIndex] ? lower : values[medianIndex + 1];
+        return lower + upper;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return number of distinct values in the list
+     */
+    public int distinctSize() {
+        return distinct;
+    }
+
+    @Override
+    public void add(long number) {
+        int index = Arrays.binarySearch(values, 0, distinct, number);
+        if (index < 0) {
+            index = -index - 1;
+            insertDistinct(index, number);
+            if (size > 0 && index <= medianIndex) {
+                medianIndex++;
+            }
+        }
+        counts[index]++;
+        size++;
+        if (size == 1) {
+            medianIndex = 0;
+            medianOffset = 0;
+            return;
+        }
+        // the new value is placed after all equal values, so it only shifts a median above it
+        boolean belowMedian = number < values[medianIndex];
+        if (belowMedian && size % 2 == 0) {
+            moveMedianBack();
+        } else if (!belowMedian && size % 2 == 1) {
+            moveMedianForward();
+        }
+    }
+
+    @Override
+    public void addAll(MedianStore other) {
+        HistogramMedianStore histogram = (HistogramMedianStore) other;
+        long[] mergedValues = new long[distinct + histogram.distinct];
+        int[] mergedCounts = new int[mergedValues.length];
+        int merged = 0;
+        int i = 0;
+        int j = 0;
+        while (i < distinct || j < histogram.distinct) {
+            if (j == histogram.distinct || (i < distinct && values[i] < histogram.values[j])) {
+                mergedValues[merged] = values[i];
+                mergedCounts[merged++] = counts[i++];
+            } else if (i == distinct || histogram.values[j] < values[i]) {
+                mergedValues[merged] = histogram.values[j];
+                mergedCounts[merged++] = histogram.counts[j++];
+            } else {
+                mergedValues[merged] = values[i];
+                mergedCounts[merged++] = counts[i++] + histogram.counts[j++];
+            }
+        }
+        values = mergedValues;
+        counts = mergedCounts;
+        distinct = merged;
+        size += histogram.size;
+        locateMedian();
+    }
+
+    @Override
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(size);
+        out.writeInt(distinct);
+        out.writeInt(medianIndex);
+        out.writeInt(medianOffset);
+        for (int i = 0; i < distinct; i++) {
+            out.writeLong(values[i]);
+            out.writeInt(counts[i]);
+        }
+    }
+
+    @Override
+    public void readFrom(DataInput in) throws IOException {
+        size = in.readInt();
+        distinct = in.readInt();
+        medianIndex = in.readInt();
+        medianOffset = in.readInt();
+        values = distinct == 0 ? NO_VALUES : new long[distinct];
+        counts = distinct == 0 ? NO_COUNTS : new int[distinct];
+        for (int i = 0; i < distinct; i++) {
+            values[i] = in.readLong();
+            counts[i] = in.readInt();
+        }
+    }
+
+    private void insertDistinct(int index, long number) {
+        if (distinct == values.length) {
+            int capacity = distinct == 0 ? 2 : distinct + (distinct >> 1) + 1;
+            values = Arrays.copyOf(values, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+        }
+        System.arraycopy(values, index, values, index + 1, distinct - index);
+        System.arraycopy(counts, index, counts, index + 1, distinct - index);
+        values[index] = number;
+        counts[index] = 0;
+        distinct++;
+    }
+
+    private void moveMedianBack() {
+        if (medianOffset > 0) {
+            medianOffset--;
+        } else {
+            medianIndex--;
+            medianOffset = counts[medianIndex] - 1;
+        }
+    }
+
+    private void moveMedianForward() {
+        if (medianOffset + 1 < counts[medianIndex]) {
+            medianOffset++;
+        } else {
+            medianIndex++;
+            medianOffset = 0;
+        }
+    }
+
+    private void locateMedian() {
+        int rank = (size - 1) / 2;
+        medianIndex = 0;
+        while (rank >= counts[medianIndex]) {
+            rank -= counts[medianIndex++];
+        }
+        medianOffset = rank;
+    }
+}
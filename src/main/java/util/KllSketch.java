@@ -0,0 +1,212 @@
+package util;
+
+import java.util.Arrays;
+
+/**
+ * An approximate QuantileStore of fixed size, a KLL sketch (Karnin, Lang and Liberty)
+ *
+ * Values are kept in levels, a value at level h standing for 2^h of the values added.
+ * New values go to level 0. Once the sketch holds as many values as its capacity, the lowest level that is full
+ * is compacted: it is sorted, and every other value, starting at a random first or second one, moves up a level
+ * with twice the weight, the others are dropped. The capacity of a level shrinks by 2/3 per level below the top,
+ * down to MIN_LEVEL_CAPACITY, so the sketch retains about 3k values however many are added,
+ * and a quantile is off by about 1.7 / k of the ranks (about 1% for k = 200).
+ *
+ * Small lists stay exact: nothing is compacted until k values were added.
+ * The random bits come from a fixed seed, so a given sequence of values always gives the same quantiles.
+ *
+ * Time Complexity
+ * ---------------
+ * insert - O(1) amortized, O(k lg k) per compaction
+ * compute quantile - O(r lg r) for r retained values after a compaction, O(lg r) otherwise:
+ *                    the sorted values are kept up to date by inserts between compactions,
+ *                    so running quantiles cost O(r) per insert
+ */
+public class KllSketch implements QuantileStore
+{
+    public static final int DEFAULT_K = 200;
+    public static final int MIN_LEVEL_CAPACITY = 8;
+
+    private static final double DECAY = 2.0 / 3.0;
+    private static final long SEED = 0x9E3779B97F4A7C15L;
+
+    private final int k;
+    private long[][] levels = { new long[MIN_LEVEL_CAPACITY] };
+    private int[] levelSizes = new int[1];
+    private int retained;
+    private int capacity;
+    private long count;
+    private long random = SEED;
+
+    // retained values in ascending order with the cumulative weight up to each, null after a compaction
+    private long[] sortedValues;
+    private long[] cumulativeWeights;
+
+    public KllSketch() {
+        this(DEFAULT_K);
+    }
+
+    /**
+     * @param k - capacity of the top level, larger is more accurate
+     * @throws IllegalArgumentException if k is less than MIN_LEVEL_CAPACITY
+     */
+    public KllSketch(int k) {
+        if (k < MIN_LEVEL_CAPACITY) {
+            throw new IllegalArgumentException("Expected a sketch size of at least " + MIN_LEVEL_CAPACITY + ", not " + k);
+        }
+        this.k = k;
+        this.capacity = k;
+    }
+
+    @Override
+    public void add(long number) {
+        if (retained >= capacity) {
+            compress();
+            sortedValues = null;
+        }
+        append(0, number);
+        count++;
+        if (sortedValues != null) {
+            insertSorted(number);
+        }
+    }
+
+    /**
+     * @throws IllegalStateException if the list is empty
+     */
+    @Override
+    public long getQuantile(double quantile) {
+        if (count == 0) {
+            throw new IllegalStateException("No values to select a quantile from");
+        }
+        if (sortedValues == null) {
+            sort();
+        }
+        long rank = QuantileStore.rankOf(quantile, count);
+        int index = Arrays.binarySearch(cumulativeWeights, 0, retained, rank);
+        return sortedValues[index >= 0 ? index : -index - 1];
+    }
+
+    @Override
+    public long count() {
+        return count;
+    }
+
+    /**
+     * @return number of values kept by the sketch, at most about 3k
+     */
+    public int retained() {
+        return retained;
+    }
+
+    /**
+     * @return approximate bytes of heap held by the sketch, not counting the sorted copy made by getQuantile
+     */
+    public long retainedBytes() {
+        long bytes = 64 + 16L * levels.length;
+        for (long[] level : levels) {
+            bytes += 16 + 8L * level.length;
+        }
+        return bytes;
+    }
+
+    /**
+     * Compacts the lowest level holding at least its capacity, adding a level on top if it is the highest one
+     */
+    private void compress() {
+        int levelCount = levels.length;
+        for (int h = 0; h < levelCount; h++) {
+            if (levelSizes[h] >= levelCapacity(h, levelCount)) {
+                if (h + 1 == levelCount) {
+                    levels = Arrays.copyOf(levels, levelCount + 1);
+                    levels[levelCount] = new long[MIN_LEVEL_CAPACITY];
+                    levelSizes = Arrays.copyOf(levelSizes, levelCount + 1);
+                }
+                compact(h);
+                break;
+            }
+        }
+        capacity = 0;
+        for (int h = 0; h < levels.length; h++) {
+            capacity += levelCapacity(h, levels.length);
+        }
+    }
+
+    /**
+     * Moves every other value of the sorted level up a level, keeping the smallest value if their number is odd
+     */
+    private void compact(int h) {
+        long[] level = levels[h];
+        int size = levelSizes[h];
+        Arrays.sort(level, 0, size);
+        int kept = size & 1;
+        random = random * 6364136223846793005L + 1442695040888963407L;
+        for (int i = kept + (int) (random >>> 63); i < size; i += 2) {
+            append(h + 1, level[i]);
+        }
+        levelSizes[h] = kept;
+        retained -= size - kept;
+        // a level fills up to its capacity again before the next compaction, which shrinks as levels are added
+        int levelCapacity = levelCapacity(h, levels.length);
+        if (level.length > 2 * levelCapacity) {
+            levels[h] = Arrays.copyOf(level, levelCapacity);
+        }
+    }
+
+    private void append(int h, long value) {
+        if (levelSizes[h] == levels[h].length) {
+            levels[h] = Arrays.copyOf(levels[h], levels[h].length * 2);
+        }
+        levels[h][levelSizes[h]++] = value;
+        retained++;
+    }
+
+    /**
+     * Inserts a value of level 0, weight 1, into the sorted values, only valid while they are not null
+     */
+    private void insertSorted(long value) {
+        int sorted = retained - 1;
+        if (sorted == sortedValues.length) {
+            sortedValues = null;
+            return;
+        }
+        int index = Arrays.binarySearch(sortedValues, 0, sorted, value);
+        index = index >= 0 ? index : -index - 1;
+        System.arraycopy(sortedValues, index, sortedValues, index + 1, sorted - index);
+        System.arraycopy(cumulativeWeights, index, cumulativeWeights, index + 1, sorted - index);
+        sortedValues[index] = value;
+        cumulativeWeights[index] = index == 0 ? 1 : cumulativeWeights[index - 1] + 1;
+        for (int i = index + 1; i <= sorted; i++) {
+            cumulativeWeights[i]++;
+        }
+    }
+
+    private int levelCapacity(int h, int levelCount) {
+        return Math.max(MIN_LEVEL_CAPACITY, (int) Math.ceil(k * Math.pow(DECAY, levelCount - 1 - h)));
+    }
+
+    /**
+     * Merges the sorted levels into one list of values with the cumulative weight of each
+     */
+    private void sort() {
+        // room for the values inserted before the next compaction
+        sortedValues = new long[Math.max(capacity, retained)];
+        cumulativeWeights = new long[sortedValues.length];
+        int[] next = new int[levels.length];
+        for (int h = 0; h < levels.length; h++) {
+            Arrays.sort(levels[h], 0, levelSizes[h]);
+        }
+        long weight = 0;
+        for (int i = 0; i < retained; i++) {
+            int smallest = -1;
+            for (int h = 0; h < levels.length; h++) {
+                if (next[h] < levelSizes[h] && (smallest < 0 || levels[h][next[h]] < levels[smallest][next[smallest]])) {
+                    smallest = h;
+                }
+            }
+            sortedValues[i] = levels[smallest][next[smallest]++];
+            weight += 1L << smallest;
+            cumulativeWeights[i] = weight;
+        }
+    }
+}
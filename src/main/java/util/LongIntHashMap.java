@@ -0,0 +1,136 @@
+package util;
+
+/**
+ * An open-addressing hash map from primitive long keys to int values
+ *
+ * Linear probing over a long[] of keys and an int[] of values instead of an Object[],
+ * so the map holds no reference the garbage collector has to trace.
+ * Mappings can not be removed.
+ *
+ * Not thread-safe.
+ */
+public class LongIntHashMap
+{
+    public static final int NOT_FOUND = -1;
+
+    private static final long EMPTY = 0L;
+
+    private long[] keys;
+    private int[] values;
+    private int size;
+
+    // the key 0 marks empty slots, so its value is kept aside
+    private int zeroKeyValue = NOT_FOUND;
+
+    public LongIntHashMap() {
+        this(64);
+    }
+
+    /**
+     * @param expectedSize - number of mappings the map should hold without growing
+     */
+    public LongIntHashMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize) * 2 - 1) << 1;
+        keys = new long[capacity];
+        values = new int[capacity];
+    }
+
+    /**
+     * @param key - key to look up
+     * @return the value mapped to the key, or NOT_FOUND if there is none
+     */
+    public int get(long key) {
+        if (key == EMPTY) {
+            return zeroKeyValue;
+        }
+        int mask = keys.length - 1;
+        for (int slot = slot(key, mask); keys[slot] != EMPTY; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return values[slot];
+            }
+        }
+        return NOT_FOUND;
+    }
+
+    /**
+     * @param key - key to map
+     * @param value - value to map the key to, not negative
+     */
+    public void put(long key, int value) {
+        if (key == EMPTY) {
+            if (zeroKeyValue == NOT_FOUND) {
+                size++;
+            }
+            zeroKeyValue = value;
+            return;
+        }
+        int mask = keys.length - 1;
+        int slot = slot(key, mask);
+        while (keys[slot] != EMPTY) {
+            if (keys[slot] == key) {
+                values[slot] = value;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        if (++size * 2 > keys.length) {
+            resize();
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Visits every mapping, in no particular order
+     *
+     * @param visitor - called once per mapping
+     */
+    public void forEach(Visitor visitor) {
+        if (zeroKeyValue != NOT_FOUND) {
+            visitor.visit(EMPTY, zeroKeyValue);
+        }
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != EMPTY) {
+                visitor.visit(keys[slot], values[slot]);
+            }
+        }
+    }
+
+    private static int slot(long key, int mask) {
+        // murmur3 finalizer, spreads the recipient id in the high bits over the low bits
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key & mask;
+    }
+
+    private void resize() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = slot(oldKeys[i], mask);
+                while (keys[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    /**
+     * Receives the mappings of a LongIntHashMap
+     */
+    public interface Visitor
+    {
+        void visit(long key, int value);
+    }
+}
@@ -0,0 +1,236 @@
+package util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A primitive max-min-heap of long values for efficient median computation
+ *
+ * Most groups only ever see a handful of contributions, so values are first kept
+ * inline in a single small sorted array. Once a group outgrows it, the values are
+ * moved into two growable long[] heaps, the first half as max-heap and the second
+ * half as min-heap. No value is ever boxed.
+ *
+ * Time Complexity
+ * ---------------
+ * insert - O(1) for inline groups, O(lg n) otherwise
+ * compute median - O(1)
+ */
+public class LongMedianHeap implements MedianStore
+{
+    static final int INLINE_CAPACITY = 8;
+    private static final long[] EMPTY = new long[0];
+
+    // sorted values while inline, the max-heap of the first half afterwards
+    private long[] firstHalf = EMPTY;
+    private long[] secondHalf;
+    private int firstSize;
+    private int secondSize;
+
+    /**
+     *
+     * @return returns twice the median value of the list stored in the heaps
+     */
+    @Override
+    public long getDoubledMedian() {
+        if (secondHalf == null) {
+            int middle = firstSize / 2;
+            if (firstSize % 2 == 1) {
+                return firstHalf[middle] * 2;
+            }
+            return firstHalf[middle - 1] + firstHalf[middle];
+        }
+        if (firstSize == secondSize) {
+            return firstHalf[0] + secondHalf[0];
+        }
+        return (firstSize > secondSize ? firstHalf[0] : secondHalf[0]) * 2;
+    }
+
+    @Override
+    public int size() {
+        return firstSize + secondSize;
+    }
+
+    /**
+     *
+     * @param number - add number to the list
+     */
+    @Override
+    public void add(long number) {
+        if (secondHalf == null) {
+            if (firstSize < INLINE_CAPACITY) {
+                addInline(number);
+                return;
+            }
+            splitIntoHeaps();
+        }
+        if (firstSize == 0 || number < firstHalf[0]) {
+            firstHalf = pushMax(firstHalf, firstSize++, number);
+        } else {
+            secondHalf = pushMin(secondHalf, secondSize++, number);
+        }
+        reBalance();
+    }
+
+    /**
+     *
+     * @param other - add every number stored in the other heap to the list
+     */
+    @Override
+    public void addAll(MedianStore other) {
+        LongMedianHeap heap = (LongMedianHeap) other;
+        for (int i = 0; i < heap.firstSize; i++) {
+            add(heap.firstHalf[i]);
+        }
+        for (int i = 0; i < heap.secondSize; i++) {
+            add(heap.secondHalf[i]);
+        }
+    }
+
+    @Override
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeBoolean(secondHalf != null);
+        out.writeInt(firstSize);
+        out.writeInt(secondSize);
+        for (int i = 0; i < firstSize; i++) {
+            out.writeLong(firstHalf[i]);
+        }
+        for (int i = 0; i < secondSize; i++) {
+            out.writeLong(secondHalf[i]);
+        }
+    }
+
+    @Override
+    public void readFrom(DataInput in) throws IOException {
+        boolean heaps = in.readBoolean();
+        firstSize = in.readInt();
+        secondSize = in.readInt();
+        firstHalf = readValues(in, firstSize);
+        secondHalf = heaps ? readValues(in, secondSize) : null;
+    }
+
+    private static long[] readValues(DataInput in, int size) throws IOException {
+        long[] values = size == 0 ? EMPTY : new long[size];
+        for (int i = 0; i < size; i++) {
+            values[i] = in.readLong();
+        }
+        return values;
+    }
+
+    private void addInline(long number) {
+        if (firstSize == firstHalf.length) {
+            firstHalf = Arrays.copyOf(firstHalf, firstSize == 0 ? 2 : firstSize * 2);
+        }
+        int position = firstSize;
+        while (position > 0 && firstHalf[position - 1] > number) {
+            firstHalf[position] = firstHalf[position - 1];
+            position--;
+        }
+        firstHalf[position] = number;
+        firstSize++;
+    }
+
+    /**
+     * A sorted array is a valid min-heap, and reversed a valid max-heap
+     */
+    private void splitIntoHeaps() {
+        int half = firstSize / 2;
+        long[] sorted = firstHalf;
+        firstHalf = new long[INLINE_CAPACITY];
+        secondHalf = new long[INLINE_CAPACITY];
+        for (int i = 0; i < half; i++) {
+            firstHalf[i] = sorted[half - 1 - i];
+        }
+        System.arraycopy(sorted, half, secondHalf, 0, firstSize - half);
+        secondSize = firstSize - half;
+        firstSize = half;
+    }
+
+    /**
+     * Moves the top of the bigger heap to the smaller one if they differ by more than one
+     */
+    private void reBalance() {
+        int firstMinusSecond = firstSize - secondSize;
+        if (firstMinusSecond > 1) {
+            long top = firstHalf[0];
+            popMax();
+            secondHalf = pushMin(secondHalf, secondSize++, top);
+        } else if (firstMinusSecond < -1) {
+            long top = secondHalf[0];
+            popMin();
+            firstHalf = pushMax(firstHalf, firstSize++, top);
+        }
+    }
+
+    private static long[] pushMax(long[] heap, int size, long number) {
+        if (size == heap.length) {
+            heap = Arrays.copyOf(heap, Math.max(INLINE_CAPACITY, size * 2));
+        }
+        int child = size;
+        while (child > 0) {
+            int parent = (child - 1) >>> 1;
+            if (heap[parent] >= number) {
+                break;
+            }
+            heap[child] = heap[parent];
+            child = parent;
+        }
+        heap[child] = number;
+        return heap;
+    }
+
+    private static long[] pushMin(long[] heap, int size, long number) {
+        if (size == heap.length) {
+            heap = Arrays.copyOf(heap, Math.max(INLINE_CAPACITY, size * 2));
+        }
+        int child = size;
+        while (child > 0) {
+            int parent = (child - 1) >>> 1;
+            if (heap[parent] <= number) {
+                break;
+            }
+            heap[child] = heap[parent];
+            child = parent;
+        }
+        heap[child] = number;
+        return heap;
+    }
+
+    private void popMax() {
+        long last = firstHalf[--firstSize];
+        int parent = 0;
+        int half = firstSize >>> 1;
+        while (parent < half) {
+            int child = 2 * parent + 1;
+            if (child + 1 < firstSize && firstHalf[child + 1] > firstHalf[child]) {
+                child++;
+            }
+            if (last >= firstHalf[child]) {
+                break;
+            }
+            firstHalf[parent] = firstHalf[child];
+            parent = child;
+        }
+        firstHalf[parent] = last;
+    }
+
+    private void popMin() {
+        long last = secondHalf[--secondSize];
+        int parent = 0;
+        int half = secondSize >>> 1;
+        while (parent < half) {
+            int child = 2 * parent + 1;
+            if (child + 1 < secondSize && secondHalf[child + 1] < secondHalf[child]) {
+                child++;
+            }
+            if (last <= secondHalf[child]) {
+                break;
+            }
+            secondHalf[parent] = secondHalf[child];
+            parent = child;
+        }
+        secondHalf[parent] = last;
+    }
+}
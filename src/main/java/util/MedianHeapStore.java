@@ -44,6 +44,19 @@ public class MedianHeapStore
         reBalance(firstHalf, secondHalf);
     }
 
+    /**
+     *
+     * @param other - add every number stored in the other heaps to the list
+     */
+    public void addAll(MedianHeapStore other) {
+        for (Double number : other.firstHalf) {
+            add(number);
+        }
+        for (Double number : other.secondHalf) {
+            add(number);
+        }
+    }
+
     /**
      *
      * @param firstHalf - first half of the list stored in a max heap
@@ -0,0 +1,59 @@
+package util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A list of contribution amounts in cents that can report its median
+ */
+public interface MedianStore
+{
+    /**
+     *
+     * @param number - add number to the list
+     */
+    void add(long number);
+
+    /**
+     *
+     * @param other - add every number stored in the other store, of the same type, to the list
+     */
+    void addAll(MedianStore other);
+
+    /**
+     * The median doubled, so that it stays an exact integer: the sum of the two middle values
+     * for an even number of values, twice the middle value otherwise, see Cents.doubledToDollars
+     *
+     * @return returns twice the median value of the list
+     */
+    long getDoubledMedian();
+
+    /**
+     *
+     * @return returns the number of values in the list
+     */
+    int size();
+
+    /**
+     * Frees memory held for values once no more values are added, the median stays available
+     */
+    default void release() {
+    }
+
+    /**
+     * Writes the internal state, so that readFrom restores an identical store
+     *
+     * @param out - output to write to
+     * @throws IOException if writing fails
+     */
+    void writeTo(DataOutput out) throws IOException;
+
+    /**
+     * Restores the state written by writeTo of a store of the same type, replacing the values of this store
+     *
+     * @param in - input to read from
+     * @throws IOException if reading fails
+     */
+    void readFrom(DataInput in) throws IOException;
+}
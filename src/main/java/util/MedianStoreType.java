@@ -0,0 +1,38 @@
+package util;
+
+import java.util.function.Supplier;
+
+/**
+ * The median store implementations a data store can be configured with
+ */
+public enum MedianStoreType
+{
+    /**
+     * Two heaps holding every single amount, see LongMedianHeap
+     */
+    HEAP(LongMedianHeap::new),
+
+    /**
+     * Counts per distinct amount, see HistogramMedianStore
+     */
+    HISTOGRAM(HistogramMedianStore::new),
+
+    /**
+     * Appends every amount and selects the median on demand in linear time, see SelectionMedianStore
+     * Only suited to medians that are computed once, not to running medians.
+     */
+    SELECTION(SelectionMedianStore::new);
+
+    private final Supplier<MedianStore> factory;
+
+    MedianStoreType(Supplier<MedianStore> factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * @return a new, empty median store of this type
+     */
+    public MedianStore create() {
+        return factory.get();
+    }
+}
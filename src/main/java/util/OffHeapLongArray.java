@@ -0,0 +1,60 @@
+package util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+/**
+ * A growable array of long values kept outside of the Java heap
+ *
+ * Values live in direct ByteBuffer slabs of a fixed size, allocated as the array grows,
+ * so the garbage collector sees a handful of buffer objects however many values are stored.
+ * Slabs are never moved nor copied when growing. New slabs are zero-filled.
+ *
+ * Not thread-safe.
+ */
+public class OffHeapLongArray
+{
+    private static final int SLAB_SHIFT = 17;
+    private static final int SLAB_LONGS = 1 << SLAB_SHIFT;
+    private static final int SLAB_MASK = SLAB_LONGS - 1;
+
+    private LongBuffer[] slabs = new LongBuffer[4];
+    private int slabCount;
+
+    public long get(long index) {
+        return slabs[(int) (index >>> SLAB_SHIFT)].get((int) index & SLAB_MASK);
+    }
+
+    public void set(long index, long value) {
+        slabs[(int) (index >>> SLAB_SHIFT)].put((int) index & SLAB_MASK, value);
+    }
+
+    /**
+     * @param length - number of values the array must be able to hold
+     */
+    public void ensureCapacity(long length) {
+        while ((long) slabCount << SLAB_SHIFT < length) {
+            if (slabCount == slabs.length) {
+                slabs = Arrays.copyOf(slabs, slabCount * 2);
+            }
+            slabs[slabCount++] = ByteBuffer.allocateDirect(SLAB_LONGS * Long.BYTES)
+                    .order(ByteOrder.nativeOrder()).asLongBuffer();
+        }
+    }
+
+    /**
+     * @return number of values the array can hold without growing
+     */
+    public long capacity() {
+        return (long) slabCount << SLAB_SHIFT;
+    }
+
+    /**
+     * @return bytes allocated outside of the heap
+     */
+    public long getAllocatedBytes() {
+        return capacity() * Long.BYTES;
+    }
+}
@@ -0,0 +1,392 @@
+package util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The median stores of many groups, kept outside of the Java heap and addressed by group id
+ *
+ * Every group owns a region of an OffHeapLongArray holding a max-heap of the first half of its
+ * values followed by a min-heap of the second half, like LongMedianHeap. A group's region starts
+ * with room for 2 values per heap and is moved to a region twice as large when a heap is full;
+ * freed regions are reused by groups growing to the same size. The region and sizes of each group
+ * are kept in a second OffHeapLongArray, so no object is allocated per group.
+ *
+ * Checkpoints are written in the LongMedianHeap layout, so a store saved with on-heap medians
+ * can be loaded off the heap and the other way round.
+ *
+ * Not thread-safe.
+ */
+public class OffHeapMedianHeaps
+{
+    private static final int INITIAL_CAPACITY = 2;
+    // per group: region offset, capacity of each heap, first half size << 32 | second half size
+    private static final int HEADER_LONGS = 3;
+
+    private final OffHeapLongArray headers = new OffHeapLongArray();
+    private final OffHeapLongArray values = new OffHeapLongArray();
+    private int groupCount;
+    private long valuesEnd;
+
+    // stacks of freed region offsets, indexed by the log2 of the heap capacity
+    private long[][] freeRegions = new long[32][];
+    private int[] freeRegionCounts = new int[32];
+
+    /**
+     * @return id of a new group without values
+     */
+    public int newGroup() {
+        int group = groupCount++;
+        headers.ensureCapacity((long) groupCount * HEADER_LONGS);
+        long header = (long) group * HEADER_LONGS;
+        headers.set(header, allocate(INITIAL_CAPACITY));
+        headers.set(header + 1, INITIAL_CAPACITY);
+        headers.set(header + 2, 0);
+        return group;
+    }
+
+    public int getGroupCount() {
+        return groupCount;
+    }
+
+    /**
+     * @param group - id returned by newGroup
+     * @param number - add number to the values of the group
+     */
+    public void add(int group, long number) {
+        long header = (long) group * HEADER_LONGS;
+        long sizes = headers.get(header + 2);
+        int firstSize = (int) (sizes >>> 32);
+        int secondSize = (int) sizes;
+        if (Math.max(firstSize, secondSize) == (int) headers.get(header + 1)) {
+            grow(header, firstSize, secondSize);
+        }
+        long first = headers.get(header);
+        long second = first + headers.get(header + 1);
+        if (firstSize == 0 || number < values.get(first)) {
+            pushMax(first, firstSize++, number);
+        } else {
+            pushMin(second, secondSize++, number);
+        }
+        // moves the top of the bigger heap to the smaller one if they differ by more than one
+        if (firstSize - secondSize > 1) {
+            long top = values.get(first);
+            popMax(first, firstSize--);
+            pushMin(second, secondSize++, top);
+        } else if (secondSize - firstSize > 1) {
+            long top = values.get(second);
+            popMin(second, secondSize--);
+            pushMax(first, firstSize++, top);
+        }
+        headers.set(header + 2, (long) firstSize << 32 | secondSize);
+    }
+
+    /**
+     * @param group - id of a group with at least one value
+     * @return twice the median of the values of the group, see MedianStore.getDoubledMedian
+     */
+    public long getDoubledMedian(int group) {
+        long header = (long) group * HEADER_LONGS;
+        long sizes = headers.get(header + 2);
+        int firstSize = (int) (sizes >>> 32);
+        int secondSize = (int) sizes;
+        long first = headers.get(header);
+        long second = first + headers.get(header + 1);
+        if (firstSize == secondSize) {
+            return values.get(first) + values.get(second);
+        }
+        return (firstSize > secondSize ? values.get(first) : values.get(second)) * 2;
+    }
+
+    public int size(int group) {
+        long sizes = headers.get((long) group * HEADER_LONGS + 2);
+        return (int) (sizes >>> 32) + (int) sizes;
+    }
+
+    /**
+     * @param group - group to add the values to
+     * @param other - heaps holding the other group, may be this
+     * @param otherGroup - group whose values are added
+     */
+    public void addAll(int group, OffHeapMedianHeaps other, int otherGroup) {
+        long header = (long) otherGroup * HEADER_LONGS;
+        long sizes = other.headers.get(header + 2);
+        long first = other.headers.get(header);
+        long second = first + other.headers.get(header + 1);
+        for (int i = 0; i < (int) (sizes >>> 32); i++) {
+            add(group, other.values.get(first + i));
+        }
+        for (int i = 0; i < (int) sizes; i++) {
+            add(group, other.values.get(second + i));
+        }
+    }
+
+    /**
+     * Writes the values of a group in the layout of LongMedianHeap.writeTo
+     */
+    public void writeTo(int group, DataOutput out) throws IOException {
+        long header = (long) group * HEADER_LONGS;
+        long sizes = headers.get(header + 2);
+        int firstSize = (int) (sizes >>> 32);
+        int secondSize = (int) sizes;
+        long first = headers.get(header);
+        long second = first + headers.get(header + 1);
+        out.writeBoolean(true);
+        out.writeInt(firstSize);
+        out.writeInt(secondSize);
+        for (int i = 0; i < firstSize; i++) {
+            out.writeLong(values.get(first + i));
+        }
+        for (int i = 0; i < secondSize; i++) {
+            out.writeLong(values.get(second + i));
+        }
+    }
+
+    /**
+     * Restores the values written by writeTo or LongMedianHeap.writeTo into a group without values
+     */
+    public void readFrom(int group, DataInput in) throws IOException {
+        boolean heaps = in.readBoolean();
+        int firstSize = in.readInt();
+        int secondSize = in.readInt();
+        long header = (long) group * HEADER_LONGS;
+        if (!heaps) {
+            // a sorted array: reversed its first half is a max-heap, its second half is a min-heap,
+            // the middle value goes to the first half so that it is only empty without values, as after add
+            long[] sorted = new long[firstSize];
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = in.readLong();
+            }
+            secondSize = firstSize / 2;
+            firstSize = firstSize - secondSize;
+            long first = reserve(header, Math.max(firstSize, secondSize));
+            long second = first + headers.get(header + 1);
+            for (int i = 0; i < firstSize; i++) {
+                values.set(first + i, sorted[firstSize - 1 - i]);
+            }
+            for (int i = 0; i < secondSize; i++) {
+                values.set(second + i, sorted[firstSize + i]);
+            }
+        } else {
+            long first = reserve(header, Math.max(firstSize, secondSize));
+            long second = first + headers.get(header + 1);
+            for (int i = 0; i < firstSize; i++) {
+                values.set(first + i, in.readLong());
+            }
+            for (int i = 0; i < secondSize; i++) {
+                values.set(second + i, in.readLong());
+            }
+        }
+        headers.set(header + 2, (long) firstSize << 32 | secondSize);
+    }
+
+    /**
+     * @return a median store over a group of these heaps, see GroupView
+     */
+    public GroupView newView() {
+        return new GroupView();
+    }
+
+    /**
+     * @return bytes allocated outside of the heap for the groups and their values
+     */
+    public long getAllocatedBytes() {
+        return headers.getAllocatedBytes() + values.getAllocatedBytes();
+    }
+
+    /**
+     * Moves the heaps of a group into a region with room for at least the given values per heap
+     *
+     * @return offset of the group's region
+     */
+    private long reserve(long header, int capacity) {
+        int current = (int) headers.get(header + 1);
+        if (current >= capacity) {
+            return headers.get(header);
+        }
+        int grown = current;
+        while (grown < capacity) {
+            grown *= 2;
+        }
+        long region = allocate(grown);
+        free(headers.get(header), current);
+        headers.set(header, region);
+        headers.set(header + 1, grown);
+        return region;
+    }
+
+    private void grow(long header, int firstSize, int secondSize) {
+        long oldRegion = headers.get(header);
+        int oldCapacity = (int) headers.get(header + 1);
+        int capacity = oldCapacity * 2;
+        long region = allocate(capacity);
+        for (int i = 0; i < firstSize; i++) {
+            values.set(region + i, values.get(oldRegion + i));
+        }
+        for (int i = 0; i < secondSize; i++) {
+            values.set(region + capacity + i, values.get(oldRegion + oldCapacity + i));
+        }
+        free(oldRegion, oldCapacity);
+        headers.set(header, region);
+        headers.set(header + 1, capacity);
+    }
+
+    /**
+     * @param capacity - power of two number of values per heap
+     * @return offset of a region for two heaps of the capacity
+     */
+    private long allocate(int capacity) {
+        int sizeClass = Integer.numberOfTrailingZeros(capacity);
+        if (freeRegionCounts[sizeClass] > 0) {
+            return freeRegions[sizeClass][--freeRegionCounts[sizeClass]];
+        }
+        long region = valuesEnd;
+        valuesEnd += 2L * capacity;
+        values.ensureCapacity(valuesEnd);
+        return region;
+    }
+
+    private void free(long region, int capacity) {
+        int sizeClass = Integer.numberOfTrailingZeros(capacity);
+        long[] regions = freeRegions[sizeClass];
+        if (regions == null) {
+            regions = freeRegions[sizeClass] = new long[16];
+        } else if (freeRegionCounts[sizeClass] == regions.length) {
+            regions = freeRegions[sizeClass] = Arrays.copyOf(regions, regions.length * 2);
+        }
+        regions[freeRegionCounts[sizeClass]++] = region;
+    }
+
+    private void pushMax(long heap, int size, long number) {
+        int child = size;
+        while (child > 0) {
+            int parent = (child - 1) >>> 1;
+            long parentValue = values.get(heap + parent);
+            if (parentValue >= number) {
+                break;
+            }
+            values.set(heap + child, parentValue);
+            child = parent;
+        }
+        values.set(heap + child, number);
+    }
+
+    private void pushMin(long heap, int size, long number) {
+        int child = size;
+        while (child > 0) {
+            int parent = (child - 1) >>> 1;
+            long parentValue = values.get(heap + parent);
+            if (parentValue <= number) {
+                break;
+            }
+            values.set(heap + child, parentValue);
+            child = parent;
+        }
+        values.set(heap + child, number);
+    }
+
+    /**
+     * Removes the top of a max-heap holding size values
+     */
+    private void popMax(long heap, int size) {
+        long last = values.get(heap + --size);
+        int parent = 0;
+        int half = size >>> 1;
+        while (parent < half) {
+            int child = 2 * parent + 1;
+            long childValue = values.get(heap + child);
+            if (child + 1 < size && values.get(heap + child + 1) > childValue) {
+                childValue = values.get(heap + ++child);
+            }
+            if (last >= childValue) {
+                break;
+            }
+            values.set(heap + parent, childValue);
+            parent = child;
+        }
+        values.set(heap + parent, last);
+    }
+
+    /**
+     * Removes the top of a min-heap holding size values
+     */
+    private void popMin(long heap, int size) {
+        long last = values.get(heap + --size);
+        int parent = 0;
+        int half = size >>> 1;
+        while (parent < half) {
+            int child = 2 * parent + 1;
+            long childValue = values.get(heap + child);
+            if (child + 1 < size && values.get(heap + child + 1) < childValue) {
+                childValue = values.get(heap + ++child);
+            }
+            if (last <= childValue) {
+                break;
+            }
+            values.set(heap + parent, childValue);
+            parent = child;
+        }
+        values.set(heap + parent, last);
+    }
+
+    /**
+     * A MedianStore over one selected group of the heaps, so that groups kept off the heap
+     * can be used wherever a MedianStore is, without allocating an object per group
+     */
+    public class GroupView implements MedianStore
+    {
+        private int group;
+
+        private GroupView() {
+        }
+
+        /**
+         * @param group - id of the group the view reads and updates from now on
+         * @return this view
+         */
+        public GroupView select(int group) {
+            this.group = group;
+            return this;
+        }
+
+        @Override
+        public void add(long number) {
+            OffHeapMedianHeaps.this.add(group, number);
+        }
+
+        /**
+         * @param other - a GroupView of any OffHeapMedianHeaps
+         */
+        @Override
+        public void addAll(MedianStore other) {
+            GroupView otherView = (GroupView) other;
+            OffHeapMedianHeaps.this.addAll(group, otherView.heaps(), otherView.group);
+        }
+
+        @Override
+        public long getDoubledMedian() {
+            return OffHeapMedianHeaps.this.getDoubledMedian(group);
+        }
+
+        @Override
+        public int size() {
+            return OffHeapMedianHeaps.this.size(group);
+        }
+
+        @Override
+        public void writeTo(DataOutput out) throws IOException {
+            OffHeapMedianHeaps.this.writeTo(group, out);
+        }
+
+        @Override
+        public void readFrom(DataInput in) throws IOException {
+            OffHeapMedianHeaps.this.readFrom(group, in);
+        }
+
+        private OffHeapMedianHeaps heaps() {
+            return OffHeapMedianHeaps.this;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package util;
+
+/**
+ * Helpers for contribution dates packed into a single int as yyyymmdd
+ *
+ * The packed form keeps the month and day digits exactly as they appear in the
+ * MMDDYYYY input, so the original text can be reproduced without storing a String.
+ * Dates are ordered following Java's lenient date conversion, where days roll over
+ * into the next month (e.g. 02/31 sorts as 03/03). Dates falling on the same day are ordered
+ * by their MMDDYYYY text, so 02/31 sorts right before the actual 03/03.
+ */
+public final class PackedDate
+{
+    public static final int INVALID = 0;
+
+    private PackedDate() {
+    }
+
+    /**
+     * @return packed yyyymmdd date, or INVALID if the fields are out of range
+     */
+    public static int pack(int year, int month, int day) {
+        if (year > 0 && year <= 9999 && month >= 1 && month <= 12 && day >= 1 && day <= 31) {
+            return year * 10000 + month * 100 + day;
+        }
+        return INVALID;
+    }
+
+    public static int year(int packedDate) {
+        return packedDate / 10000;
+    }
+
+    public static int month(int packedDate) {
+        return (packedDate / 100) % 100;
+    }
+
+    public static int day(int packedDate) {
+        return packedDate % 100;
+    }
+
+    /**
+     * @param year - year of the proleptic Gregorian calendar
+     * @param month - month, 1 to 12
+     * @return number of days of the month
+     */
+    public static int lengthOfMonth(int year, int month) {
+        switch (month) {
+            case 2:
+                return isLeapYear(year) ? 29 : 28;
+            case 4: case 6: case 9: case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+
+    public static boolean isLeapYear(int year) {
+        return year % 4 == 0 && (year % 100 != 0 || year % 400 == 0);
+    }
+
+    /**
+     * @return key sorting dates chronologically, a day rolled over from the previous month
+     *         right before the actual day it falls on
+     */
+    public static int chronologicalKey(int packedDate) {
+        int year = year(packedDate);
+        int month = month(packedDate);
+        int dayOfYear = day(packedDate);
+        for (int previous = 1; previous < month; previous++) {
+            dayOfYear += lengthOfMonth(year, previous);
+        }
+        boolean rolledOver = day(packedDate) > lengthOfMonth(year, month);
+        return (year << 10) | (dayOfYear << 1) | (rolledOver ? 0 : 1);
+    }
+
+    /**
+     * @return the date formatted as MMDDYYYY, as found on the FEC input
+     */
+    public static String format(int packedDate) {
+        char[] chars = new char[8];
+        int month = month(packedDate);
+        int day = day(packedDate);
+        int year = year(packedDate);
+        chars[0] = (char) ('0' + month / 10);
+        chars[1] = (char) ('0' + month % 10);
+        chars[2] = (char) ('0' + day / 10);
+        chars[3] = (char) ('0' + day % 10);
+        chars[4] = (char) ('0' + year / 1000);
+        chars[5] = (char) ('0' + (year / 100) % 10);
+        chars[6] = (char) ('0' + (year / 10) % 10);
+        chars[7] = (char) ('0' + year % 10);
+        return new String(chars);
+    }
+}
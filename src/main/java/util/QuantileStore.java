@@ -0,0 +1,37 @@
+package util;
+
+/**
+ * A list of contribution amounts in cents that can report any quantile, exactly or approximately
+ */
+public interface QuantileStore
+{
+    /**
+     *
+     * @param number - add number to the list
+     */
+    void add(long number);
+
+    /**
+     * The nearest-rank quantile: the value of rank ceil(quantile * size) in ascending order, at least rank 1
+     *
+     * @param quantile - fraction of the values at or below the result, between 0 and 1, e.g. 0.9 for p90
+     * @return a value of the list, approximately of that rank for a sketch
+     * @throws IllegalStateException if the list is empty
+     */
+    long getQuantile(double quantile);
+
+    /**
+     *
+     * @return returns the number of values added to the list
+     */
+    long count();
+
+    /**
+     * @param quantile - fraction between 0 and 1
+     * @param count - number of values in a list
+     * @return the 1 based nearest rank of the quantile
+     */
+    static long rankOf(double quantile, long count) {
+        return Math.max(1, Math.min(count, (long) Math.ceil(quantile * count)));
+    }
+}
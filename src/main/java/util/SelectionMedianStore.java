@@ -0,0 +1,187 @@
+package util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A median store that only appends values and selects the median on demand
+ *
+ * Suited to medians that are needed once, at the end, like the aggregate medians by date:
+ * appending is O(1) and the median is found with an introselect in O(n),
+ * instead of paying O(lg n) per insert to keep heaps ordered.
+ * The selected median is cached until the next insert, and the buffer can be
+ * released once the median is reported.
+ * Any other quantile is selected the same way, which makes it the exact QuantileStore.
+ * Selecting reorders the values, so reads are synchronized on the store
+ * to let several threads read it at once while nothing is added.
+ *
+ * Time Complexity
+ * ---------------
+ * insert - O(1) amortized
+ * compute median - O(n), O(1) when unchanged since the last call
+ */
+public class SelectionMedianStore implements MedianStore, QuantileStore
+{
+    private static final long[] EMPTY = new long[0];
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    private long[] values = EMPTY;
+    private int size;
+    private boolean medianValid;
+    private long doubledMedian;
+
+    @Override
+    public void add(long number) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size < 4 ? 4 : size + (size >> 1));
+        }
+        values[size++] = number;
+        medianValid = false;
+    }
+
+    @Override
+    public void addAll(MedianStore other) {
+        SelectionMedianStore selection = (SelectionMedianStore) other;
+        if (size + selection.size > values.length) {
+            values = Arrays.copyOf(values, size + selection.size);
+        }
+        System.arraycopy(selection.values, 0, values, size, selection.size);
+        size += selection.size;
+        medianValid = false;
+    }
+
+    @Override
+    public synchronized long getDoubledMedian() {
+        if (!medianValid) {
+            int lowerRank = (size - 1) / 2;
+            select(values, 0, size - 1, lowerRank);
+            long lower = values[lowerRank];
+            if (size % 2 == 1) {
+                doubledMedian = lower * 2;
+            } else {
+                long upper = values[lowerRank + 1];
+                for (int i = lowerRank + 2; i < size; i++) {
+                    upper = Math.min(upper, values[i]);
+                }
+                doubledMedian = lower + upper;
+            }
+            medianValid = true;
+        }
+        return doubledMedian;
+    }
+
+    /**
+     * @throws IllegalStateException if the list is empty or the values were released
+     */
+    @Override
+    public synchronized long getQuantile(double quantile) {
+        if (size == 0 || values == EMPTY) {
+            throw new IllegalStateException("No values to select a quantile from");
+        }
+        int rank = (int) QuantileStore.rankOf(quantile, size) - 1;
+        select(values, 0, size - 1, rank);
+        return values[rank];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public long count() {
+        return size;
+    }
+
+    /**
+     * Frees the buffer of values, only the median is kept and no values may be added afterwards
+     */
+    @Override
+    public void release() {
+        getDoubledMedian();
+        values = EMPTY;
+    }
+
+    /**
+     * @throws IllegalStateException if the values were released
+     */
+    @Override
+    public void writeTo(DataOutput out) throws IOException {
+        if (values == EMPTY && size > 0) {
+            throw new IllegalStateException("Values of the median store were released");
+        }
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            out.writeLong(values[i]);
+        }
+    }
+
+    @Override
+    public void readFrom(DataInput in) throws IOException {
+        size = in.readInt();
+        values = size == 0 ? EMPTY : new long[size];
+        for (int i = 0; i < size; i++) {
+            values[i] = in.readLong();
+        }
+        medianValid = false;
+    }
+
+    /**
+     * Introselect, rearranges values so that values[rank] holds the value of that rank,
+     * with smaller or equal values before it and larger or equal values after it
+     * Falls back to sorting the range if partitioning keeps going badly.
+     */
+    static void select(long[] values, int left, int right, int rank) {
+        int depthLimit = 2 * (32 - Integer.numberOfLeadingZeros(right - left + 1));
+        while (right - left >= INSERTION_SORT_THRESHOLD) {
+            if (depthLimit-- == 0) {
+                Arrays.sort(values, left, right + 1);
+                return;
+            }
+            int middle = (left + right) >>> 1;
+            long pivot = medianOfThree(values[left], values[middle], values[right]);
+            int less = left;
+            int greater = right;
+            int i = left;
+            // three-way partition, keeps runs of equal amounts from degrading the selection
+            while (i <= greater) {
+                long value = values[i];
+                if (value < pivot) {
+                    swap(values, i++, less++);
+                } else if (value > pivot) {
+                    swap(values, i, greater--);
+                } else {
+                    i++;
+                }
+            }
+            if (rank < less) {
+                right = less - 1;
+            } else if (rank > greater) {
+                left = greater + 1;
+            } else {
+                return;
+            }
+        }
+        for (int i = left + 1; i <= right; i++) {
+            long value = values[i];
+            int j = i - 1;
+            while (j >= left && values[j] > value) {
+                values[j + 1] = values[j];
+                j--;
+            }
+            values[j + 1] = value;
+        }
+    }
+
+    private static long medianOfThree(long a, long b, long c) {
+        return Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+    }
+
+    private static void swap(long[] values, int i, int j) {
+        long value = values[i];
+        values[i] = values[j];
+        values[j] = value;
+    }
+}
@@ -0,0 +1,69 @@
+package util;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A dictionary that assigns dense int ids to Strings, such as recipient ids or the text columns of views
+ *
+ * Groups are keyed by the int id of their recipient instead of the recipient String, see GroupKey.
+ * Ids are assigned in order of first appearance, starting at 0, and the String
+ * of every int id is kept for the output.
+ *
+ * Thread-safe, so that parsers on different threads assign the same ids:
+ * looking up a known String never locks nor allocates, only new Strings are added under a lock.
+ */
+public class StringDictionary
+{
+    public static final int NOT_FOUND = -1;
+
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] names = new String[64];
+    private int size;
+
+    /**
+     * @param value - value as found on the input
+     * @return int id of the value, assigned on first lookup
+     */
+    public int idOf(String value) {
+        Integer id = ids.get(value);
+        return id != null ? id : add(value);
+    }
+
+    /**
+     * @param value - value as found on the input
+     * @return int id of the value, or NOT_FOUND if the value has no id yet
+     */
+    public int find(String value) {
+        Integer id = ids.get(value);
+        return id != null ? id : NOT_FOUND;
+    }
+
+    /**
+     * @param id - int id returned by idOf
+     * @return the value of the id
+     */
+    public String nameOf(int id) {
+        return names[id];
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    private synchronized int add(String value) {
+        Integer id = ids.get(value);
+        if (id != null) {
+            return id;
+        }
+        String[] current = names;
+        if (size == current.length) {
+            current = Arrays.copyOf(current, size * 2);
+        }
+        current[size] = value;
+        // publish the name before the id, so that any thread seeing the id can resolve it
+        names = current;
+        ids.put(value, size);
+        return size++;
+    }
+}
@@ -0,0 +1,100 @@
+package util;
+
+/**
+ * Approximate top totals by int id with a fixed number of counters, the weighted Space-Saving algorithm
+ *
+ * Every counter holds an id and its total. An id that has no counter while all are taken replaces the id
+ * with the smallest total, and starts from that total plus its own amount. Totals are thus never under
+ * the true total of an id, and over it by at most the total of all amounts divided by the number of counters.
+ * Every id whose true total is above that bound is guaranteed to hold a counter.
+ *
+ * Only positive amounts are counted, refunds can not be attributed once an id has lost its counter.
+ *
+ * Time Complexity
+ * ---------------
+ * insert - O(c) for c counters, kept small
+ * top k - O(k * c)
+ */
+public class TopKTotals
+{
+    private final int[] ids;
+    private final long[] totals;
+    private int size;
+
+    /**
+     * @param counters - number of ids tracked, a few times the number of top ids reported
+     */
+    public TopKTotals(int counters) {
+        ids = new int[counters];
+        totals = new long[counters];
+    }
+
+    /**
+     * @param id - non-negative id, e.g. of the donor
+     * @param amount - amount added to the total of the id, ignored unless positive
+     */
+    public void add(int id, long amount) {
+        if (amount <= 0) {
+            return;
+        }
+        for (int i = 0; i < size; i++) {
+            if (ids[i] == id) {
+                totals[i] += amount;
+                return;
+            }
+        }
+        if (size < ids.length) {
+            ids[size] = id;
+            totals[size++] = amount;
+            return;
+        }
+        int smallest = 0;
+        for (int i = 1; i < size; i++) {
+            if (totals[i] < totals[smallest]) {
+                smallest = i;
+            }
+        }
+        ids[smallest] = id;
+        totals[smallest] += amount;
+    }
+
+    /**
+     * Fills the ids with the largest totals, largest first, lower ids first among equal totals
+     *
+     * @param topIds - receives the ids, its length is the number of ids asked for
+     * @param topTotals - receives the estimated total of each id, at least as long as topIds
+     * @return number of ids filled, less than asked for if fewer ids were added
+     */
+    public int top(int[] topIds, long[] topTotals) {
+        int filled = 0;
+        long previousTotal = Long.MAX_VALUE;
+        int previousId = -1;
+        for (; filled < topIds.length && filled < size; filled++) {
+            int best = -1;
+            for (int i = 0; i < size; i++) {
+                // the next best counter is ordered after the previous one
+                boolean after = totals[i] < previousTotal || totals[i] == previousTotal && ids[i] > previousId;
+                if (after && (best < 0 || totals[i] > totals[best] || totals[i] == totals[best] && ids[i] < ids[best])) {
+                    best = i;
+                }
+            }
+            topIds[filled] = previousId = ids[best];
+            topTotals[filled] = previousTotal = totals[best];
+        }
+        return filled;
+    }
+
+    /**
+     * @return number of ids holding a counter
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return approximate bytes of heap held by the counters
+     */
+    public long retainedBytes() {
+        return 64 + 4L * ids.length + 8L * totals.length;
+    }
+}
@@ -0,0 +1,77 @@
+package util;
+
+/**
+ * Helpers for contribution zipcodes kept as a single int
+ *
+ * The first 5 characters of a zipcode are valid if Integer.parseInt reads them as a positive number:
+ * 5 digits, or a plus sign followed by 4 digits such as +1234. A zipcode of digits is kept as its number,
+ * a signed one above SIGNED, so that both stay apart and the original text can be reproduced
+ * without storing a String.
+ */
+public final class ZipCode
+{
+    public static final int INVALID = 0;
+    public static final int LENGTH = 5;
+    // every valid zipcode is below this bound
+    public static final int LIMIT = 110000;
+
+    private static final int SIGNED = 100000;
+
+    private ZipCode() {
+    }
+
+    /**
+     * @param zip - the first 5 characters of a zipcode
+     * @return the zipcode as int, or INVALID if it is malformed
+     */
+    public static int parse(String zip) {
+        if (zip.length() != LENGTH) {
+            return INVALID;
+        }
+        int value = 0;
+        for (int i = zip.charAt(0) == '+' ? 1 : 0; i < LENGTH; i++) {
+            int digit = zip.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return INVALID;
+            }
+            value = value * 10 + digit;
+        }
+        return value == 0 ? INVALID : zip.charAt(0) == '+' ? SIGNED + value : value;
+    }
+
+    /**
+     * @param digits - value of the digits of a zipcode, positive
+     * @param signed - true if the digits follow a plus sign
+     * @return the zipcode as int
+     */
+    public static int of(int digits, boolean signed) {
+        return signed ? SIGNED + digits : digits;
+    }
+
+    /**
+     * @param out - writer to append to
+     * @param zip - a valid zipcode as int
+     * @return the writer
+     */
+    public static AsciiRowWriter append(AsciiRowWriter out, int zip) {
+        return zip >= SIGNED ? out.append('+').appendZeroPadded(zip - SIGNED, LENGTH - 1)
+                : out.appendZeroPadded(zip, LENGTH);
+    }
+
+    /**
+     * @param zip - a valid zipcode as int
+     * @return the zipcode as in the input
+     */
+    public static String format(int zip) {
+        char[] chars = new char[LENGTH];
+        int value = zip >= SIGNED ? zip - SIGNED : zip;
+        for (int i = LENGTH - 1; i >= 0; i--) {
+            chars[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        if (zip >= SIGNED) {
+            chars[0] = '+';
+        }
+        return new String(chars);
+    }
+}